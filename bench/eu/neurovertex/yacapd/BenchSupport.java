@@ -0,0 +1,127 @@
+package eu.neurovertex.yacapd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.prefs.AbstractPreferences;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+/**
+ * Fixtures shared by the benchmarks : the sample pages in bench/pages, and processors whose account lives in a throwaway Preferences node, kept in memory so that the benchmarks never write to the user's real preferences.
+ *
+ * @author NeuroVertex
+ */
+final class BenchSupport {
+	static final String USERNAME = "bench.user";
+	private static final Preferences root = new MemoryPreferences(null, "").node("eu/neurovertex/yacapd-bench");
+
+	private BenchSupport() {
+	}
+
+	/**
+	 * @param name name of the page, without the .html extension
+	 * @return the raw bytes of the page, read from the classpath (the bench directory has to be on it)
+	 */
+	static byte[] page(String name) throws IOException {
+		try (InputStream in = BenchSupport.class.getResourceAsStream("/pages/" + name + ".html")) {
+			if (in == null)
+				throw new IOException("Page " + name + " not found, is the bench directory on the classpath ?");
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) >= 0)
+				out.write(buf, 0, n);
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * @return the state a processor is in when it receives the given page
+	 */
+	static YacapPageProcessor.YacapState stateFor(String page) {
+		if (page.startsWith("login"))
+			return YacapPageProcessor.YacapState.LOGIN;
+		if (page.startsWith("popup"))
+			return YacapPageProcessor.YacapState.CONNECTED;
+		return YacapPageProcessor.YacapState.AUTH;
+	}
+
+	static YacapPageProcessor processor(String name) {
+		return processor(name, USERNAME, "bench-password");
+	}
+
+	static YacapPageProcessor processor(String name, String username, String password) {
+		Preferences account = root.node(name);
+		account.put("username", username);
+		account.put("password", password);
+		return new YacapPageProcessor(name, account);
+	}
+
+	/**
+	 * Forgets the accounts of the processors created so far. The benchmarks all run in the same JVM, each of them cleaning up after itself.
+	 */
+	static void cleanup() {
+		try {
+			for (String child : root.childrenNames())
+				root.node(child).removeNode();
+		} catch (BackingStoreException | IllegalStateException ignore) {
+		}
+	}
+
+	/**
+	 * Preferences that only live in memory, with no backing store to sync with.
+	 */
+	private static final class MemoryPreferences extends AbstractPreferences {
+		private final Map<String, String> values = new HashMap<>();
+
+		MemoryPreferences(MemoryPreferences parent, String name) {
+			super(parent, name);
+		}
+
+		@Override
+		protected void putSpi(String key, String value) {
+			values.put(key, value);
+		}
+
+		@Override
+		protected String getSpi(String key) {
+			return values.get(key);
+		}
+
+		@Override
+		protected void removeSpi(String key) {
+			values.remove(key);
+		}
+
+		@Override
+		protected void removeNodeSpi() {
+			values.clear();
+		}
+
+		@Override
+		protected String[] keysSpi() {
+			return values.keySet().toArray(new String[values.size()]);
+		}
+
+		@Override
+		protected String[] childrenNamesSpi() {
+			return new String[0]; // The children are all cached by AbstractPreferences
+		}
+
+		@Override
+		protected AbstractPreferences childSpi(String name) {
+			return new MemoryPreferences(this, name);
+		}
+
+		@Override
+		protected void syncSpi() {
+		}
+
+		@Override
+		protected void flushSpi() {
+		}
+	}
+}
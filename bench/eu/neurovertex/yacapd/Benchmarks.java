@@ -0,0 +1,34 @@
+package eu.neurovertex.yacapd;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Runs the benchmarks with the allocation profiler, and writes the results as JSON to bench-results/, one file per run, so that they can be compared over time.
+ * Any JMH command-line option can be given to override the defaults, e.g. a benchmark name regex to only run some of them.
+ *
+ * @author NeuroVertex
+ */
+public class Benchmarks {
+	public static void main(String[] args) throws Exception {
+		File dir = new File("bench-results");
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IllegalStateException("Can't create " + dir);
+		String result = new File(dir, new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json").getPath();
+		new Runner(new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.include(Benchmarks.class.getPackage().getName() + "\\..*Benchmark")
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result(result)
+				.build()).run();
+		System.out.println("Results written to " + result);
+	}
+}
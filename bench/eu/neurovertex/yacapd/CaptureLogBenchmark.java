@@ -0,0 +1,60 @@
+package eu.neurovertex.yacapd;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost, on the request thread, of capturing an exchange. The writing itself is done by the capture thread, its drops are reported at the end of each trial.
+ *
+ * @author NeuroVertex
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CaptureLogBenchmark {
+	@Param({"false", "true"})
+	public boolean gzip;
+
+	private File directory;
+	private CaptureLog capture;
+	private byte[] body;
+	private Map<String, List<String>> requestHeaders, responseHeaders;
+
+	@Setup
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("yacapd-capture").toFile();
+		capture = new CaptureLog(directory, 1024, 10 * 1024 * 1024, 3600000, gzip, 1);
+		body = BenchSupport.page("popup");
+		requestHeaders = new HashMap<>();
+		requestHeaders.put("User-Agent", Collections.singletonList("Mozilla/5.0"));
+		requestHeaders.put("Cookie", Collections.singletonList("YaCaP_session_ID=4f1e2d3c4b5a69788796a5b4c3d2e1f0"));
+		responseHeaders = new HashMap<>();
+		responseHeaders.put(null, Collections.singletonList("HTTP/1.1 200 OK"));
+		responseHeaders.put("Content-Type", Collections.singletonList("text/html; charset=iso-8859-1"));
+	}
+
+	@TearDown
+	public void tearDown() {
+		capture.close();
+		System.out.println("Captures written : " + capture.getWritten() + ", dropped : " + capture.getDropped());
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		directory.delete();
+	}
+
+	@Benchmark
+	public boolean sampleAndCapture() {
+		if (capture.sample("popup")) {
+			capture.capture(new CaptureLog.Record("bench", "popup", "https://portail-crous.crous-nancy-metz.fr/popup", "GET", 200, requestHeaders, responseHeaders, null, body, body.length));
+			return true;
+		}
+		return false;
+	}
+}
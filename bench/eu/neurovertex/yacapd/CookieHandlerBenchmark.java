@@ -0,0 +1,52 @@
+package eu.neurovertex.yacapd;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cookie jar lookups and updates, alone and with readers and a writer hitting the same jar.
+ *
+ * @author NeuroVertex
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CookieHandlerBenchmark {
+	private static final URI POPUP = URI.create("https://portail-crous.crous-nancy-metz.fr/popup");
+	private static final Map<String, List<String>> NO_HEADERS = Collections.emptyMap();
+
+	private GlobalCookieHandler handler;
+	private Map<String, List<String>> responseHeaders;
+
+	@Setup
+	public void setup() {
+		handler = new GlobalCookieHandler();
+		Map<String, List<String>> initial = new HashMap<>();
+		initial.put("Set-Cookie", Arrays.asList("YaCaP_session_ID=4f1e2d3c4b5a69788796a5b4c3d2e1f0; path=/; secure", "lang=fr; path=/", "BIGipServerpool_yacap=1677830336.20480.0000; path=/"));
+		handler.put(POPUP, initial);
+		responseHeaders = Collections.singletonMap("Set-Cookie", Collections.singletonList("YaCaP_session_ID=0f1e2d3c4b5a69788796a5b4c3d2e1f4; path=/; secure"));
+	}
+
+	@Benchmark
+	@Group("uncontended")
+	public Map<String, List<String>> get() {
+		return handler.get(POPUP, NO_HEADERS);
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(3)
+	public Map<String, List<String>> contendedGet() {
+		return handler.get(POPUP, NO_HEADERS);
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public void contendedPut() {
+		handler.put(POPUP, responseHeaders);
+	}
+}
@@ -0,0 +1,41 @@
+package eu.neurovertex.yacapd;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of the authentication form, done on every AUTH request.
+ *
+ * @author NeuroVertex
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EncodeDataBenchmark {
+	private HTTPSDownloader downloader;
+	private final Map<String, String> data = new LinkedHashMap<>();
+
+	@Setup
+	public void setup() {
+		downloader = BenchSupport.processor("encode").getDownloader();
+		data.put("username", BenchSupport.USERNAME);
+		data.put("password", "p@ss w0rd&=/\u00e9\u00e0");
+		data.put("lt", "LT-1843207-oRbJxTQsUf9mcfyUzE3GdJLrh6Cb1k");
+		data.put("execution", "e1s1");
+		data.put("_eventId", "submit");
+		data.put("submit", "LOGIN");
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchSupport.cleanup();
+	}
+
+	@Benchmark
+	public String encodeData() {
+		return downloader.encodeData(data);
+	}
+}
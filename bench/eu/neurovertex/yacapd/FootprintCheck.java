@@ -0,0 +1,125 @@
+package eu.neurovertex.yacapd;
+
+import eu.neurovertex.yacapd.YacapPageProcessor.YacapState;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.prefs.Preferences;
+import java.util.regex.Pattern;
+
+/**
+ * Budget check of the memory retained by an idle connected session : connects "sessions" sessions (500) one after the other to a {@link SimulatorProcess}, lets each refresh its popup once (which prefetches its login tokens), and compares the live heap before and after, as counted by the class histogram of the JVM.
+ * "warmup" sessions (50) are connected beforehand, so that what the JVM and the daemon set up once (classes, compiled code, TLS context, metrics...) isn't counted.
+ * The classes whose instances grew the most are printed, and the process exits with status 1 if a session retains more than "budget" bytes ({@link #BUDGET} by default), so that a regression fails the build : the verify phase of bench/pom.xml runs it with both transports.
+ * <p/>
+ * The sessions are connected sequentially, so the persistent connections of the transport are shared by all of them and aren't counted. All the other "--key=value" arguments are daemon settings, e.g. --transport=async.
+ *
+ * @author NeuroVertex
+ */
+public class FootprintCheck {
+	/**
+	 * Bytes a session may retain, measured at 2.7kB with either transport on a 64-bit JVM with compressed pointers. About 0.9kB of it is the certificates cached by the JDK, whose cache is bounded. The accounts are kept in memory (see {@link BenchSupport}), the Preferences node of a real account adding about 0.5kB
+	 */
+	public static final long BUDGET = 4 * 1024;
+	private static final Pattern HISTOGRAM_LINE = Pattern.compile("^\\s*\\d+:\\s+(\\d+)\\s+(\\d+)\\s+(\\S+)");
+
+	public static void main(String[] args) throws Exception {
+		int sessions = 500, warmup = 50, top = 15;
+		long budget = BUDGET;
+		List<String> daemonArguments = new ArrayList<>();
+		for (String arg : args)
+			if (arg.startsWith("--sessions="))
+				sessions = Integer.parseInt(arg.substring("--sessions=".length()));
+			else if (arg.startsWith("--warmup="))
+				warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+			else if (arg.startsWith("--budget="))
+				budget = Long.parseLong(arg.substring("--budget=".length()));
+			else if (arg.startsWith("--top="))
+				top = Integer.parseInt(arg.substring("--top=".length()));
+			else
+				daemonArguments.add(arg);
+
+		long perSession;
+		try (SimulatorProcess simulator = new SimulatorProcess(warmup + sessions, Collections.<String, String>emptyMap())) {
+			List<String> arguments = new ArrayList<>(Arrays.asList(simulator.getDaemonArguments()));
+			arguments.add("--networkPoll=0");
+			arguments.addAll(daemonArguments);
+			Config.load(arguments.toArray(new String[arguments.size()]));
+			SessionEngine engine = new SessionEngine(); // Never started, only holds the sessions as the daemon does
+			for (int i = 0; i < warmup; i++)
+				connect(engine, BenchSupport.processor("footprint-warmup" + i, "user" + (sessions + i), "password" + (sessions + i)));
+			Preferences.userRoot().flush(); // Otherwise the classes reading and writing the Preferences files would be loaded by the periodic sync during the measure
+
+			Map<String, long[]> first = histogram(), before = histogram(); // The second histogram counts the first, as the last one counts the second
+			first.clear();
+			for (int i = 0; i < sessions; i++)
+				connect(engine, BenchSupport.processor("footprint" + i, "user" + i, "password" + i));
+			Map<String, long[]> after = histogram();
+
+			perSession = (total(after) - total(before)) / sessions;
+			System.out.printf(Locale.ROOT, "%d connected sessions retain %d bytes each (budget %d)%n", sessions, perSession, budget);
+			List<Map.Entry<String, long[]>> growth = new ArrayList<>();
+			for (Map.Entry<String, long[]> e : after.entrySet()) {
+				long[] previous = before.get(e.getKey());
+				long bytes = e.getValue()[1] - (previous != null ? previous[1] : 0), instances = e.getValue()[0] - (previous != null ? previous[0] : 0);
+				growth.add(new AbstractMap.SimpleEntry<>(e.getKey(), new long[]{instances, bytes}));
+			}
+			Collections.sort(growth, new Comparator<Map.Entry<String, long[]>>() {
+				@Override
+				public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+					return Long.compare(b.getValue()[1], a.getValue()[1]);
+				}
+			});
+			System.out.println("  bytes  instances  class (per session)");
+			for (Map.Entry<String, long[]> e : growth.subList(0, Math.min(top, growth.size())))
+				System.out.printf(Locale.ROOT, "%7.0f %10.2f  %s%n", (double) e.getValue()[1] / sessions, (double) e.getValue()[0] / sessions, e.getKey());
+			for (SessionEngine.Session session : engine.getSessions())
+				session.getProcessor().stop();
+		} finally {
+			BenchSupport.cleanup();
+		}
+		if (perSession > budget) {
+			System.out.println("Over budget by " + (perSession - budget) + " bytes per session");
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Logs the session in, then refreshes its popup once.
+	 */
+	private static void connect(SessionEngine engine, YacapPageProcessor processor) {
+		engine.add(processor);
+		for (int i = 0; i < 20 && processor.getCurrentState() != YacapState.CONNECTED; i++)
+			if (processor.step() < 0)
+				break;
+		if (processor.getCurrentState() != YacapState.CONNECTED)
+			throw new IllegalStateException(processor.getName() + " couldn't connect, it is " + processor.getCurrentState());
+		processor.step();
+	}
+
+	/**
+	 * @return the number of live instances and the bytes they take, by class, after a full GC
+	 */
+	private static Map<String, long[]> histogram() throws JMException {
+		String text = (String) ManagementFactory.getPlatformMBeanServer().invoke(new ObjectName("com.sun.management:type=DiagnosticCommand"), "gcClassHistogram",
+				new Object[]{new String[0]}, new String[]{String[].class.getName()});
+		Map<String, long[]> classes = new HashMap<>();
+		for (String line : text.split("\n")) {
+			Matcher m = HISTOGRAM_LINE.matcher(line);
+			if (m.find())
+				classes.put(m.group(3), new long[]{Long.parseLong(m.group(1)), Long.parseLong(m.group(2))});
+		}
+		return classes;
+	}
+
+	private static long total(Map<String, long[]> histogram) {
+		long total = 0;
+		for (long[] c : histogram.values())
+			total += c[1];
+		return total;
+	}
+}
@@ -0,0 +1,276 @@
+package eu.neurovertex.yacapd;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import eu.neurovertex.yacapd.YacapPageProcessor.YacapState;
+import eu.neurovertex.yacapd.sim.PortalSimulator;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Capacity test of the daemon : runs a growing number of sessions in a {@link SessionEngine} against a {@link PortalSimulator}, ends all their portal sessions at once a few times, and writes what the host sustained as JSON to bench-results/, one file per run, so that runs can be compared.
+ * The simulator runs in its own JVM, see {@link SimulatorProcess}.
+ * <p/>
+ * The sessions are added "rampStep" at a time (100) up to "sessions" (1000). After each step, once all the sessions are connected or "rampTimeout" milliseconds (60000) have passed, the keepalives (popup refreshes and successful probes) are counted for "settle" milliseconds (10000) and the heap retained by the sessions is measured after a full GC.
+ * The full count is then kept for "soak" milliseconds (60000), after which the portal sessions are expired "disconnects" times (3), each time waiting up to "rampTimeout" milliseconds for every session to reconnect (which includes the refresh delay the sessions take to notice it) and "settle" milliseconds before the next one.
+ * The report holds, for each step and for the soak, the keepalives per second, the retained heap per session and the number of threads, the LOGIN to CONNECTED latencies of the ramp and of the recoveries, how long each recovery took, and the GC pauses (excluding the collections requested to measure the heap).
+ * <p/>
+ * The simulator is given the "latency", "errorRate", "resetRate", "maxAge" and "idleTimeout" options, see {@link PortalSimulator#main(String[])}, and "report" replaces the path of the report. All the other "--key=value" arguments are daemon settings, e.g. --transport=async or --delay=10000.
+ *
+ * @author NeuroVertex
+ */
+public class LoadDriver {
+	private static final Set<String> SIMULATOR_OPTIONS = new HashSet<>(Arrays.asList("latency", "errorRate", "resetRate", "maxAge", "idleTimeout"));
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private final Map<String, String> options;
+	private final List<String> daemonArguments;
+	private final SessionEngine engine = new SessionEngine();
+	private final Histogram rampLogins = new Histogram(), recoveryLogins = new Histogram(), gcPauses = new Histogram();
+	private final Map<YacapPageProcessor, Long> loginSince = new ConcurrentHashMap<>();
+	private final AtomicLong gcPauseMillis = new AtomicLong();
+	private volatile Histogram logins = rampLogins;
+	private SimulatorProcess simulator;
+	private long baselineHeap;
+
+	private LoadDriver(Map<String, String> options, List<String> daemonArguments) {
+		this.options = options;
+		this.daemonArguments = daemonArguments;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		List<String> daemonArguments = new ArrayList<>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (!arg.startsWith("--") || eq < 3)
+				throw new IllegalArgumentException("Invalid argument \"" + arg + "\", expected --key=value");
+			String key = arg.substring(2, eq);
+			if (SIMULATOR_OPTIONS.contains(key) || Arrays.asList("sessions", "rampStep", "rampTimeout", "settle", "soak", "disconnects", "report").contains(key))
+				options.put(key, arg.substring(eq + 1));
+			else
+				daemonArguments.add(arg);
+		}
+		LoadDriver driver = new LoadDriver(options, daemonArguments);
+		int status;
+		try {
+			String report = driver.run();
+			System.out.println("Report written to " + report);
+			status = 0;
+		} finally {
+			if (driver.simulator != null)
+				driver.simulator.close();
+			BenchSupport.cleanup();
+		}
+		System.exit(status); // The sessions are still running
+	}
+
+	private long option(String name, long def) {
+		String value = options.get(name);
+		return value == null ? def : Long.parseLong(value);
+	}
+
+	private String run() throws IOException, InterruptedException {
+		int sessions = (int) option("sessions", 1000), step = (int) option("rampStep", 100), disconnects = (int) option("disconnects", 3);
+		long rampTimeout = option("rampTimeout", 60000), settle = option("settle", 10000), soak = option("soak", 60000);
+		Map<String, String> simulatorOptions = new HashMap<>();
+		for (String option : SIMULATOR_OPTIONS)
+			if (options.containsKey(option))
+				simulatorOptions.put(option, options.get(option));
+		simulator = new SimulatorProcess(sessions, simulatorOptions);
+		List<String> arguments = new ArrayList<>(Arrays.asList(simulator.getDaemonArguments()));
+		arguments.addAll(daemonArguments);
+		Config.load(arguments.toArray(new String[arguments.size()]));
+		watchGc();
+		EventBus.getDefault().subscribe(StateChangeEvent.class, new EventBus.Listener<StateChangeEvent>() {
+			@Override
+			public void onEvent(StateChangeEvent event) {
+				stateChanged(event);
+			}
+		}, EventBus.DIRECT, 1 << 16, EventBus.Overflow.DROP);
+		baselineHeap = retainedHeap();
+		threads.resetPeakThreadCount();
+
+		StringBuilder json = new StringBuilder("{\n");
+		json.append("\t\"date\": \"").append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date())).append("\",\n");
+		json.append("\t\"settings\": {\"sessions\": ").append(sessions).append(", \"rampStep\": ").append(step).append(", \"settle\": ").append(settle).append(", \"soak\": ").append(soak)
+				.append(", \"disconnects\": ").append(disconnects).append(", \"transport\": \"").append(Config.current().isAsyncTransport() ? "async" : "sync")
+				.append("\", \"delay\": ").append(Config.current().getDelay()).append(", \"probe\": \"").append(Config.current().getProbe().name().toLowerCase(Locale.ROOT))
+				.append("\", \"processors\": ").append(Runtime.getRuntime().availableProcessors()).append(", \"maxHeap\": ").append(Runtime.getRuntime().maxMemory())
+				.append(", \"arguments\": ").append(quote(String.join(" ", daemonArguments))).append("},\n");
+		json.append("\t\"ramp\": [");
+		int count = 0;
+		while (count < sessions) {
+			int added = Math.min(step, sessions - count);
+			for (int i = count; i < count + added; i++)
+				engine.add(BenchSupport.processor("load" + i, "user" + i, "password" + i));
+			if (count == 0)
+				engine.start();
+			count += added;
+			long took = awaitConnected(rampTimeout);
+			System.out.println(count + " sessions, " + connected() + " connected after " + took + "ms");
+			json.append(count == added ? "\n" : ",\n").append("\t\t{\"sessions\": ").append(count).append(", \"connectedAfter\": ").append(took).append(", ");
+			measure(json, settle);
+			json.append('}');
+		}
+		json.append("\n\t],\n");
+
+		System.out.println("Soaking for " + soak + "ms");
+		json.append("\t\"soak\": {\"sessions\": ").append(count).append(", ");
+		measure(json, soak);
+		json.append("},\n");
+
+		logins = recoveryLogins;
+		json.append("\t\"disconnects\": [");
+		for (int i = 0; i < disconnects; i++) {
+			String expired = simulator.command("expire");
+			long took = awaitConnected(rampTimeout);
+			System.out.println(expired + ", " + connected() + " connected after " + took + "ms");
+			json.append(i == 0 ? "\n" : ",\n").append("\t\t{\"recoveredAfter\": ").append(took).append(", \"connected\": ").append(connected()).append('}');
+			Thread.sleep(settle);
+		}
+		json.append("\n\t],\n");
+
+		json.append("\t\"logins\": {\"ramp\": ");
+		histogram(json, rampLogins);
+		json.append(", \"recovery\": ");
+		histogram(json, recoveryLogins);
+		json.append("},\n\t\"gcPauses\": {\"totalMs\": ").append(gcPauseMillis.get()).append(", \"pauses\": ");
+		histogram(json, gcPauses);
+		json.append("},\n\t\"threads\": {\"final\": ").append(threads.getThreadCount()).append(", \"peak\": ").append(threads.getPeakThreadCount()).append("},\n");
+		json.append("\t\"errors\": {");
+		boolean first = true;
+		for (Map.Entry<String, Long> e : Metrics.getDefault().getErrorCounts().entrySet()) {
+			json.append(first ? "" : ", ").append(quote(e.getKey())).append(": ").append(e.getValue());
+			first = false;
+		}
+		json.append("},\n\t\"simulator\": {");
+		first = true;
+		for (String pair : simulator.command("stats").split(" ")) {
+			int eq = pair.indexOf('=');
+			json.append(first ? "" : ", ").append(quote(pair.substring(0, eq))).append(": ").append(pair.substring(eq + 1));
+			first = false;
+		}
+		json.append("}\n}\n");
+
+		File dir = new File("bench-results");
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can't create " + dir);
+		File report = new File(options.containsKey("report") ? options.get("report") : new File(dir, "load-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json").getPath());
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(report), StandardCharsets.UTF_8)) {
+			out.write(json.toString());
+		}
+		return report.getPath();
+	}
+
+	/**
+	 * Counts the keepalives during the given time, then measures the heap and threads, and appends them to the current JSON object.
+	 */
+	private void measure(StringBuilder json, long millis) throws InterruptedException {
+		long before = keepalives(), start = System.nanoTime();
+		Thread.sleep(millis);
+		double rate = (keepalives() - before) * 1e9 / (System.nanoTime() - start);
+		int connected = connected(), sessions = engine.getSessions().size();
+		long heap = retainedHeap() - baselineHeap;
+		json.append("\"connected\": ").append(connected).append(", \"keepalivesPerSecond\": ").append(String.format(Locale.ROOT, "%.2f", rate))
+				.append(", \"retainedHeap\": ").append(heap).append(", \"retainedHeapPerSession\": ").append(sessions == 0 ? 0 : heap / sessions)
+				.append(", \"threads\": ").append(threads.getThreadCount());
+	}
+
+	private static long keepalives() {
+		Metrics metrics = Metrics.getDefault();
+		Metrics.Route probe = metrics.route("probe");
+		return metrics.route("popup").getStatusCount(200) + probe.getStatusCount(200) + probe.getStatusCount(204) + probe.getStatusCount(304);
+	}
+
+	private int connected() {
+		int n = 0;
+		for (SessionEngine.Session session : engine.getSessions())
+			if (session.getProcessor().getCurrentState() == YacapState.CONNECTED)
+				n++;
+		return n;
+	}
+
+	/**
+	 * Waits until every session is connected.
+	 *
+	 * @return the time waited in milliseconds, which is the timeout if some sessions still aren't connected
+	 */
+	private long awaitConnected(long timeout) throws InterruptedException {
+		Config config = Config.current();
+		// Right after an expiry, the sessions only notice it at their next refresh
+		long start = System.currentTimeMillis(), elapsed, unnoticed = logins == recoveryLogins ? config.getDelay() * (100L + config.getJitter()) / 100 : 0;
+		while ((elapsed = System.currentTimeMillis() - start) < timeout && (elapsed < unnoticed || connected() < engine.getSessions().size()))
+			Thread.sleep(100);
+		return Math.min(elapsed, timeout);
+	}
+
+	private void stateChanged(StateChangeEvent event) {
+		YacapPageProcessor session = event.getSession();
+		YacapState state = event.getState();
+		if (state == YacapState.LOGIN || state == YacapState.AUTH) {
+			if (!loginSince.containsKey(session))
+				loginSince.put(session, event.getTimestamp());
+		} else if (state == YacapState.CONNECTED) {
+			Long since = loginSince.remove(session);
+			if (since != null)
+				logins.recordNanos((event.getTimestamp() - since) * 1000000);
+		} else
+			loginSince.remove(session);
+	}
+
+	private void watchGc() {
+		NotificationListener listener = new NotificationListener() {
+			@Override
+			public void handleNotification(Notification notification, Object handback) {
+				if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+					return;
+				GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+				// The collections of retainedHeap() aren't part of the load, and concurrent cycles aren't pauses
+				if ("System.gc()".equals(info.getGcCause()) || info.getGcName().contains("Concurrent") || info.getGcName().contains("Cycles"))
+					return;
+				long duration = info.getGcInfo().getDuration();
+				gcPauseMillis.addAndGet(duration);
+				gcPauses.recordNanos(duration * 1000000);
+			}
+		};
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			if (gc instanceof NotificationEmitter)
+				((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+	}
+
+	private static long retainedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static void histogram(StringBuilder json, Histogram histogram) {
+		json.append(String.format(Locale.ROOT, "{\"count\": %d, \"p50Ms\": %.1f, \"p99Ms\": %.1f, \"maxMs\": %.1f}", histogram.getCount(), histogram.getP50(), histogram.getP99(), histogram.getMax()));
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : s.toCharArray())
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < ' ')
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		return sb.append('"').toString();
+	}
+}
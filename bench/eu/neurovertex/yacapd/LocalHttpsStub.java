@@ -0,0 +1,105 @@
+package eu.neurovertex.yacapd;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal HTTPS server on localhost serving the sample pages, for the round-trip benchmark. Its self-signed certificate is generated with keytool when it starts.
+ *
+ * @author NeuroVertex
+ */
+class LocalHttpsStub implements HttpHandler {
+	private static final char[] PASSWORD = "changeit".toCharArray();
+	private final Map<String, byte[]> pages = new HashMap<>();
+	private final HttpsServer server;
+	private final ExecutorService executor = Executors.newFixedThreadPool(4);
+	private final TlsContext clientContext;
+	private final File keystore;
+
+	LocalHttpsStub() throws IOException, GeneralSecurityException, InterruptedException {
+		pages.put("/popup", BenchSupport.page("popup"));
+		pages.put("/login", BenchSupport.page("login"));
+
+		keystore = new File(Files.createTempDirectory("yacapd-stub").toFile(), "stub.p12");
+		Process keytool = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool", "-genkeypair", "-alias", "stub",
+				"-keyalg", "RSA", "-keysize", "2048", "-validity", "2", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+				"-storetype", "PKCS12", "-keystore", keystore.getPath(), "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+				.inheritIO().start();
+		if (keytool.waitFor() != 0)
+			throw new IOException("keytool failed to generate the stub's certificate");
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		try (InputStream in = new FileInputStream(keystore)) {
+			ks.load(in, PASSWORD);
+		}
+
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(ks, PASSWORD);
+		SSLContext serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(kmf.getKeyManagers(), null, null);
+
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(ks);
+		clientContext = new TlsContext(tmf.getTrustManagers(), 256, 86400);
+
+		server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+		server.setHttpsConfigurator(new HttpsConfigurator(serverContext));
+		server.createContext("/", this);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		byte[] page = pages.get(exchange.getRequestURI().getPath());
+		try (InputStream in = exchange.getRequestBody()) {
+			while (in.read() >= 0) ;
+		}
+		if (page == null) {
+			exchange.sendResponseHeaders(404, -1);
+		} else {
+			exchange.getResponseHeaders().set("Content-Type", "text/html; charset=iso-8859-1");
+			exchange.sendResponseHeaders(200, page.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(page);
+			}
+		}
+		exchange.close();
+	}
+
+	/**
+	 * @return a client context trusting the stub's certificate
+	 */
+	TlsContext getClientContext() {
+		return clientContext;
+	}
+
+	String url(String path) {
+		return "https://localhost:" + server.getAddress().getPort() + path;
+	}
+
+	void stop() {
+		server.stop(0);
+		executor.shutdown();
+		keystore.delete();
+		keystore.getParentFile().delete();
+	}
+}
@@ -0,0 +1,74 @@
+package eu.neurovertex.yacapd;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recognizing each page the portal can send, in the state the processor is in when it receives it.
+ *
+ * @author NeuroVertex
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PageProcessorBenchmark {
+	private static final String BASE = "https://auth.univ-lorraine.fr/login";
+
+	@Param({"login", "auth", "auth-badlogin", "auth-lterror", "already-logged-in", "popup", "popup-disconnected"})
+	public String page;
+
+	private byte[] raw;
+	private Document doc;
+	private YacapPageProcessor processor;
+	private YacapPageProcessor.YacapState state;
+
+	@Setup
+	public void setup() throws IOException {
+		raw = BenchSupport.page(page);
+		doc = Jsoup.parse(new ByteArrayInputStream(raw), null, BASE);
+		processor = BenchSupport.processor("pages-" + page);
+		state = BenchSupport.stateFor(page);
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchSupport.cleanup();
+	}
+
+	/**
+	 * processDocument alone, on an already parsed page.
+	 */
+	@Benchmark
+	public YacapPageProcessor.YacapState processDocument() {
+		processor.setCurrentState(state);
+		processor.processDocument(doc);
+		return processor.getCurrentState();
+	}
+
+	/**
+	 * What the downloader does for the pages that need a DOM : parse the raw bytes, then process them.
+	 */
+	@Benchmark
+	public YacapPageProcessor.YacapState parseAndProcess() throws IOException {
+		processor.setCurrentState(state);
+		processor.processDocument(Jsoup.parse(new ByteArrayInputStream(raw), null, BASE));
+		return processor.getCurrentState();
+	}
+
+	/**
+	 * What the downloader does for the popup : stream the bytes through a {@link BodyTagMatcher}.
+	 */
+	@Benchmark
+	public YacapPageProcessor.YacapState streamBodyTag() {
+		processor.setCurrentState(state);
+		BodyTagMatcher matcher = new BodyTagMatcher();
+		matcher.feed(raw, 0, raw.length);
+		processor.processBodyTag(matcher);
+		return processor.getCurrentState();
+	}
+}
@@ -0,0 +1,52 @@
+package eu.neurovertex.yacapd;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full requests through the {@link HTTPSDownloader}, cookies, TLS and processing included, against a {@link LocalHttpsStub}.
+ *
+ * @author NeuroVertex
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoundTripBenchmark {
+	private LocalHttpsStub stub;
+	private YacapPageProcessor processor;
+	private String popup, login;
+
+	@Setup
+	public void setup() throws Exception {
+		stub = new LocalHttpsStub();
+		TlsContext.setDefault(stub.getClientContext());
+		processor = BenchSupport.processor("roundtrip");
+		popup = stub.url("/popup");
+		login = stub.url("/login");
+	}
+
+	@TearDown
+	public void tearDown() {
+		stub.stop();
+		BenchSupport.cleanup();
+	}
+
+	/**
+	 * A keepalive, as done every "delay" milliseconds while connected.
+	 */
+	@Benchmark
+	public int popupRefresh() {
+		processor.setCurrentState(YacapPageProcessor.YacapState.CONNECTED);
+		return processor.getDownloader().getUrl(popup, "popup", null);
+	}
+
+	/**
+	 * Download and extraction of the login form.
+	 */
+	@Benchmark
+	public int loginForm() {
+		processor.setCurrentState(YacapPageProcessor.YacapState.LOGIN);
+		return processor.getDownloader().getUrl(login, "login", null);
+	}
+}
@@ -0,0 +1,71 @@
+package eu.neurovertex.yacapd;
+
+import eu.neurovertex.yacapd.sim.PortalSimulator;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link PortalSimulator} running in its own JVM, started with the same classpath and driven through its standard input, so that its memory and threads aren't counted as the daemon's by the measurements.
+ *
+ * @author NeuroVertex
+ */
+final class SimulatorProcess implements Closeable {
+	private final Process process;
+	private final BufferedReader out;
+	private final PrintWriter in;
+	private final String[] daemonArguments;
+
+	/**
+	 * Starts the simulator with the accounts "user0" to "userN-1", whose passwords are "password0" to "passwordN-1".
+	 *
+	 * @param options options of the simulator (latency, errorRate...), see {@link PortalSimulator#main(String[])}
+	 */
+	SimulatorProcess(int accounts, Map<String, String> options) throws IOException {
+		List<String> command = new ArrayList<>(Arrays.asList(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+				"-cp", System.getProperty("java.class.path"), PortalSimulator.class.getName(), "--port=0", "--accounts=" + accounts));
+		for (Map.Entry<String, String> option : options.entrySet())
+			command.add("--" + option.getKey() + "=" + option.getValue());
+		process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+		in = new PrintWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8), true);
+		String line = out.readLine(), prefix = "Start the daemon with : ";
+		if (line == null || !line.startsWith(prefix)) {
+			process.destroy();
+			throw new IOException("The simulator didn't start : " + line);
+		}
+		daemonArguments = line.substring(prefix.length()).split(" ");
+	}
+
+	/**
+	 * @return the settings pointing the daemon at the simulator
+	 */
+	String[] getDaemonArguments() {
+		return daemonArguments.clone();
+	}
+
+	/**
+	 * @return the line the simulator answered
+	 */
+	String command(String command) throws IOException {
+		in.println(command);
+		String line = out.readLine();
+		if (line == null)
+			throw new IOException("The simulator exited");
+		return line;
+	}
+
+	@Override
+	public void close() {
+		in.println("quit");
+		try {
+			process.waitFor();
+		} catch (InterruptedException e) {
+			process.destroy();
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package eu.neurovertex.yacapd;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Holds the {@link HttpClient} used by the asynchronous transport of {@link HTTPSDownloader}. A single client is shared by every session of the JVM so that they all use the same pool of persistent connections to the CaS and CROUS hosts.
+ *
+ * @author NeuroVertex
+ */
+final class AsyncTransport {
+	static final Map<String, List<String>> EMPTY_HEADERS = Collections.emptyMap();
+	private static volatile HttpClient client;
+
+	private AsyncTransport() {
+	}
+
+	/**
+	 * @return the shared client, created on first use. It prefers HTTP/2 and falls back to HTTP/1.1 with keep-alive when the server doesn't support it. Redirects aren't followed by the client since the cookies of the session have to be applied at each hop.
+	 * Opening a connection, which for the client includes the TLS handshake, times out after "connectTimeout" plus "tlsTimeout" milliseconds, as set when it is created.
+	 */
+	static HttpClient client() {
+		HttpClient c = client;
+		if (c == null)
+			synchronized (AsyncTransport.class) {
+				if ((c = client) == null) {
+					HttpClient.Builder builder = HttpClient.newBuilder()
+							.version(HttpClient.Version.HTTP_2)
+							.followRedirects(HttpClient.Redirect.NEVER)
+							.sslContext(TlsContext.getDefault().getContext());
+					Config config = Config.current();
+					if (config.getConnectTimeout() > 0)
+						builder.connectTimeout(Duration.ofMillis((long) config.getConnectTimeout() + config.getTlsTimeout()));
+					client = c = builder.build();
+				}
+			}
+		return c;
+	}
+
+	/**
+	 * @return the charset declared in the Content-Type header of the response, or UTF-8 if there is none or it is unsupported
+	 */
+	static Charset charset(HttpResponse<?> response) {
+		return charset(response.headers());
+	}
+
+	static Charset charset(HttpHeaders headers) {
+		String type = headers.firstValue("Content-Type").orElse("");
+		int i = type.toLowerCase(Locale.ROOT).indexOf("charset=");
+		if (i >= 0) {
+			String name = type.substring(i + 8).trim();
+			int end = name.indexOf(';');
+			if (end >= 0)
+				name = name.substring(0, end);
+			name = name.replace("\"", "").trim();
+			try {
+				return Charset.forName(name);
+			} catch (IllegalArgumentException ignore) {
+			}
+		}
+		return StandardCharsets.UTF_8;
+	}
+
+	/**
+	 * Converts a single-valued header map, as stored in {@link YacapPageProcessor.HTTPRequest}, to the multi-valued form used by {@link java.net.CookieHandler}.
+	 */
+	static Map<String, List<String>> asHeaderMap(Map<String, String> headers) {
+		Map<String, List<String>> map = new HashMap<>();
+		for (Map.Entry<String, String> e : headers.entrySet())
+			map.put(e.getKey(), Collections.singletonList(e.getValue()));
+		return map;
+	}
+}
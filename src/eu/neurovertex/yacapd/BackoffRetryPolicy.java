@@ -0,0 +1,44 @@
+package eu.neurovertex.yacapd;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with decorrelated jitter : each delay is drawn between the base delay and three times the previous one, capped. Compared to a fixed delay, this spreads the retries of many sessions (and many daemons) over time instead of having them all hit the portal at once when it comes back up.
+ * Attempts stop after a maximum count or once the deadline since the first attempt is passed. The default policy is built by {@link Config} from the "retryBase", "retryCap", "retryMax" and "retryDeadline" settings.
+ *
+ * @author NeuroVertex
+ */
+public class BackoffRetryPolicy implements RetryPolicy {
+	private final long base, cap, deadline;
+	private final int maxAttempts;
+
+	/**
+	 * @param base        minimum delay in milliseconds
+	 * @param cap         maximum delay in milliseconds
+	 * @param maxAttempts maximum number of attempts, including the first one
+	 * @param deadline    time in milliseconds after the first attempt past which no retry is made
+	 */
+	public BackoffRetryPolicy(long base, long cap, int maxAttempts, long deadline) {
+		this.base = base;
+		this.cap = Math.max(base, cap);
+		this.maxAttempts = maxAttempts;
+		this.deadline = deadline;
+	}
+
+	@Override
+	public long nextDelay(int attempt, long previousDelay, long elapsed, IOException error) {
+		if (attempt >= maxAttempts)
+			return -1;
+		long upper = Math.min(cap, Math.max(base, previousDelay) * 3);
+		long delay = upper > base ? ThreadLocalRandom.current().nextLong(base, upper + 1) : base;
+		if (elapsed + delay > deadline)
+			return -1;
+		return delay;
+	}
+
+	@Override
+	public String toString() {
+		return "BackoffRetryPolicy{base=" + base + ", cap=" + cap + ", maxAttempts=" + maxAttempts + ", deadline=" + deadline + "}";
+	}
+}
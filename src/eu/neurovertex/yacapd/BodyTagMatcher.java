@@ -0,0 +1,146 @@
+package eu.neurovertex.yacapd;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Incremental scanner looking for the first &lt;body&gt; tag of a page, so that the popup refreshes don't have to build a whole DOM just to read the background colour of the page.
+ * Bytes are fed as they arrive and the scan stops as soon as the tag is complete. Only the ASCII markup is inspected, so this works for any ASCII-compatible encoding.
+ *
+ * @author NeuroVertex
+ */
+public class BodyTagMatcher {
+	private static final byte[] TAG = {'<', 'b', 'o', 'd', 'y'};
+	private static final int MAX_TAG_LENGTH = 4096;
+
+	private int matched = 0; // Number of bytes of TAG matched so far
+	private StringBuilder tag; // Content of the tag once "<body" has been matched
+	private char quote = 0;
+	private Map<String, String> attributes;
+	private long scanned = 0;
+
+	/**
+	 * Feeds the next bytes of the page to the matcher.
+	 *
+	 * @return true once the body tag has been found, in which case the remaining bytes are of no interest
+	 */
+	public boolean feed(byte[] buf, int off, int len) {
+		int end = off + len;
+		for (int i = off; i < end && attributes == null; i++)
+			next(buf[i]);
+		scanned += len;
+		return attributes != null;
+	}
+
+	/**
+	 * @see #feed(byte[], int, int)
+	 */
+	public boolean feed(ByteBuffer buf) {
+		while (buf.hasRemaining() && attributes == null) {
+			next(buf.get());
+			scanned++;
+		}
+		return attributes != null;
+	}
+
+	private void next(byte b) {
+		if (tag == null) {
+			if (matched == TAG.length) {
+				// "<body" must be followed by the end of the tag name, otherwise it may be something like <bodyguard>
+				if (b == '>' || b == '/' || Character.isWhitespace(b)) {
+					tag = new StringBuilder();
+					next(b);
+				} else
+					matched = b == '<' ? 1 : 0;
+			} else if (Character.toLowerCase(b) == TAG[matched])
+				matched++;
+			else
+				matched = b == '<' ? 1 : 0;
+		} else if (quote != 0) {
+			if (b == quote)
+				quote = 0;
+			tag.append((char) (b & 0xFF));
+		} else if (b == '>') {
+			attributes = parseAttributes(tag);
+			tag = null;
+		} else if (tag.length() >= MAX_TAG_LENGTH) {
+			attributes = new HashMap<>();
+			tag = null;
+		} else {
+			if (b == '"' || b == '\'')
+				quote = (char) b;
+			tag.append((char) (b & 0xFF));
+		}
+	}
+
+	private static Map<String, String> parseAttributes(CharSequence tag) {
+		Map<String, String> map = new HashMap<>();
+		int i = 0, len = tag.length();
+		while (i < len) {
+			while (i < len && (Character.isWhitespace(tag.charAt(i)) || tag.charAt(i) == '/'))
+				i++;
+			int start = i;
+			while (i < len && tag.charAt(i) != '=' && !Character.isWhitespace(tag.charAt(i)) && tag.charAt(i) != '/')
+				i++;
+			if (start == i)
+				break;
+			String name = tag.subSequence(start, i).toString().toLowerCase(Locale.ROOT);
+			while (i < len && Character.isWhitespace(tag.charAt(i)))
+				i++;
+			String value = "";
+			if (i < len && tag.charAt(i) == '=') {
+				i++;
+				while (i < len && Character.isWhitespace(tag.charAt(i)))
+					i++;
+				if (i < len && (tag.charAt(i) == '"' || tag.charAt(i) == '\'')) {
+					char q = tag.charAt(i++);
+					start = i;
+					while (i < len && tag.charAt(i) != q)
+						i++;
+					value = tag.subSequence(start, i).toString();
+					i++;
+				} else {
+					start = i;
+					while (i < len && !Character.isWhitespace(tag.charAt(i)))
+						i++;
+					value = tag.subSequence(start, i).toString();
+				}
+			}
+			if (!map.containsKey(name))
+				map.put(name, value);
+		}
+		return map;
+	}
+
+	/**
+	 * @return true if the body tag has been found
+	 */
+	public boolean isFound() {
+		return attributes != null;
+	}
+
+	/**
+	 * @return the value of the given attribute of the body tag, or an empty string if it isn't set or the tag hasn't been found, like {@link org.jsoup.nodes.Element#attr(String)}
+	 */
+	public String attr(String name) {
+		if (attributes == null)
+			return "";
+		String value = attributes.get(name.toLowerCase(Locale.ROOT));
+		return value != null ? value : "";
+	}
+
+	/**
+	 * @return the number of bytes that went through the matcher
+	 */
+	public long getScanned() {
+		return scanned;
+	}
+
+	@Override
+	public String toString() {
+		return isFound() ? "<body " + attributes + ">" : new String(TAG, 0, matched, StandardCharsets.US_ASCII) + "... (" + scanned + " bytes scanned)";
+	}
+}
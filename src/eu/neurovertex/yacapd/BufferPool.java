@@ -0,0 +1,72 @@
+package eu.neurovertex.yacapd;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers of a fixed size, in which the response bodies are decoded and kept. Once warmed up, reading a response doesn't allocate anything on the heap for its body, and the memory used stays off the heap shared by the sessions.
+ * At most a fixed number of buffers are kept when released, the others being left to the garbage collector.
+ *
+ * @author NeuroVertex
+ */
+final class BufferPool {
+	static final int BUFFER_SIZE = 16 * 1024;
+	private static final BufferPool instance = new BufferPool(BUFFER_SIZE, 256);
+
+	private final int bufferSize, maxPooled;
+	private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final AtomicLong allocated = new AtomicLong();
+
+	/**
+	 * @param bufferSize size in bytes of the buffers
+	 * @param maxPooled  maximum number of buffers kept in the pool
+	 */
+	BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return the pool shared by the sessions of the JVM, of at most 256 buffers of 16kB
+	 */
+	static BufferPool getDefault() {
+		return instance;
+	}
+
+	/**
+	 * @return a cleared buffer, taken from the pool if it isn't empty
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer buffer = pool.poll();
+		if (buffer != null) {
+			pooled.decrementAndGet();
+			return buffer;
+		}
+		allocated.incrementAndGet();
+		return ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	/**
+	 * Gives a buffer back to the pool. It mustn't be used afterwards.
+	 */
+	void release(ByteBuffer buffer) {
+		if (buffer.capacity() != bufferSize || !buffer.isDirect())
+			return;
+		if (pooled.incrementAndGet() <= maxPooled) {
+			buffer.clear();
+			pool.add(buffer);
+		} else
+			pooled.decrementAndGet();
+	}
+
+	/**
+	 * @return the number of buffers allocated since the pool was created, which stops growing once the pool is warmed up
+	 */
+	long getAllocated() {
+		return allocated.get();
+	}
+}
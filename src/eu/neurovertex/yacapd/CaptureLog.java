@@ -0,0 +1,317 @@
+package eu.neurovertex.yacapd;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the captures of the HTTP exchanges (headers and raw body) to rotating files in the "logDir" directory. The POST data and the cookies are written with their values hidden, see {@link Redactor}.
+ * The request threads only hand a {@link Record} to a bounded queue; formatting and disk I/O are done by a single background thread. When the queue is full, records are dropped and counted rather than slowing down the sessions.
+ * <p/>
+ * Settings, read from the {@link Config} when the log is created :
+ * <ul>
+ * <li>logDir : directory of the capture files, captures are disabled if empty</li>
+ * <li>captureQueue : number of records that can wait to be written (1024)</li>
+ * <li>captureMaxSize : size in bytes after which the file is rotated (10 MB)</li>
+ * <li>captureMaxAge : age in seconds after which the file is rotated (3600)</li>
+ * <li>captureGzip : whether the files are gzip-compressed (false)</li>
+ * <li>captureSample : only one in that many popup refreshes is captured (1, every refresh). Other pages are always captured</li>
+ * </ul>
+ *
+ * @author NeuroVertex
+ */
+public class CaptureLog {
+	private static final Logger log = Logger.getLogger(CaptureLog.class.getName());
+	private static final CaptureLog DISABLED = new CaptureLog();
+	private static volatile CaptureLog instance;
+
+	private final File directory;
+	private final BlockingQueue<Record> queue;
+	private final long maxSize, maxAge;
+	private final boolean gzip;
+	private final int sample;
+	private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+	private final AtomicLong dropped = new AtomicLong(), written = new AtomicLong();
+	private Thread writer;
+	private volatile boolean closed = false;
+
+	// Only used by the writer thread
+	private Writer out;
+	private CountingOutputStream file;
+	private long openedAt;
+
+	private CaptureLog() {
+		directory = null;
+		queue = null;
+		maxSize = maxAge = 0;
+		gzip = false;
+		sample = 1;
+	}
+
+	public CaptureLog(File directory, int capacity, long maxSize, long maxAge, boolean gzip, int sample) {
+		this.directory = directory;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.maxSize = maxSize;
+		this.maxAge = maxAge;
+		this.gzip = gzip;
+		this.sample = Math.max(1, sample);
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "yacap-capture");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @return the capture log configured in the {@link Config}, created on first use. If no logDir is set, the returned log captures nothing.
+	 */
+	public static CaptureLog getDefault() {
+		CaptureLog c = instance;
+		if (c == null)
+			synchronized (CaptureLog.class) {
+				if ((c = instance) == null) {
+					Config config = Config.current();
+					if (config.getLogDir().isEmpty())
+						c = DISABLED;
+					else {
+						c = new CaptureLog(new File(config.getLogDir()), config.getCaptureQueue(), config.getCaptureMaxSize(), config.getCaptureMaxAge(), config.isCaptureGzip(), config.getCaptureSample());
+						final CaptureLog log = c;
+						Runtime.getRuntime().addShutdownHook(new Thread() {
+							@Override
+							public void run() {
+								log.close();
+							}
+						});
+					}
+					instance = c;
+				}
+			}
+		return c;
+	}
+
+	/**
+	 * Decides whether the next exchange of the given kind should be captured. Called before the response is read, so the body is only kept when it will be written.
+	 *
+	 * @param logName kind of page, as passed to the {@link HTTPSDownloader}
+	 */
+	public boolean sample(String logName) {
+		if (queue == null || closed)
+			return false;
+		if (sample == 1 || !"popup".equals(logName))
+			return true;
+		AtomicLong counter = counters.get(logName);
+		if (counter == null)
+			counter = counters.computeIfAbsent(logName, new Function<String, AtomicLong>() {
+				@Override
+				public AtomicLong apply(String k) {
+					return new AtomicLong();
+				}
+			});
+		return counter.getAndIncrement() % sample == 0;
+	}
+
+	/**
+	 * Queues a record to be written. Never blocks : if the queue is full the record is dropped.
+	 */
+	public void capture(Record record) {
+		if (queue == null || closed)
+			return;
+		if (!queue.offer(record))
+			dropped.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of records dropped because the queue was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * Writes the records still in the queue and closes the current file.
+	 */
+	public void close() {
+		if (writer == null || closed)
+			return;
+		closed = true;
+		writer.interrupt();
+		try {
+			writer.join(5000);
+		} catch (InterruptedException ignore) {
+		}
+	}
+
+	private void writeLoop() {
+		while (!closed || !queue.isEmpty()) {
+			try {
+				Record record = closed ? queue.poll() : queue.poll(1, TimeUnit.SECONDS);
+				if (record != null) {
+					write(record);
+					written.incrementAndGet();
+				}
+				if (out != null && (queue.isEmpty() || record == null)) {
+					out.flush();
+					if (System.currentTimeMillis() - openedAt > maxAge)
+						rotate();
+				}
+			} catch (InterruptedException ignore) {
+				// close() was called, write what's left
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Error while writing capture file", e);
+				closeFile();
+			}
+		}
+		closeFile();
+	}
+
+	private void write(Record record) throws IOException {
+		if (out == null || file.count > maxSize || System.currentTimeMillis() - openedAt > maxAge)
+			rotate();
+		out.write("<!--Session: " + record.session +
+				"\nDate: " + new Date(record.timestamp) +
+				"\nRequest URL: " + Redactor.url(record.url) +
+				"\nRequest Method: " + record.method +
+				"\nStatus Code: " + record.code +
+				"\nRequest Headers\n");
+		writeHeaders(record.requestHeaders, true);
+		if (record.data != null)
+			out.write("With POST Data : " + Redactor.data(record.data) + "\n");
+		out.write("\nResponse Headers\n");
+		writeHeaders(record.responseHeaders, false);
+		out.write("\nContent : \n\n-->\n");
+		out.flush();
+		if (record.body != null) {
+			file.getStream().write(record.body, 0, record.length);
+			out.write('\n');
+		}
+		log.log(record.code == 200 ? Level.FINE : Level.INFO, "Captured " + record.name + " (" + Redactor.url(record.url) + ")");
+	}
+
+	private void writeHeaders(Map<String, List<String>> headers, boolean skipNull) throws IOException {
+		if (headers == null)
+			return;
+		for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+			StringBuilder sb = new StringBuilder("\t");
+			if (e.getKey() != null)
+				sb.append(e.getKey()).append(": ");
+			int n = 0;
+			for (String val : e.getValue())
+				if (val != null || !skipNull) {
+					val = Redactor.header(e.getKey(), val);
+					sb.append(n++ > 0 ? "," + val : val);
+				}
+			out.write(sb.append('\n').toString());
+		}
+	}
+
+	private void rotate() throws IOException {
+		closeFile();
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can't create capture directory " + directory);
+		String name = "capture_" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + (gzip ? ".log.gz" : ".log");
+		File f = new File(directory, name);
+		for (int i = 1; f.exists(); i++)
+			f = new File(directory, name.replace("capture_", "capture_" + i + "_"));
+		file = new CountingOutputStream(new FileOutputStream(f));
+		if (gzip)
+			file.setStream(new GZIPOutputStream(file.getStream()));
+		out = new BufferedWriter(new OutputStreamWriter(file.getStream(), StandardCharsets.UTF_8));
+		openedAt = System.currentTimeMillis();
+		log.fine("Capturing to " + f);
+	}
+
+	private void closeFile() {
+		if (out != null)
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Error while closing capture file", e);
+			}
+		out = null;
+		file = null;
+	}
+
+	/**
+	 * Counts the bytes actually written to the file, after compression.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+		private OutputStream stream = this;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		/**
+		 * @return the stream the content should be written to, which is either this one or the compressing stream on top of it
+		 */
+		OutputStream getStream() {
+			return stream;
+		}
+
+		void setStream(OutputStream stream) {
+			this.stream = stream;
+		}
+	}
+
+	/**
+	 * A captured exchange. It only holds references to data the downloader already has, the formatting is left to the writer thread.
+	 */
+	public static class Record {
+		private final long timestamp = System.currentTimeMillis();
+		private final String session, name, url, method, data;
+		private final int code, length;
+		private final Map<String, List<String>> requestHeaders, responseHeaders;
+		private final byte[] body;
+
+		/**
+		 * @param session name of the session
+		 * @param name    kind of page, as passed to the downloader
+		 * @param body    raw response body, may be null or only the beginning of the body if the rest wasn't read
+		 * @param length  number of bytes of the body to write
+		 */
+		public Record(String session, String name, String url, String method, int code, Map<String, List<String>> requestHeaders, Map<String, List<String>> responseHeaders, String data, byte[] body, int length) {
+			this.session = session;
+			this.name = name;
+			this.url = url;
+			this.method = method;
+			this.code = code;
+			this.requestHeaders = requestHeaders;
+			this.responseHeaders = responseHeaders;
+			this.data = data;
+			this.body = body;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package eu.neurovertex.yacapd;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-host circuit breaker shared by all the sessions of the JVM. After "breakerThreshold" consecutive failures the circuit opens and requests to the host fail immediately for "breakerOpen" milliseconds. Then a single request is let through (half-open) : if it succeeds the circuit closes, otherwise it opens again.
+ * A request let through that ends without telling whether the host works (cancelled, or never sent) must {@link #release()} the circuit, and a trial that doesn't end within "breakerOpen" milliseconds counts as failed, so that the circuit can't stay half-open forever.
+ * This keeps hundreds of sessions from hammering a portal that is down, and lets it recover before they all come back.
+ *
+ * @author NeuroVertex
+ */
+public class CircuitBreaker {
+	private static final Logger log = Logger.getLogger(CircuitBreaker.class.getName());
+	private static final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+	private final String host;
+	private final int threshold;
+	private final long openTime;
+	private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile long openedAt, trialAt;
+
+	public CircuitBreaker(String host, int threshold, long openTime) {
+		this.host = host;
+		this.threshold = threshold;
+		this.openTime = openTime;
+	}
+
+	/**
+	 * @return the breaker of the given host, configured with the "breakerThreshold" and "breakerOpen" settings
+	 */
+	public static CircuitBreaker forHost(String host) {
+		CircuitBreaker breaker = breakers.get(host);
+		if (breaker == null) {
+			final Config config = Config.current();
+			breaker = breakers.computeIfAbsent(host, new Function<String, CircuitBreaker>() {
+				@Override
+				public CircuitBreaker apply(String h) {
+					return new CircuitBreaker(h, config.getBreakerThreshold(), config.getBreakerOpen());
+				}
+			});
+		}
+		return breaker;
+	}
+
+	/**
+	 * Lets every open circuit try a request right away. Used when the network changed, since the failures that opened them may not happen anymore.
+	 */
+	public static void retryAll() {
+		for (CircuitBreaker breaker : breakers.values())
+			if (breaker.state.get() == State.OPEN)
+				breaker.openedAt = 0;
+	}
+
+	/**
+	 * @return true if a request to the host can be made. When the circuit is half-open, only the first caller gets true until the result of its request is known.
+	 */
+	public boolean allowRequest() {
+		switch (state.get()) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				long now = System.currentTimeMillis();
+				if (now - openedAt >= openTime && state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+					trialAt = now;
+					log.info("Circuit to " + host + " half-open, trying one request");
+					return true;
+				}
+				return false;
+			default:
+				if (System.currentTimeMillis() - trialAt >= openTime && state.compareAndSet(State.HALF_OPEN, State.OPEN)) {
+					openedAt = System.currentTimeMillis();
+					log.warning("Circuit to " + host + " opened again, its trial request took more than " + openTime + "ms");
+				}
+				return false;
+		}
+	}
+
+	/**
+	 * Ends a request that was let through without a result, the next one being let through in its place if it was the trial of a half-open circuit.
+	 */
+	public void release() {
+		if (state.get() == State.HALF_OPEN) {
+			openedAt = 0;
+			if (state.compareAndSet(State.HALF_OPEN, State.OPEN) && log.isLoggable(Level.FINE))
+				log.fine("Trial request to " + host + " ended without a result");
+		}
+	}
+
+	public void onSuccess() {
+		failures.set(0);
+		if (state.getAndSet(State.CLOSED) != State.CLOSED)
+			log.info("Circuit to " + host + " closed");
+	}
+
+	public void onFailure() {
+		int count = failures.incrementAndGet();
+		State current = state.get();
+		if (current == State.HALF_OPEN || (current == State.CLOSED && count >= threshold)) {
+			if (state.compareAndSet(current, State.OPEN)) {
+				openedAt = System.currentTimeMillis();
+				log.warning("Circuit to " + host + " opened after " + count + " failures");
+			}
+		}
+	}
+
+	/**
+	 * @return the time in milliseconds before the circuit lets a request through again, 0 if it isn't open
+	 */
+	public long getRemainingOpenTime() {
+		return state.get() == State.OPEN ? Math.max(0, openTime - (System.currentTimeMillis() - openedAt)) : 0;
+	}
+
+	public State getState() {
+		return state.get();
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+}
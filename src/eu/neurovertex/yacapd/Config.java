@@ -0,0 +1,604 @@
+package eu.neurovertex.yacapd;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+/**
+ * Settings of the daemon, gathered once into an immutable snapshot so that the sessions read plain fields instead of going through the Preferences for every request.
+ * <p/>
+ * Each setting is looked up, by order of priority, in the command-line arguments ("--key=value"), the configuration file (a properties file, given with "--config=path", ".yacapd.properties" in the user's home directory by default), the package's Preferences node, then the defaults below.
+ * The snapshot is rebuilt whenever a preference of the node changes or the configuration file is modified, and published through a volatile reference : every session sees the new values at its next step. The settings used to build long-lived objects (such as "threads", "tick", or the capture log's) only apply on the next start.
+ *
+ * @author NeuroVertex
+ */
+public final class Config {
+	private static final Logger log = Logger.getLogger(Config.class.getName());
+	private static final Preferences prefs = Preferences.userNodeForPackage(Config.class);
+	public static final String DEFAULT_USER_AGENT = "Mozilla/5.0 (Windows NT 6.2; WOW64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/31.0.1629.2 Safari/537.36";
+	private static volatile Config current;
+	// Guarded by Config.class
+	private static Map<String, String> arguments = Collections.emptyMap();
+	private static Path file;
+	private static Thread watcher;
+	private static boolean listening = false;
+
+	private final int delay, errorDelay, maxRedirects, jitter, tick, threads, retryMax, breakerThreshold, captureQueue, captureSample, eventQueue, metricsPort, tlsSessionCache, tlsSessionTimeout, dnsTimeout, connectTimeout, tlsTimeout, firstByteTimeout;
+	private final long tokenTtl, redirectTtl, networkPoll, breakerOpen, captureMaxSize, captureMaxAge, storeFlush, maxBody, tlsPrewarm, probeRefresh, requestTimeout, shutdownTimeout;
+	private final Map<String, Long> routeMaxBody;
+	private final Map<String, Set<String>> tlsPins;
+	private final boolean asyncTransport, captureGzip;
+	private final String userAgent, logDir, eventLog, controlSocket, sessionStore, tlsTrustStore, tlsTrustStorePassword, probeUrl, casUrl, portalUrl;
+	private final ConnectivityProbe.Mode probe;
+	private final Level eventLevel;
+	private final PortalProfile profile;
+	private final BackoffRetryPolicy retryPolicy;
+
+	private Config(Source source) {
+		delay = source.getInt("delay", 5000);
+		errorDelay = source.getInt("errordelay", 1000);
+		userAgent = source.get("UserAgent", DEFAULT_USER_AGENT);
+		asyncTransport = "async".equalsIgnoreCase(source.get("transport", "sync"));
+		maxRedirects = source.getInt("maxRedirects", 5);
+		tokenTtl = source.getLong("tokenTtl", 600) * 1000;
+		redirectTtl = source.getLong("redirectTtl", 3600) * 1000;
+		jitter = source.getInt("jitter", 10);
+		networkPoll = source.getLong("networkPoll", 1000);
+		tick = source.getInt("tick", 10);
+		threads = source.getInt("threads", Runtime.getRuntime().availableProcessors());
+		retryMax = source.getInt("retryMax", 5);
+		retryPolicy = new BackoffRetryPolicy(source.getLong("retryBase", 1000), source.getLong("retryCap", 60000), retryMax, source.getLong("retryDeadline", 120000));
+		breakerThreshold = source.getInt("breakerThreshold", 5);
+		breakerOpen = source.getLong("breakerOpen", 30000);
+		dnsTimeout = source.getInt("dnsTimeout", 5000);
+		connectTimeout = source.getInt("connectTimeout", 10000);
+		tlsTimeout = source.getInt("tlsTimeout", 10000);
+		firstByteTimeout = source.getInt("firstByteTimeout", 15000);
+		requestTimeout = source.getLong("requestTimeout", 30000);
+		shutdownTimeout = source.getLong("shutdownTimeout", 5000);
+		logDir = source.get("logDir", "");
+		captureQueue = source.getInt("captureQueue", 1024);
+		captureMaxSize = source.getLong("captureMaxSize", 10 * 1024 * 1024);
+		captureMaxAge = source.getLong("captureMaxAge", 3600) * 1000;
+		captureGzip = source.getBoolean("captureGzip", false);
+		captureSample = source.getInt("captureSample", 1);
+		eventLog = source.get("eventLog", "");
+		eventQueue = source.getInt("eventQueue", 4096);
+		Level level = Level.INFO;
+		try {
+			level = Level.parse(source.get("eventLevel", "INFO").toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			log.warning("Unknown event level \"" + source.get("eventLevel", "") + "\", using INFO");
+		}
+		eventLevel = level;
+		metricsPort = source.getInt("metricsPort", 0);
+		controlSocket = source.get("controlSocket", "");
+		sessionStore = source.get("sessionStore", "");
+		storeFlush = source.getLong("storeFlush", 200);
+		maxBody = source.getLong("maxBody", 1024 * 1024);
+		routeMaxBody = source.getLongs("maxBody.");
+		tlsSessionCache = source.getInt("tlsSessionCache", 256);
+		tlsSessionTimeout = source.getInt("tlsSessionTimeout", 86400);
+		tlsTrustStore = source.get("tlsTrustStore", "");
+		tlsTrustStorePassword = source.get("tlsTrustStorePassword", "");
+		tlsPrewarm = source.getLong("tlsPrewarm", 240) * 1000;
+		Map<String, Set<String>> pins = new HashMap<>();
+		for (Map.Entry<String, String> e : source.getStrings("tlsPin.").entrySet()) {
+			Set<String> set = new HashSet<>();
+			for (String pin : e.getValue().split(","))
+				if (!pin.trim().isEmpty())
+					set.add(pin.trim());
+			pins.put(e.getKey().toLowerCase(Locale.ROOT), Collections.unmodifiableSet(set));
+		}
+		tlsPins = Collections.unmodifiableMap(pins);
+		probe = ConnectivityProbe.Mode.parse(source.get("probe", "popup"));
+		probeUrl = source.get("probeUrl", "https://www.gstatic.com/generate_204");
+		probeRefresh = source.getLong("probeRefresh", 60000);
+		casUrl = trimSlash(source.get("casUrl", YacapPageProcessor.DEFAULT_CAS_URL));
+		portalUrl = trimSlash(source.get("portalUrl", YacapPageProcessor.DEFAULT_PORTAL_URL));
+		String path = source.get("profile", "");
+		PortalProfile loaded = null;
+		if (!path.isEmpty())
+			try {
+				loaded = PortalProfile.load(path, casUrl, portalUrl);
+			} catch (IOException | IllegalArgumentException e) {
+				log.log(Level.WARNING, "Couldn't load the portal profile " + path + ", using the built-in one", e);
+			}
+		profile = loaded != null ? loaded : PortalProfile.crous(casUrl, portalUrl);
+	}
+
+	private static String trimSlash(String url) {
+		return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+	}
+
+	/**
+	 * @return the current settings. The first call builds them from the Preferences and the default configuration file, unless {@link #load(String[])} was called before
+	 */
+	public static Config current() {
+		Config c = current;
+		if (c == null)
+			synchronized (Config.class) {
+				if ((c = current) == null)
+					c = reload();
+			}
+		return c;
+	}
+
+	/**
+	 * Sets the command-line arguments and loads the settings, then starts watching the configuration file.
+	 *
+	 * @param args arguments of the form "--key=value"
+	 * @throws IllegalArgumentException if an argument isn't of that form
+	 */
+	public static synchronized Config load(String[] args) {
+		Map<String, String> map = new HashMap<>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (!arg.startsWith("--") || eq < 3)
+				throw new IllegalArgumentException("Invalid argument \"" + arg + "\", expected --key=value");
+			map.put(arg.substring(2, eq), arg.substring(eq + 1));
+		}
+		arguments = Collections.unmodifiableMap(map);
+		Config c = reload();
+		watch();
+		return c;
+	}
+
+	/**
+	 * Rebuilds the snapshot from the sources and publishes it.
+	 */
+	public static synchronized Config reload() {
+		String path = arguments.get("config");
+		file = path != null ? Paths.get(path) : Paths.get(System.getProperty("user.home"), ".yacapd.properties");
+		Properties properties = new Properties();
+		if (Files.isRegularFile(file))
+			try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				properties.load(in);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Couldn't read the configuration file " + file, e);
+			}
+		else if (path != null)
+			log.warning("Configuration file " + file + " not found");
+		if (!listening) {
+			listening = true;
+			prefs.addPreferenceChangeListener(new PreferenceChangeListener() {
+				@Override
+				public void preferenceChange(PreferenceChangeEvent evt) {
+					reload();
+				}
+			});
+		}
+		Config c = new Config(new Source(arguments, properties));
+		current = c;
+		log.fine("Configuration loaded");
+		return c;
+	}
+
+	/**
+	 * Starts a thread reloading the snapshot when the configuration file changes.
+	 */
+	private static void watch() {
+		if (watcher != null)
+			return;
+		final Path dir = file.toAbsolutePath().getParent();
+		if (dir == null || !Files.isDirectory(dir))
+			return;
+		final WatchService service;
+		try {
+			service = dir.getFileSystem().newWatchService();
+			dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Can't watch " + dir + ", changes to the configuration file won't be applied until restart", e);
+			return;
+		}
+		final Path name = file.getFileName();
+		watcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						WatchKey key = service.take();
+						boolean changed = false;
+						for (WatchEvent<?> event : key.pollEvents())
+							if (name.equals(event.context()) || event.kind() == StandardWatchEventKinds.OVERFLOW)
+								changed = true;
+						key.reset();
+						if (changed) {
+							log.info("Configuration file changed, reloading");
+							reload();
+						}
+					}
+				} catch (InterruptedException | ClosedWatchServiceException e) {
+					log.fine("Stopped watching the configuration file");
+				}
+			}
+		}, "yacap-config");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * @return time in milliseconds between two popup refreshes
+	 */
+	public int getDelay() {
+		return delay;
+	}
+
+	/**
+	 * @return time in milliseconds before retrying a failed step
+	 */
+	public int getErrorDelay() {
+		return errorDelay;
+	}
+
+	public String getUserAgent() {
+		return userAgent;
+	}
+
+	/**
+	 * @return true if the "transport" setting is "async"
+	 */
+	public boolean isAsyncTransport() {
+		return asyncTransport;
+	}
+
+	public int getMaxRedirects() {
+		return maxRedirects;
+	}
+
+	/**
+	 * @return time in milliseconds login tokens are kept
+	 */
+	public long getTokenTtl() {
+		return tokenTtl;
+	}
+
+	/**
+	 * @return time in milliseconds learned redirects are kept
+	 */
+	public long getRedirectTtl() {
+		return redirectTtl;
+	}
+
+	/**
+	 * @return width in percent of the random window around the delays of the sessions
+	 */
+	public int getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * @return time in milliseconds between two polls of the network configuration, 0 if it isn't polled
+	 */
+	public long getNetworkPoll() {
+		return networkPoll;
+	}
+
+	/**
+	 * @return duration in milliseconds of a tick of the timer wheel
+	 */
+	public int getTick() {
+		return tick;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @return the policy built from the "retryBase", "retryCap", "retryMax" and "retryDeadline" settings
+	 */
+	public BackoffRetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	public int getBreakerThreshold() {
+		return breakerThreshold;
+	}
+
+	/**
+	 * @return time in milliseconds an open circuit stays open
+	 */
+	public long getBreakerOpen() {
+		return breakerOpen;
+	}
+
+	/**
+	 * @return time in milliseconds a request waits for the address of its host, 0 for no limit
+	 */
+	public int getDnsTimeout() {
+		return dnsTimeout;
+	}
+
+	/**
+	 * @return time in milliseconds a TCP connection may take to open, 0 for no limit
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * @return time in milliseconds a TLS handshake may take, 0 for no limit
+	 */
+	public int getTlsTimeout() {
+		return tlsTimeout;
+	}
+
+	/**
+	 * @return time in milliseconds a response may take to start once the request is sent, and the longest pause in a body, 0 for no limit
+	 */
+	public int getFirstByteTimeout() {
+		return firstByteTimeout;
+	}
+
+	/**
+	 * @return time in milliseconds a request may take in total, redirects included, 0 for no limit
+	 */
+	public long getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	/**
+	 * @return time in milliseconds the sessions are given to exit when the daemon stops
+	 */
+	public long getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
+	/**
+	 * @return directory of the capture files, empty if captures are disabled
+	 */
+	public String getLogDir() {
+		return logDir;
+	}
+
+	public int getCaptureQueue() {
+		return captureQueue;
+	}
+
+	public long getCaptureMaxSize() {
+		return captureMaxSize;
+	}
+
+	/**
+	 * @return age in milliseconds after which a capture file is rotated
+	 */
+	public long getCaptureMaxAge() {
+		return captureMaxAge;
+	}
+
+	public boolean isCaptureGzip() {
+		return captureGzip;
+	}
+
+	public int getCaptureSample() {
+		return captureSample;
+	}
+
+	/**
+	 * @return path of the file the {@link EventLog} writes JSON lines to, empty if the events go to the regular log
+	 */
+	public String getEventLog() {
+		return eventLog;
+	}
+
+	/**
+	 * @return lowest level of the events written to the event log file
+	 */
+	public Level getEventLevel() {
+		return eventLevel;
+	}
+
+	public int getEventQueue() {
+		return eventQueue;
+	}
+
+	/**
+	 * @return port of the metrics HTTP server, 0 if it is disabled
+	 */
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+
+	/**
+	 * @return path of the control socket, empty if it is disabled
+	 */
+	public String getControlSocket() {
+		return controlSocket;
+	}
+
+	/**
+	 * @return path of the session store, empty for the default one
+	 */
+	public String getSessionStore() {
+		return sessionStore;
+	}
+
+	/**
+	 * @return time in milliseconds the saves of sessions are held to be written together
+	 */
+	public long getStoreFlush() {
+		return storeFlush;
+	}
+
+	/**
+	 * @param route kind of page, as passed to the {@link HTTPSDownloader}
+	 * @return the maximum size in bytes of the decoded body kept for a page of that kind : the "maxBody.route" setting if there is one, otherwise "maxBody" (1MB)
+	 */
+	public long getMaxBody(String route) {
+		Long max = routeMaxBody.get(route);
+		return max != null ? max : maxBody;
+	}
+
+	/**
+	 * @return maximum number of TLS sessions kept for resumption, only applied on start
+	 */
+	public int getTlsSessionCache() {
+		return tlsSessionCache;
+	}
+
+	/**
+	 * @return time in seconds a TLS session is kept for resumption, only applied on start
+	 */
+	public int getTlsSessionTimeout() {
+		return tlsSessionTimeout;
+	}
+
+	/**
+	 * @return path of the trust store checking the certificates, empty for the JVM's one. Only applied on start
+	 */
+	public String getTlsTrustStore() {
+		return tlsTrustStore;
+	}
+
+	public String getTlsTrustStorePassword() {
+		return tlsTrustStorePassword;
+	}
+
+	/**
+	 * @return time in milliseconds without a handshake to the authentication host after which the connected sessions negotiate a fresh TLS session with it, 0 to never do it
+	 */
+	public long getTlsPrewarm() {
+		return tlsPrewarm;
+	}
+
+	/**
+	 * @param host name of a host
+	 * @return the base64-encoded SHA-256 hashes of the public keys pinned for the host by the "tlsPin.host" setting, empty if it isn't pinned
+	 */
+	public Set<String> getTlsPins(String host) {
+		Set<String> pins = tlsPins.get(host.toLowerCase(Locale.ROOT));
+		return pins != null ? pins : Collections.<String>emptySet();
+	}
+
+	/**
+	 * @return how the connected sessions check that they are still authorized between two popup refreshes
+	 */
+	public ConnectivityProbe.Mode getProbe() {
+		return probe;
+	}
+
+	/**
+	 * @return URL answering 204 used by the "nocontent" probe
+	 */
+	public String getProbeUrl() {
+		return probeUrl;
+	}
+
+	/**
+	 * @return maximum time in milliseconds between two popup refreshes when the sessions are probed in between
+	 */
+	public long getProbeRefresh() {
+		return probeRefresh;
+	}
+
+	/**
+	 * @return base URL of the CAS the sessions log in with, only applied to the sessions created afterwards
+	 */
+	public String getCasUrl() {
+		return casUrl;
+	}
+
+	/**
+	 * @return base URL of the captive portal, only applied to the sessions created afterwards
+	 */
+	public String getPortalUrl() {
+		return portalUrl;
+	}
+
+	/**
+	 * @return the description of the portal, loaded from the file given with "profile" or the built-in CROUS one, only applied to the sessions created afterwards
+	 */
+	public PortalProfile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * Looks the settings up in the sources, by order of priority. Malformed values are replaced by the default.
+	 */
+	private static final class Source {
+		private final Map<String, String> arguments;
+		private final Properties file;
+
+		private Source(Map<String, String> arguments, Properties file) {
+			this.arguments = arguments;
+			this.file = file;
+		}
+
+		String get(String key, String def) {
+			String value = arguments.get(key);
+			if (value == null)
+				value = file.getProperty(key);
+			if (value == null)
+				value = prefs.get(key, null);
+			return value != null ? value.trim() : def;
+		}
+
+		int getInt(String key, int def) {
+			return (int) getLong(key, def);
+		}
+
+		long getLong(String key, long def) {
+			String value = get(key, null);
+			if (value == null)
+				return def;
+			try {
+				return Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				log.warning("Invalid value \"" + value + "\" for " + key + ", using " + def);
+				return def;
+			}
+		}
+
+		/**
+		 * @return the values of all the settings whose key starts with the given prefix, by key without the prefix
+		 */
+		Map<String, Long> getLongs(String prefix) {
+			Map<String, Long> map = new HashMap<>();
+			for (String key : keys(prefix))
+				map.put(key.substring(prefix.length()), getLong(key, 0));
+			return Collections.unmodifiableMap(map);
+		}
+
+		/**
+		 * @return the values of all the settings whose key starts with the given prefix, by key without the prefix
+		 */
+		Map<String, String> getStrings(String prefix) {
+			Map<String, String> map = new HashMap<>();
+			for (String key : keys(prefix))
+				map.put(key.substring(prefix.length()), get(key, ""));
+			return map;
+		}
+
+		private Set<String> keys(String prefix) {
+			Set<String> keys = new HashSet<>();
+			for (String key : arguments.keySet())
+				if (key.startsWith(prefix))
+					keys.add(key);
+			for (String key : file.stringPropertyNames())
+				if (key.startsWith(prefix))
+					keys.add(key);
+			try {
+				for (String key : prefs.keys())
+					if (key.startsWith(prefix))
+						keys.add(key);
+			} catch (BackingStoreException e) {
+				log.log(Level.WARNING, "Couldn't list the preferences", e);
+			}
+			return keys;
+		}
+
+		boolean getBoolean(String key, boolean def) {
+			String value = get(key, null);
+			return value == null ? def : Boolean.parseBoolean(value);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package eu.neurovertex.yacapd;
+
+import org.jsoup.nodes.Document;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Cheap check that a connected session is still authorized, made instead of downloading the whole popup at every refresh. The popup is still refreshed every "probeRefresh" milliseconds (60000) in case the portal needs it to keep the session alive, and right away whenever a probe looks suspicious.
+ * <p/>
+ * The kind of probe is chosen with the "probe" setting :
+ * <ul>
+ * <li>popup : no probe, the popup is downloaded every time (the default)</li>
+ * <li>head : a HEAD request to the popup, which must answer 200 without redirecting</li>
+ * <li>conditional : a GET of the popup with the validators (ETag, Last-Modified) of the last one, which must answer 304. A 200 is checked like a popup refresh</li>
+ * <li>nocontent : a GET of "probeUrl", a page answering 204 that the captive portal replaces when the session isn't authorized</li>
+ * </ul>
+ * Redirects are never followed by the probes : a redirect is what the portal answers to a session it doesn't know.
+ *
+ * @author NeuroVertex
+ */
+public class ConnectivityProbe implements PageHandler {
+	private static final Logger log = Logger.getLogger(ConnectivityProbe.class.getName());
+
+	private final YacapPageProcessor processor;
+	private volatile String etag, lastModified;
+	private volatile long lastRefresh = 0;
+
+	/**
+	 * @param processor session probed, to which the popups downloaded by the conditional probe are handed
+	 */
+	public ConnectivityProbe(YacapPageProcessor processor) {
+		this.processor = processor;
+	}
+
+	/**
+	 * @return true if the next check must be a full popup refresh, because there is no probe, the last refresh is too old or the last probe was suspicious
+	 */
+	public boolean needsRefresh() {
+		Config config = Config.current();
+		return config.getProbe() == Mode.POPUP || System.currentTimeMillis() - lastRefresh >= config.getProbeRefresh();
+	}
+
+	/**
+	 * Notes a successful popup refresh.
+	 */
+	public void refreshed() {
+		lastRefresh = System.currentTimeMillis();
+	}
+
+	/**
+	 * Sends the probe.
+	 *
+	 * @param popupURL request of the popup
+	 * @return a future completed with true if the session looks authorized. Otherwise, the popup is refreshed at the next check
+	 */
+	public CompletableFuture<Boolean> probe(HTTPSDownloader downloader, YacapPageProcessor.HTTPRequest popupURL) {
+		final Mode mode = Config.current().getProbe();
+		CompletableFuture<Integer> code;
+		switch (mode) {
+			case HEAD:
+				code = downloader.headUrlAsync(popupURL, "probe", this);
+				break;
+			case CONDITIONAL:
+				Map<String, String> headers = new HashMap<>(popupURL.getParameters());
+				if (etag != null)
+					headers.put("If-None-Match", etag);
+				if (lastModified != null)
+					headers.put("If-Modified-Since", lastModified);
+				code = downloader.getUrlAsync(popupURL.getUrl(), headers, "probe", this);
+				break;
+			case NO_CONTENT:
+				code = downloader.getUrlAsync(Config.current().getProbeUrl(), null, "probe", this);
+				break;
+			default:
+				return CompletableFuture.completedFuture(false);
+		}
+		return code.thenApply(new Function<Integer, Boolean>() {
+			@Override
+			public Boolean apply(Integer c) {
+				boolean ok;
+				switch (mode) {
+					case CONDITIONAL:
+						// A full popup was downloaded and checked by the processor, which has left CONNECTED if it wasn't the connected one
+						if (c == 200 && processor.getCurrentState() == YacapPageProcessor.YacapState.CONNECTED)
+							refreshed();
+						ok = c == 304 || c == 200;
+						break;
+					case NO_CONTENT:
+						ok = c == 204;
+						break;
+					default:
+						ok = c == 200;
+				}
+				if (!ok) {
+					log.info("Suspicious " + mode.name().toLowerCase(Locale.ROOT) + " probe (" + c + ") for " + processor.getName() + ", checking the popup");
+					lastRefresh = 0;
+				}
+				return ok;
+			}
+		});
+	}
+
+	@Override
+	public boolean processHeaders(int code, Map<String, List<String>> headers) {
+		if (code != 200)
+			return false;
+		// Only the conditional probe reads the body of the popup, the validators are those of the popup it checked
+		String tag = first(headers, "ETag"), modified = first(headers, "Last-Modified");
+		if (tag != null || modified != null) {
+			etag = tag;
+			lastModified = modified;
+		}
+		return Config.current().getProbe() == Mode.CONDITIONAL;
+	}
+
+	private static String first(Map<String, List<String>> headers, String name) {
+		for (Map.Entry<String, List<String>> e : headers.entrySet())
+			if (name.equalsIgnoreCase(e.getKey()) && !e.getValue().isEmpty())
+				return e.getValue().get(0);
+		return null;
+	}
+
+	@Override
+	public boolean needsDocument() {
+		return processor.needsDocument();
+	}
+
+	@Override
+	public void processDocument(Document doc) {
+		processor.processDocument(doc);
+	}
+
+	@Override
+	public void processBodyTag(BodyTagMatcher body) {
+		processor.processBodyTag(body);
+	}
+
+	/**
+	 * Kinds of probes, see the description of the class.
+	 */
+	public enum Mode {
+		POPUP, HEAD, CONDITIONAL, NO_CONTENT;
+
+		/**
+		 * @return the mode named by the "probe" setting, POPUP if it is unknown
+		 */
+		static Mode parse(String name) {
+			switch (name.toLowerCase(Locale.ROOT)) {
+				case "head":
+					return HEAD;
+				case "conditional":
+					return CONDITIONAL;
+				case "nocontent":
+					return NO_CONTENT;
+				case "popup":
+					return POPUP;
+				default:
+					log.warning("Unknown probe \"" + name + "\", refreshing the popup instead");
+					return POPUP;
+			}
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package eu.neurovertex.yacapd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Incremental decoder of the Content-Encoding of a response. Unlike {@link java.util.zip.GZIPInputStream}, it is fed the bytes as they arrive, so the same decoder serves the blocking transport, which reads a stream, and the asynchronous one, which is handed buffers.
+ * gzip (including its header and trailer, whose checksum is verified) and deflate (with or without the zlib wrapper, since servers disagree on what "deflate" means) are supported. The decoded bytes are written to a pooled direct buffer and handed to a {@link Sink}.
+ * A decoder is used for a single response, and {@link #end()} must be called once it is done.
+ *
+ * @author NeuroVertex
+ */
+final class ContentDecoder {
+	private static final Logger log = Logger.getLogger(ContentDecoder.class.getName());
+	/**
+	 * Value of the Accept-Encoding header of the requests, the encodings this class decodes
+	 */
+	static final String ACCEPT_ENCODING = "gzip, deflate";
+	private static final int IDENTITY = 0, GZIP = 1, DEFLATE = 2;
+	private static final int HEADER = 0, EXTRA_LENGTH = 1, EXTRA = 2, NAME = 3, COMMENT = 4, HEADER_CRC = 5, BODY = 6, TRAILER = 7, DONE = 8;
+	private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+	private final int type;
+	private final byte[] header = new byte[10];
+	private int collected = 0, state = HEADER, flags, skip;
+	private Inflater inflater;
+	private CRC32 crc;
+	private ByteBuffer out;
+	private long written = 0;
+
+	private ContentDecoder(int type) {
+		this.type = type;
+		if (type == GZIP)
+			crc = new CRC32();
+	}
+
+	/**
+	 * @param encoding value of the Content-Encoding header, null if there is none
+	 * @return a decoder for that encoding. Unknown encodings, which the server shouldn't use since they weren't in the request's {@link #ACCEPT_ENCODING}, are passed through as they are
+	 */
+	static ContentDecoder forEncoding(String encoding) {
+		if (encoding == null || encoding.isEmpty())
+			return new ContentDecoder(IDENTITY);
+		switch (encoding.trim().toLowerCase(Locale.ROOT)) {
+			case "gzip":
+			case "x-gzip":
+				return new ContentDecoder(GZIP);
+			case "deflate":
+				return new ContentDecoder(DEFLATE);
+			case "identity":
+				return new ContentDecoder(IDENTITY);
+			default:
+				log.warning("Unsupported content encoding \"" + encoding + "\", reading the body as it is");
+				return new ContentDecoder(IDENTITY);
+		}
+	}
+
+	/**
+	 * Decodes the next bytes of the body. The input's position is advanced past the bytes consumed.
+	 *
+	 * @return false if no more input is needed, because the encoded stream is over or the sink asked to stop
+	 * @throws ZipException if the data is corrupted
+	 */
+	boolean decode(ByteBuffer input, Sink sink) throws IOException {
+		if (type == IDENTITY)
+			return sink.accept(input);
+		while (input.hasRemaining()) {
+			switch (state) {
+				case HEADER:
+					if (type == DEFLATE) {
+						// A zlib stream starts with a header whose compression method is 8 and that is a multiple of 31. Otherwise, the data is raw deflate
+						if (!collect(input, 2))
+							return true;
+						boolean zlib = (header[0] & 0x0F) == 8 && (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+						inflater = new Inflater(!zlib);
+						state = BODY;
+						if (!inflate(ByteBuffer.wrap(header, 0, 2), sink))
+							return false;
+					} else {
+						if (!collect(input, 10))
+							return true;
+						if ((header[0] & 0xFF) != 0x1F || (header[1] & 0xFF) != 0x8B || header[2] != 8)
+							throw new ZipException("Not in gzip format");
+						flags = header[3] & 0xFF;
+						state = next(HEADER);
+					}
+					break;
+				case EXTRA_LENGTH:
+					if (!collect(input, 2))
+						return true;
+					skip = (header[0] & 0xFF) | (header[1] & 0xFF) << 8;
+					state = skip > 0 ? EXTRA : next(EXTRA);
+					break;
+				case EXTRA:
+					int n = Math.min(skip, input.remaining());
+					input.position(input.position() + n);
+					if ((skip -= n) == 0)
+						state = next(EXTRA);
+					break;
+				case NAME:
+				case COMMENT:
+					if (input.get() == 0) // Zero-terminated strings
+						state = next(state);
+					break;
+				case HEADER_CRC:
+					if (!collect(input, 2))
+						return true;
+					state = next(HEADER_CRC);
+					break;
+				case BODY:
+					if (inflater == null)
+						inflater = new Inflater(true);
+					if (!inflate(input, sink))
+						return false;
+					break;
+				case TRAILER:
+					if (!collect(input, 8))
+						return true;
+					if (littleEndian(0) != crc.getValue() || littleEndian(4) != (written & 0xFFFFFFFFL))
+						throw new ZipException("Corrupt gzip trailer");
+					state = DONE;
+					break;
+				default: // Anything after the end of the stream is ignored
+					input.position(input.limit());
+					return false;
+			}
+		}
+		return state != DONE;
+	}
+
+	/**
+	 * @return true once the whole encoded stream has been decoded
+	 */
+	boolean isFinished() {
+		return type == IDENTITY || state == DONE;
+	}
+
+	/**
+	 * Releases the native resources of the decoder and its buffer.
+	 */
+	void end() {
+		if (inflater != null)
+			inflater.end();
+		if (out != null) {
+			BufferPool.getDefault().release(out);
+			out = null;
+		}
+	}
+
+	private boolean inflate(ByteBuffer input, Sink sink) throws IOException {
+		if (out == null)
+			out = BufferPool.getDefault().acquire();
+		inflater.setInput(input); // Advances the position of input as it is consumed
+		try {
+			while (true) {
+				out.clear();
+				int n = inflater.inflate(out);
+				if (n > 0) {
+					out.flip();
+					written += n;
+					if (crc != null)
+						crc.update(out.duplicate());
+					if (!sink.accept(out))
+						return false;
+				}
+				if (inflater.finished()) {
+					state = type == GZIP ? TRAILER : DONE;
+					return true;
+				}
+				if (inflater.needsDictionary())
+					throw new ZipException("Deflate stream needs a preset dictionary");
+				if (n == 0 && inflater.needsInput())
+					return true;
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Gathers the next bytes of a header that may be split across buffers.
+	 *
+	 * @return true once the given number of bytes are in the header array
+	 */
+	private boolean collect(ByteBuffer input, int length) {
+		int n = Math.min(length - collected, input.remaining());
+		input.get(header, collected, n);
+		collected += n;
+		if (collected < length)
+			return false;
+		collected = 0;
+		return true;
+	}
+
+	/**
+	 * @return the part of the gzip header following the given one, depending on the flags
+	 */
+	private int next(int from) {
+		if (from < EXTRA_LENGTH && (flags & FEXTRA) != 0)
+			return EXTRA_LENGTH;
+		if (from < NAME && (flags & FNAME) != 0)
+			return NAME;
+		if (from < COMMENT && (flags & FCOMMENT) != 0)
+			return COMMENT;
+		if (from < HEADER_CRC && (flags & FHCRC) != 0)
+			return HEADER_CRC;
+		return BODY;
+	}
+
+	private long littleEndian(int offset) {
+		return (header[offset] & 0xFFL) | (header[offset + 1] & 0xFFL) << 8 | (header[offset + 2] & 0xFFL) << 16 | (header[offset + 3] & 0xFFL) << 24;
+	}
+
+	/**
+	 * Receiver of the decoded bytes.
+	 */
+	interface Sink {
+		/**
+		 * @param decoded the next decoded bytes, only valid during the call
+		 * @return false if no more bytes are needed
+		 */
+		boolean accept(ByteBuffer decoded);
+	}
+}
@@ -0,0 +1,339 @@
+package eu.neurovertex.yacapd;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lets other processes query and control the sessions of a {@link SessionEngine} through a Unix domain socket, without going through the GUI nor the logs.
+ * All the connections are served by a single thread with a {@link Selector}, and status queries only read the state of the sessions, so they cost a few microseconds.
+ * <p/>
+ * The protocol is made of lines of UTF-8 text. Each command gets a reply starting with "OK" or "ERR", followed by a message :
+ * <ul>
+ * <li>STATUS [session] : "OK n" followed by n lines "session state", for all the sessions or the given one</li>
+ * <li>RECONNECT [session], LOGOUT [session], STOP [session] : calls {@link YacapPageProcessor#reconnect()}, {@link YacapPageProcessor#logout()} or {@link YacapPageProcessor#stop()} on the given session or all of them, and replies "OK n" with the number of sessions concerned</li>
+ * <li>SUBSCRIBE : replies "OK", then sends a line "EVENT session previous state" for each change of state until UNSUBSCRIBE or the end of the connection</li>
+ * <li>QUIT : closes the connection</li>
+ * </ul>
+ * Subscribers that don't read their events fast enough are disconnected once 1MB of them are waiting.
+ * <p/>
+ * Anyone who can connect controls the sessions, so the socket is made only accessible to its owner where the file system has POSIX permissions : it is created in a private directory and moved to its path once restricted. Its directory has to be one that others can't write to, as for any socket.
+ *
+ * @author NeuroVertex
+ */
+public class ControlServer {
+	private static final Logger log = Logger.getLogger(ControlServer.class.getName());
+	private static final int MAX_LINE = 1024, MAX_PENDING = 1024 * 1024;
+
+	private final SessionEngine engine;
+	private final Path path;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final List<Connection> subscribers = new ArrayList<>(); // Only used by the selector thread
+	private final EventBus.Subscription<StateChangeEvent> events;
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	/**
+	 * Creates the socket, replacing any file left at its path, and starts serving it.
+	 *
+	 * @param engine engine whose sessions are controlled
+	 * @param path   path of the socket
+	 */
+	public ControlServer(SessionEngine engine, Path path) throws IOException {
+		this.engine = engine;
+		this.path = path;
+		Files.deleteIfExists(path);
+		selector = Selector.open();
+		server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			bind(path);
+		} catch (IOException e) {
+			server.close();
+			selector.close();
+			throw e;
+		}
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		// The events are handed to the selector thread, which owns the connections
+		events = EventBus.getDefault().subscribe(StateChangeEvent.class, new EventBus.Listener<StateChangeEvent>() {
+			@Override
+			public void onEvent(StateChangeEvent event) {
+				broadcast(event);
+			}
+		}, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				tasks.add(command);
+				selector.wakeup();
+			}
+		}, 1024, EventBus.Overflow.DROP);
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				selectLoop();
+			}
+		}, "yacap-control");
+		thread.setDaemon(true);
+		thread.start();
+		log.info("Control socket listening on " + path);
+	}
+
+	/**
+	 * Binds the socket to the given path. Where the file system has POSIX permissions, the socket is bound in a new directory that only its owner can enter, restricted to its owner and only then moved to its path, so that no one else can ever connect to it, not even before its permissions are changed.
+	 */
+	private void bind(Path path) throws IOException {
+		Path parent = path.toAbsolutePath().getParent();
+		if (!parent.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			server.bind(UnixDomainSocketAddress.of(path));
+			return;
+		}
+		Path directory = Files.createTempDirectory(parent, ".yacapd-", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		Path bound = directory.resolve("control");
+		try {
+			server.bind(UnixDomainSocketAddress.of(bound));
+			Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+			Files.move(bound, path, StandardCopyOption.ATOMIC_MOVE); // The socket stays bound to its file, wherever it is
+		} finally {
+			Files.deleteIfExists(bound);
+			Files.deleteIfExists(directory);
+		}
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Closes the socket and all the connections, and removes the socket file.
+	 */
+	public void stop() {
+		running = false;
+		events.cancel();
+		selector.wakeup();
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void selectLoop() {
+		try {
+			while (running) {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					task.run();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					try {
+						if (!key.isValid())
+							continue;
+						if (key.isAcceptable())
+							accept();
+						else {
+							Connection connection = (Connection) key.attachment();
+							if (key.isReadable())
+								connection.read();
+							if (key.isValid() && key.isWritable())
+								connection.flush();
+						}
+					} catch (IOException e) {
+						if (key.attachment() instanceof Connection) {
+							log.log(Level.FINE, "Control connection closed", e);
+							((Connection) key.attachment()).close();
+						} else
+							log.log(Level.WARNING, "Couldn't accept a control connection", e);
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			log.log(Level.WARNING, "Control socket failed", e);
+		} finally {
+			for (SelectionKey key : selector.keys())
+				try {
+					key.channel().close();
+				} catch (IOException ignored) {
+				}
+			try {
+				selector.close();
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Couldn't remove the control socket", e);
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = server.accept()) != null) {
+			channel.configureBlocking(false);
+			Connection connection = new Connection(channel);
+			connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+		}
+	}
+
+	private void broadcast(StateChangeEvent event) {
+		if (subscribers.isEmpty())
+			return;
+		String line = "EVENT " + event.getSession().getName() + " " + event.getPrevious() + " " + event.getState() + "\n";
+		for (Connection connection : new ArrayList<>(subscribers))
+			connection.send(line);
+	}
+
+	private String execute(Connection connection, String line) {
+		String[] words = line.trim().split("\\s+", 2);
+		String command = words[0].toUpperCase(Locale.ROOT), session = words.length > 1 ? words[1] : null;
+		switch (command) {
+			case "STATUS": {
+				List<YacapPageProcessor> matched = find(session);
+				if (matched == null)
+					return "ERR unknown session " + session + "\n";
+				StringBuilder sb = new StringBuilder(16 + matched.size() * 32);
+				sb.append("OK ").append(matched.size()).append('\n');
+				for (YacapPageProcessor processor : matched)
+					sb.append(processor.getName()).append(' ').append(processor.getCurrentState()).append('\n');
+				return sb.toString();
+			}
+			case "RECONNECT":
+			case "LOGOUT":
+			case "STOP": {
+				List<YacapPageProcessor> matched = find(session);
+				if (matched == null)
+					return "ERR unknown session " + session + "\n";
+				for (YacapPageProcessor processor : matched)
+					if (command.equals("RECONNECT"))
+						processor.reconnect();
+					else if (command.equals("LOGOUT"))
+						processor.logout();
+					else
+						processor.stop();
+				return "OK " + matched.size() + "\n";
+			}
+			case "SUBSCRIBE":
+				if (!subscribers.contains(connection))
+					subscribers.add(connection);
+				return "OK\n";
+			case "UNSUBSCRIBE":
+				subscribers.remove(connection);
+				return "OK\n";
+			case "QUIT":
+				connection.closing = true;
+				return "OK\n";
+			case "":
+				return "";
+			default:
+				return "ERR unknown command " + words[0] + "\n";
+		}
+	}
+
+	/**
+	 * @param name name of a session, or null for all of them
+	 * @return the matching sessions, or null if there is no session with that name
+	 */
+	private List<YacapPageProcessor> find(String name) {
+		List<YacapPageProcessor> list = new ArrayList<>();
+		for (SessionEngine.Session session : engine.getSessions())
+			if (name == null || session.getProcessor().getName().equals(name))
+				list.add(session.getProcessor());
+		return name != null && list.isEmpty() ? null : list;
+	}
+
+	/**
+	 * A client of the socket. Only used by the selector thread.
+	 */
+	private final class Connection {
+		private final SocketChannel channel;
+		private final ByteBuffer in = ByteBuffer.allocate(MAX_LINE);
+		private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+		private SelectionKey key;
+		private int pending = 0;
+		private boolean closing = false;
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		private void read() throws IOException {
+			if (channel.read(in) < 0) {
+				close();
+				return;
+			}
+			in.flip();
+			int start = in.position();
+			for (int i = start; i < in.limit(); i++)
+				if (in.get(i) == '\n') {
+					String line = new String(in.array(), start, i - start, StandardCharsets.UTF_8);
+					send(execute(this, line));
+					start = i + 1;
+				}
+			in.position(start);
+			in.compact();
+			if (!in.hasRemaining()) {
+				send("ERR line too long\n");
+				closing = true;
+			}
+			flush();
+		}
+
+		private void send(String text) {
+			if (text.isEmpty() || !channel.isOpen())
+				return;
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			if (pending + bytes.length > MAX_PENDING) {
+				log.warning("Dropping a control connection that doesn't read its events");
+				close();
+				return;
+			}
+			out.add(ByteBuffer.wrap(bytes));
+			pending += bytes.length;
+			if (out.size() == 1)
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+
+		private void flush() throws IOException {
+			ByteBuffer buffer;
+			while ((buffer = out.peek()) != null) {
+				pending -= channel.write(buffer);
+				if (buffer.hasRemaining())
+					return; // The socket is full, wait for OP_WRITE
+				out.poll();
+			}
+			if (closing)
+				close();
+			else if (key.isValid())
+				key.interestOps(SelectionKey.OP_READ);
+		}
+
+		private void close() {
+			subscribers.remove(this);
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.log(Level.FINE, "Couldn't close a control connection", e);
+			}
+		}
+	}
+}
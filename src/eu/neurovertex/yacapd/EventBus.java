@@ -0,0 +1,199 @@
+package eu.neurovertex.yacapd;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers the events of the sessions ({@link StateChangeEvent}, {@link RequestEvent}) to the parts of the application interested in them, without ever making the sessions wait for them.
+ * <p/>
+ * Publishing only appends the event to the queue of each matching subscriber and never blocks : the subscriptions are read from a copy-on-write list and the queues are lock-free. Each subscriber chooses the executor its events are delivered on, one at a time and in order, and how big its queue is. When the queue is full, new events are either dropped ({@link Overflow#DROP}), or, with {@link Overflow#COALESCE_LATEST}, only the latest pending event of each session and kind is kept, which suits subscribers that only display the current state of things.
+ *
+ * @author NeuroVertex
+ */
+public class EventBus {
+	private static final Logger log = Logger.getLogger(EventBus.class.getName());
+	private static final int BATCH = 64; // Events delivered before giving the executor back
+	/**
+	 * Calls the listeners on the thread publishing the events, for the listeners that are cheap and never block.
+	 */
+	public static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+	private static volatile EventBus instance;
+	private final CopyOnWriteArrayList<Subscription<?>> subscriptions = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @return the bus the sessions of the JVM publish their events to
+	 */
+	public static EventBus getDefault() {
+		EventBus b = instance;
+		if (b == null)
+			synchronized (EventBus.class) {
+				if ((b = instance) == null)
+					instance = b = new EventBus();
+			}
+		return b;
+	}
+
+	/**
+	 * Registers a listener for the events of the given type and its subtypes.
+	 *
+	 * @param type     class of the events to receive
+	 * @param executor executor the listener is called on, e.g. one handing the events to the AWT event queue for a GUI, or {@link #DIRECT}
+	 * @param capacity maximum number of events waiting to be delivered
+	 * @param overflow what to do once capacity events are waiting
+	 * @return the subscription, to be cancelled when the events aren't needed anymore
+	 */
+	public <E> Subscription<E> subscribe(Class<E> type, Listener<? super E> listener, Executor executor, int capacity, Overflow overflow) {
+		Subscription<E> subscription = new Subscription<>(type, listener, executor, capacity, overflow);
+		subscriptions.add(subscription);
+		return subscription;
+	}
+
+	/**
+	 * Hands an event to every subscriber of its type. Never blocks, the listeners are called later on their executors.
+	 */
+	public void publish(Object event) {
+		for (Subscription<?> subscription : subscriptions)
+			if (subscription.type.isInstance(event))
+				subscription.offer(event);
+	}
+
+	public enum Overflow {
+		/**
+		 * New events are dropped while the queue is full.
+		 */
+		DROP,
+		/**
+		 * A new event replaces the pending one of the same session and kind, if any. Events without such a pending event are dropped while the queue is full.
+		 */
+		COALESCE_LATEST
+	}
+
+	public interface Listener<E> {
+		void onEvent(E event);
+	}
+
+	/**
+	 * A listener and the queue of the events it hasn't received yet.
+	 */
+	public class Subscription<E> implements Runnable {
+		private final Class<E> type;
+		private final Listener<? super E> listener;
+		private final Executor executor;
+		private final int capacity;
+		private final Overflow overflow;
+		// With DROP, the queue holds the events. With COALESCE_LATEST, it holds the keys of the events pending in latest
+		private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+		private final ConcurrentHashMap<Object, Object> latest;
+		private final AtomicInteger size = new AtomicInteger();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private final AtomicLong dropped = new AtomicLong();
+		private volatile boolean cancelled = false;
+
+		private Subscription(Class<E> type, Listener<? super E> listener, Executor executor, int capacity, Overflow overflow) {
+			this.type = type;
+			this.listener = listener;
+			this.executor = executor;
+			this.capacity = Math.max(1, capacity);
+			this.overflow = overflow;
+			this.latest = overflow == Overflow.COALESCE_LATEST ? new ConcurrentHashMap<>() : null;
+		}
+
+		private void offer(Object event) {
+			if (cancelled)
+				return;
+			if (overflow == Overflow.COALESCE_LATEST) {
+				Object key = event instanceof SessionEvent ? ((SessionEvent) event).getKey() : event.getClass();
+				if (latest.replace(key, event) != null)
+					return; // Replaced the pending event, whose key is already queued
+				if (!reserve())
+					return;
+				if (latest.putIfAbsent(key, event) != null) { // Another thread queued the same key in between
+					latest.replace(key, event);
+					size.decrementAndGet();
+					return;
+				}
+				queue.add(key);
+			} else {
+				if (!reserve())
+					return;
+				queue.add(event);
+			}
+			if (scheduled.compareAndSet(false, true))
+				dispatch();
+		}
+
+		private boolean reserve() {
+			if (size.incrementAndGet() > capacity) {
+				size.decrementAndGet();
+				dropped.incrementAndGet();
+				return false;
+			}
+			return true;
+		}
+
+		private void dispatch() {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				log.log(Level.WARNING, "Event delivery rejected", e);
+				scheduled.set(false);
+			}
+		}
+
+		/**
+		 * Delivers the pending events. Only one delivery runs at a time for a given subscription.
+		 */
+		@Override
+		public void run() {
+			for (int i = 0; i < BATCH && !cancelled; i++) {
+				Object item = queue.poll();
+				if (item == null)
+					break;
+				Object event = latest != null ? latest.remove(item) : item;
+				size.decrementAndGet();
+				if (event != null)
+					try {
+						listener.onEvent(type.cast(event));
+					} catch (RuntimeException e) {
+						log.log(Level.SEVERE, "Uncaught exception in event listener", e);
+					}
+			}
+			scheduled.set(false);
+			// Events offered after the last poll but before the flag was cleared wouldn't have scheduled a delivery
+			if (!queue.isEmpty() && !cancelled && scheduled.compareAndSet(false, true))
+				dispatch();
+		}
+
+		/**
+		 * Stops the delivery of events. An event being delivered may still complete.
+		 */
+		public void cancel() {
+			cancelled = true;
+			subscriptions.remove(this);
+			queue.clear();
+			if (latest != null)
+				latest.clear();
+		}
+
+		/**
+		 * @return the number of events that weren't delivered because the queue was full
+		 */
+		public long getDropped() {
+			return dropped.get();
+		}
+	}
+}
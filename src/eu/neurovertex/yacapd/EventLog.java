@@ -0,0 +1,330 @@
+package eu.neurovertex.yacapd;
+
+import eu.neurovertex.yacapd.YacapPageProcessor.YacapState;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Structured log of what the sessions do on their hot path : the iterations of their state machine, the requests they send and their changes of state.
+ * <p/>
+ * Logging an event doesn't allocate anything : the level is checked first, then the arguments, which the caller already has, are copied into one of a fixed number of preallocated {@link Event}s, handed to a single background thread that formats it and gives it back. When all the events are in use, new ones are dropped and counted rather than slowing down the sessions.
+ * The URLs are only formatted by that thread, with their login tickets and credentials redacted (see {@link Redactor}).
+ * <p/>
+ * Settings, read from the {@link Config} when the log is created :
+ * <ul>
+ * <li>eventLog : file the events are appended to as JSON lines, one object per line. If empty, they are written to the regular log instead, at their own level</li>
+ * <li>eventLevel : lowest level of the events written to the file (INFO). Without a file, the level of the regular log applies</li>
+ * <li>eventQueue : number of events that can wait to be written (4096)</li>
+ * </ul>
+ *
+ * @author NeuroVertex
+ */
+public class EventLog {
+	private static final Logger log = Logger.getLogger(EventLog.class.getName());
+	private static volatile EventLog instance;
+
+	private final File file;
+	private final int level;
+	private final BlockingQueue<Event> free, queue;
+	private final AtomicLong dropped = new AtomicLong(), written = new AtomicLong();
+	private final Thread writer;
+	private volatile boolean closed = false;
+
+	// Only used by the writer thread
+	private final StringBuilder line = new StringBuilder(256);
+	private Writer out;
+	private boolean failed = false;
+
+	/**
+	 * @param file     file the events are appended to, or null to write them to the regular log
+	 * @param level    lowest level of the events written to the file
+	 * @param capacity number of events that can wait to be written
+	 */
+	public EventLog(File file, Level level, int capacity) {
+		this.file = file;
+		this.level = level.intValue();
+		capacity = Math.max(1, capacity);
+		free = new ArrayBlockingQueue<>(capacity);
+		queue = new ArrayBlockingQueue<>(capacity);
+		for (int i = 0; i < capacity; i++)
+			free.offer(new Event());
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "yacap-events");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @return the event log configured in the {@link Config}, created on first use
+	 */
+	public static EventLog getDefault() {
+		EventLog e = instance;
+		if (e == null)
+			synchronized (EventLog.class) {
+				if ((e = instance) == null) {
+					Config config = Config.current();
+					e = new EventLog(config.getEventLog().isEmpty() ? null : new File(config.getEventLog()), config.getEventLevel(), config.getEventQueue());
+					final EventLog events = e;
+					Runtime.getRuntime().addShutdownHook(new Thread() {
+						@Override
+						public void run() {
+							events.close();
+						}
+					});
+					instance = e;
+				}
+			}
+		return e;
+	}
+
+	/**
+	 * @return true if events of that level are written. Callers that have to compute an argument should check this first
+	 */
+	public boolean isLoggable(Level level) {
+		return file != null ? level.intValue() >= this.level : log.isLoggable(level);
+	}
+
+	/**
+	 * An iteration of the state machine of a session, logged at FINE.
+	 */
+	public void step(String session, YacapState state) {
+		Event e = claim(Level.FINE, Type.STEP, session);
+		if (e != null) {
+			e.state = state;
+			publish(e);
+		}
+	}
+
+	/**
+	 * A request that got a response (or failed, with code -1), logged at FINE.
+	 *
+	 * @param route kind of page, as passed to the {@link HTTPSDownloader}
+	 * @param url   URL of the request, redacted when the event is written
+	 * @param nanos time from the start of the request to the end of the response
+	 */
+	public void request(String session, String route, String method, String url, int code, long nanos) {
+		Event e = claim(Level.FINE, Type.REQUEST, session);
+		if (e != null) {
+			e.route = route;
+			e.method = method;
+			e.url = url;
+			e.code = code;
+			e.nanos = nanos;
+			publish(e);
+		}
+	}
+
+	/**
+	 * A change of state of a session, logged at INFO.
+	 */
+	public void state(String session, YacapState from, YacapState to) {
+		Event e = claim(Level.INFO, Type.STATE, session);
+		if (e != null) {
+			e.previous = from;
+			e.state = to;
+			publish(e);
+		}
+	}
+
+	private Event claim(Level level, Type type, String session) {
+		if (closed || !isLoggable(level))
+			return null;
+		Event e = free.poll();
+		if (e == null) {
+			dropped.incrementAndGet();
+			return null;
+		}
+		e.timestamp = System.currentTimeMillis();
+		e.level = level;
+		e.type = type;
+		e.session = session;
+		return e;
+	}
+
+	private void publish(Event e) {
+		if (!queue.offer(e)) { // Can't happen as there are no more events than the queue holds
+			dropped.incrementAndGet();
+			release(e);
+		}
+	}
+
+	/**
+	 * @return the number of events dropped because none was free
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * Writes the events still in the queue and closes the file.
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		writer.interrupt();
+		try {
+			writer.join(5000);
+		} catch (InterruptedException ignore) {
+		}
+	}
+
+	private void writeLoop() {
+		while (!closed || !queue.isEmpty()) {
+			try {
+				Event e = closed ? queue.poll() : queue.poll(1, TimeUnit.SECONDS);
+				if (e != null) {
+					try {
+						write(e);
+						written.incrementAndGet();
+					} finally {
+						release(e);
+					}
+				}
+				if (out != null && (e == null || queue.isEmpty()))
+					out.flush();
+			} catch (InterruptedException ignore) {
+				// close() was called, write what's left
+			} catch (IOException ex) {
+				log.log(Level.SEVERE, "Error while writing the event log, writing the events to the regular log instead", ex);
+				closeFile();
+				failed = true;
+			}
+		}
+		closeFile();
+	}
+
+	private void release(Event e) {
+		e.clear();
+		free.offer(e);
+	}
+
+	private void write(Event e) throws IOException {
+		line.setLength(0);
+		if (out == null && file != null && !failed)
+			open();
+		if (out != null) {
+			e.appendJson(line);
+			out.append(line).write('\n');
+		} else {
+			e.appendText(line);
+			log.log(e.level, line.toString());
+		}
+	}
+
+	/**
+	 * Opens the file, the events going to the regular log if that fails.
+	 */
+	private void open() {
+		try {
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+				throw new IOException("Can't create directory " + parent);
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+		} catch (IOException ex) {
+			log.log(Level.SEVERE, "Couldn't open the event log " + file + ", writing the events to the regular log instead", ex);
+			failed = true;
+		}
+	}
+
+	private void closeFile() {
+		if (out != null)
+			try {
+				out.close();
+			} catch (IOException ex) {
+				log.log(Level.WARNING, "Error while closing the event log", ex);
+			}
+		out = null;
+	}
+
+	public enum Type {
+		STEP, REQUEST, STATE
+	}
+
+	/**
+	 * A reusable event. Its fields are set by the session logging it, then read by the writer thread before it is cleared and reused.
+	 */
+	private static final class Event {
+		private long timestamp, nanos;
+		private Level level;
+		private Type type;
+		private String session, route, method, url;
+		private YacapState state, previous;
+		private int code;
+
+		private void clear() {
+			level = null;
+			type = null;
+			session = route = method = url = null;
+			state = previous = null;
+			code = 0;
+			nanos = 0;
+		}
+
+		private void appendJson(StringBuilder sb) {
+			sb.append("{\"time\":").append(timestamp).append(",\"level\":\"").append(level.getName()).append("\",\"type\":\"").append(type.name()).append('"');
+			appendJson(sb, "session", session);
+			if (previous != null)
+				appendJson(sb, "from", previous.name());
+			if (state != null)
+				appendJson(sb, "state", state.name());
+			if (type == Type.REQUEST) {
+				appendJson(sb, "route", route);
+				appendJson(sb, "method", method);
+				sb.append(",\"url\":\"");
+				escape(sb, Redactor.url(url));
+				sb.append("\",\"code\":").append(code).append(",\"micros\":").append(nanos / 1000);
+			}
+			sb.append('}');
+		}
+
+		private static void appendJson(StringBuilder sb, String key, String value) {
+			if (value == null)
+				return;
+			sb.append(",\"").append(key).append("\":\"");
+			escape(sb, value);
+			sb.append('"');
+		}
+
+		private static void escape(StringBuilder sb, String value) {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"' || c == '\\')
+					sb.append('\\').append(c);
+				else if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+
+		private void appendText(StringBuilder sb) {
+			switch (type) {
+				case STEP:
+					sb.append("Next iteration (").append(session).append(", CS = ").append(state).append(')');
+					break;
+				case REQUEST:
+					sb.append(method).append(' ').append(Redactor.url(url)).append(" (").append(session).append(", ").append(route).append(") : ").append(code).append(" in ").append(nanos / 1000000).append("ms");
+					break;
+				case STATE:
+					sb.append(session).append(" : ").append(previous).append(" -> ").append(state);
+					break;
+			}
+		}
+	}
+}
@@ -1,111 +1,351 @@
 package eu.neurovertex.yacapd;
 
-import java.io.IOException;
 import java.net.CookieHandler;
+import java.net.HttpCookie;
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.Preferences;
 
 /**
- * This class is in charge of storing/retreiving cookies for HTTP requests and responses. In addition, it also stores the YaCaP session cookie in its Preferences to try and use the same session on next run (in case the application is restarted, this will avoid having to reauthenticate)
+ * This class is in charge of storing/retreiving cookies for HTTP requests and responses. In addition, it also saves the YaCaP session cookie in the {@link SessionStore} to try and use the same session on next run (in case the application is restarted, this will avoid having to reauthenticate)
+ * Each session has its own instance, which is used directly by its {@link HTTPSDownloader} rather than installed as the JVM-wide default handler.
+ * <p/>
+ * Cookies are parsed once when received and stored by host, a new cookie replacing the one with the same name. Each host's cookies are kept in an immutable snapshot that also holds the ready-made Cookie header, so {@link #get(URI, Map)} neither locks nor copies anything. Writes, which are much rarer, replace the snapshot. Expired cookies are dropped when the snapshot is next read.
+ * As a session only talks to a couple of hosts, the snapshots are kept in a small array replaced as a whole, and store their cookies as arrays. The names of the hosts and cookies are interned, being the same for all the sessions.
+ * The path of the cookies is ignored, the portals only ever set cookies for the whole host.
  *
  * @author NeuroVertex
  *         Date: 12/09/13, 17:41
  */
 public class GlobalCookieHandler extends CookieHandler {
-	private final Map<String, Set<String>> cookies = new HashMap<>();
+	private static final Snapshot[] NO_HOSTS = new Snapshot[0];
+	private static final AtomicReferenceFieldUpdater<GlobalCookieHandler, Snapshot[]> HOSTS = AtomicReferenceFieldUpdater.newUpdater(GlobalCookieHandler.class, Snapshot[].class, "hosts");
+	private volatile Snapshot[] hosts = NO_HOSTS;
 	private static final Logger log = Logger.getLogger(GlobalCookieHandler.class.getName());
-	private static final Preferences prefs = Preferences.userNodeForPackage(GlobalCookieHandler.class);
-	private String sessionHost, sessionCookie;
+	private final Preferences prefs;
+	private final SessionStore store;
+	private final String account;
+	private volatile String sessionHost, sessionCookie;
+	private final AtomicInteger generation = new AtomicInteger();
 
-	public static GlobalCookieHandler getDefault() {
-		return (GlobalCookieHandler) CookieHandler.getDefault();
+	public GlobalCookieHandler() {
+		this(Preferences.userNodeForPackage(GlobalCookieHandler.class));
 	}
 
-	public GlobalCookieHandler() {
+	/**
+	 * @param prefs Preferences node of the account, whose path identifies the account in the {@link SessionStore#getDefault() session store}
+	 */
+	public GlobalCookieHandler(Preferences prefs) {
+		this(prefs, SessionStore.getDefault());
+	}
+
+	/**
+	 * @param prefs Preferences node of the account
+	 * @param store store in which the session cookie is saved
+	 */
+	public GlobalCookieHandler(Preferences prefs, SessionStore store) {
+		this.prefs = prefs;
+		this.store = store;
+		this.account = prefs.absolutePath();
 	}
 
 	public boolean loadSession() {
-		sessionCookie = prefs.get("sessionCookie", null);
-		sessionHost = prefs.get("sessionHost", null);
-		if (sessionHost != null) {
-			String session = prefs.get("session", null);
-			if (session != null) {
-				Set<String> store = new HashSet<>();
-				store.add(session);
-				cookies.put(sessionHost, store);
-				log.fine("Loaded session cookie \"" + session + "\" for \"" + sessionHost + "\".");
-				return true;
-			}
-		} else {
+		SessionStore.Entry entry = store.get(account);
+		if (entry == null)
+			entry = migrateSession();
+		if (entry == null) {
 			log.fine("No session cookie loaded");
+			return false;
 		}
-		return false;
+		sessionHost = entry.getHost().intern();
+		sessionCookie = entry.getName().intern();
+		List<StoredCookie> parsed = parse(entry.getName() + "=" + entry.getValue());
+		if (parsed.isEmpty())
+			return false;
+		update(sessionHost, parsed);
+		if (log.isLoggable(Level.FINE))
+			log.fine("Loaded session cookie \"" + entry.getName() + "\" for \"" + sessionHost + "\".");
+		return true;
+	}
+
+	/**
+	 * Moves the session saved in the Preferences by the previous versions to the store.
+	 *
+	 * @return the session moved, or null if there was none
+	 */
+	private SessionStore.Entry migrateSession() {
+		String host = prefs.get("sessionHost", null), session = prefs.get("session", null);
+		if (host == null || session == null)
+			return null;
+		int eq = session.indexOf('=');
+		if (eq <= 0)
+			return null;
+		SessionStore.Entry entry = new SessionStore.Entry(host, session.substring(0, eq), session.substring(eq + 1), System.currentTimeMillis());
+		store.put(account, entry);
+		prefs.remove("sessionHost");
+		prefs.remove("sessionCookie");
+		prefs.remove("session");
+		log.info("Moved the saved session of " + account + " to the session store");
+		return entry;
+	}
+
+	/**
+	 * Forgets the saved session, once the portal has been found not to know it anymore.
+	 */
+	public void forgetSession() {
+		store.remove(account);
 	}
 
 	public void clearCookies() {
-		cookies.clear();
+		hosts = NO_HOSTS;
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * @return a number that changes each time the cookies are cleared, so that state tied to the current cookies (such as {@link LoginTokens}) can tell it is stale
+	 */
+	public int getGeneration() {
+		return generation.get();
 	}
 
 	@Override
-	public Map<String, List<String>> get(URI uri, Map<String, List<String>> requestHeaders) throws IOException {
-		Map<String, List<String>> ret = new HashMap<>();
-		synchronized (cookies) {
-			Set<String> store = cookies.get(uri.getHost());
-			if (store != null) {
-				ret.put("Cookie", Collections.unmodifiableList(new ArrayList<>(store)));
-				StringBuilder sb = new StringBuilder();
-				for (String s : store) {
-					sb.append(s).append('\n');
-				}
-				log.finer("Cookies : " + sb.toString());
-			}
-			log.fine("GlobalCookieHandler get called for " + uri.getHost() + " : " + (store != null ? store.size() : "null") + " items returned.");
-		}
-		return Collections.unmodifiableMap(ret);
+	public Map<String, List<String>> get(URI uri, Map<String, List<String>> requestHeaders) {
+		Snapshot snapshot = current(uri.getHost());
+		if (log.isLoggable(Level.FINE))
+			log.fine("GlobalCookieHandler get called for " + uri.getHost() + " : " + snapshot.names.length + " items returned.");
+		if (log.isLoggable(Level.FINER))
+			log.finer("Cookies : " + describe(snapshot));
+		return snapshot.header;
+	}
+
+	/**
+	 * Same as {@link #get(URI, Map)}, leaving a cookie out. Used to download a page without being recognised by that cookie, such as the login form of the CAS without its ticket-granting cookie, with which the CAS would log the session in again instead of showing the form.
+	 *
+	 * @param withheld name of the cookie not to send, null to send them all
+	 */
+	public Map<String, List<String>> get(URI uri, Map<String, List<String>> requestHeaders, String withheld) {
+		if (withheld == null)
+			return get(uri, requestHeaders);
+		Map<String, List<String>> header = current(uri.getHost()).without(withheld);
+		if (log.isLoggable(Level.FINE))
+			log.fine("GlobalCookieHandler get called for " + uri.getHost() + " without \"" + withheld + "\" : " + (header.isEmpty() ? "no" : "some") + " items returned.");
+		return header;
 	}
 
 	@Override
-	public void put(URI uri, Map<String, List<String>> responseHeaders)
-			throws IOException {
-		List<String> newCookies = responseHeaders.get("Set-Cookie");
-		if (newCookies != null) {
-			synchronized (cookies) {
-				Set<String> store = cookies.get(uri.getHost());
-				log.fine("GlobalCookieHandler set called for " + uri.getHost() + " : " + (store != null ? store.size() + " items added." : "no cookie added."));
-				if (store != null) {
-					StringBuilder sb = new StringBuilder();
-					for (String s : store) {
-						sb.append(s).append('\n');
-					}
-					log.finer("Cookies : " + sb.toString());
-				}
+	public void put(URI uri, Map<String, List<String>> responseHeaders) {
+		List<String> newCookies = setCookieHeaders(responseHeaders);
+		if (newCookies.isEmpty())
+			return;
+		List<StoredCookie> parsed = new ArrayList<>(newCookies.size());
+		for (String header : newCookies)
+			parsed.addAll(parse(header));
+		Snapshot snapshot = update(uri.getHost(), parsed);
+		if (log.isLoggable(Level.FINE))
+			log.fine("GlobalCookieHandler set called for " + uri.getHost() + " : " + parsed.size() + " items added.");
+		if (log.isLoggable(Level.FINER))
+			log.finer("Cookies : " + describe(snapshot));
+	}
 
-				if (store == null) {
-					store = new HashSet<>();
-					cookies.put(uri.getHost(), store);
-				}
-				store.addAll(newCookies);
-			}
+	/**
+	 * @return the Cookie header of the snapshot for the logs, with the values of the cookies hidden
+	 */
+	private static String describe(Snapshot snapshot) {
+		List<String> header = snapshot.header.get("Cookie");
+		return header != null ? Redactor.cookies(header.get(0), false) : "none";
+	}
+
+	/**
+	 * @return the values of the Set-Cookie headers of a response. Header names are case-insensitive, and {@link java.net.HttpURLConnection#getHeaderFields()} keeps them as the server sent them
+	 */
+	static List<String> setCookieHeaders(Map<String, List<String>> responseHeaders) {
+		List<String> values = responseHeaders.get("Set-Cookie");
+		if (values != null)
+			return values;
+		for (Map.Entry<String, List<String>> e : responseHeaders.entrySet())
+			if ("Set-Cookie".equalsIgnoreCase(e.getKey()) && e.getValue() != null)
+				return e.getValue();
+		return Collections.emptyList();
+	}
+
+	private Snapshot update(String host, List<StoredCookie> newCookies) {
+		Snapshot[] old, updated;
+		Snapshot snapshot;
+		do {
+			old = hosts;
+			int i = indexOf(old, host);
+			snapshot = (i >= 0 ? old[i] : Snapshot.EMPTY).with(i >= 0 ? old[i].host : host.intern(), newCookies);
+			updated = replace(old, i, snapshot);
+		} while (!HOSTS.compareAndSet(this, old, updated));
+		return snapshot;
+	}
+
+	/**
+	 * @return the current snapshot of the host, after dropping the cookies that expired since it was made
+	 */
+	private Snapshot current(String host) {
+		while (true) {
+			Snapshot[] array = hosts;
+			int i = indexOf(array, host);
+			if (i < 0)
+				return Snapshot.EMPTY;
+			Snapshot snapshot = array[i];
+			if (snapshot.nextExpiry > System.currentTimeMillis())
+				return snapshot;
+			Snapshot purged = snapshot.with(snapshot.host, Collections.<StoredCookie>emptyList());
+			if (HOSTS.compareAndSet(this, array, replace(array, i, purged)))
+				return purged;
+		}
+	}
+
+	private static int indexOf(Snapshot[] array, String host) {
+		for (int i = 0; i < array.length; i++)
+			if (array[i].host.equals(host))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @return a copy of the array with the snapshot at the given index, or appended if the index is negative
+	 */
+	private static Snapshot[] replace(Snapshot[] array, int index, Snapshot snapshot) {
+		Snapshot[] copy = Arrays.copyOf(array, index < 0 ? array.length + 1 : array.length);
+		copy[index < 0 ? array.length : index] = snapshot;
+		return copy;
+	}
+
+	private static List<StoredCookie> parse(String header) {
+		try {
+			List<HttpCookie> parsed = HttpCookie.parse(header);
+			List<StoredCookie> list = new ArrayList<>(parsed.size());
+			long now = System.currentTimeMillis();
+			for (HttpCookie cookie : parsed)
+				list.add(new StoredCookie(cookie.getName().intern(), cookie.getValue(), cookie.getMaxAge() < 0 ? Long.MAX_VALUE : now + cookie.getMaxAge() * 1000));
+			return list;
+		} catch (IllegalArgumentException e) {
+			if (log.isLoggable(Level.WARNING))
+				log.warning("Ignoring malformed cookie \"" + Redactor.cookies(header, true) + "\" : " + e.getMessage());
+			return Collections.emptyList();
 		}
 	}
 
 	public void setSessionCookie(String host, String key) {
-		prefs.put("sessionHost", sessionHost = host);
-		prefs.put("sessionCookie", sessionCookie = key);
+		sessionHost = host.intern();
+		sessionCookie = key.intern();
 	}
 
 	public void save() {
-		if (sessionHost != null && sessionCookie != null && prefs.getBoolean("saveSession", true)) {
-			Set<String> set = cookies.get(sessionHost);
-			if (set != null)
-				for (String s : set) {
-					if (s.startsWith(sessionCookie)) {
-						prefs.put("session", s);
-						log.finer("Saving cookie : " + s);
-					}
+		String host = sessionHost, name = sessionCookie;
+		if (host != null && name != null && prefs.getBoolean("saveSession", true)) {
+			String value = current(host).get(name);
+			if (value != null) {
+				store.put(account, new SessionStore.Entry(host, name, value, System.currentTimeMillis()));
+				if (log.isLoggable(Level.FINER))
+					log.finer("Saving cookie : " + Redactor.cookies(name + "=" + value, false));
+			}
+		}
+	}
+
+	/**
+	 * Immutable state of the cookies of a host, in the order they were first received.
+	 */
+	private static final class Snapshot {
+		static final Snapshot EMPTY = new Snapshot(null, new String[0], new String[0], new long[0]);
+
+		final String host;
+		final String[] names, values;
+		final long[] expiresAt;
+		final Map<String, List<String>> header;
+		final long nextExpiry;
+
+		private Snapshot(String host, String[] names, String[] values, long[] expiresAt) {
+			this.host = host;
+			this.names = names;
+			this.values = values;
+			this.expiresAt = expiresAt;
+			long expiry = Long.MAX_VALUE;
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < names.length; i++) {
+				if (sb.length() > 0)
+					sb.append("; ");
+				sb.append(names[i]).append('=').append(values[i]);
+				expiry = Math.min(expiry, expiresAt[i]);
+			}
+			this.nextExpiry = expiry;
+			this.header = names.length == 0 ? Collections.<String, List<String>>emptyMap() : Collections.singletonMap("Cookie", Collections.singletonList(sb.toString()));
+		}
+
+		/**
+		 * @return the value of the cookie, null if there is none with that name
+		 */
+		String get(String name) {
+			for (int i = 0; i < names.length; i++)
+				if (names[i].equals(name))
+					return values[i];
+			return null;
+		}
+
+		/**
+		 * @return the Cookie header without the given cookie, the ready-made one if there is no such cookie
+		 */
+		Map<String, List<String>> without(String name) {
+			if (get(name) == null)
+				return header;
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < names.length; i++)
+				if (!names[i].equals(name)) {
+					if (sb.length() > 0)
+						sb.append("; ");
+					sb.append(names[i]).append('=').append(values[i]);
 				}
+			return sb.length() == 0 ? Collections.<String, List<String>>emptyMap() : Collections.singletonMap("Cookie", Collections.singletonList(sb.toString()));
+		}
+
+		/**
+		 * @return a new snapshot where the given cookies replace the ones with the same name, without the expired ones
+		 */
+		Snapshot with(String host, List<StoredCookie> newCookies) {
+			Map<String, StoredCookie> map = new LinkedHashMap<>();
+			for (int i = 0; i < names.length; i++)
+				map.put(names[i], new StoredCookie(names[i], values[i], expiresAt[i]));
+			for (StoredCookie cookie : newCookies)
+				map.put(cookie.name, cookie);
+			long now = System.currentTimeMillis();
+			for (Iterator<StoredCookie> it = map.values().iterator(); it.hasNext(); )
+				if (it.next().expiresAt <= now)
+					it.remove();
+			String[] n = new String[map.size()], v = new String[map.size()];
+			long[] e = new long[map.size()];
+			int i = 0;
+			for (StoredCookie cookie : map.values()) {
+				n[i] = cookie.name;
+				v[i] = cookie.value;
+				e[i++] = cookie.expiresAt;
+			}
+			return new Snapshot(host, n, v, e);
+		}
+	}
+
+	/**
+	 * A parsed cookie, only used while the snapshot is updated. Only the name and value are sent back, the expiry date is made absolute when the cookie is received.
+	 */
+	private static final class StoredCookie {
+		final String name, value;
+		final long expiresAt;
+
+		StoredCookie(String name, String value, long expiresAt) {
+			this.name = name;
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		@Override
+		public String toString() {
+			return name + "=" + value;
 		}
 	}
 }
@@ -3,169 +3,664 @@ package eu.neurovertex.yacapd;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 
-import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSession;
 import java.io.*;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Observable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.prefs.Preferences;
 
 /**
+ * Downloads the pages requested by a {@link YacapPageProcessor} and hands them back to it.
+ * <p/>
+ * Redirects are followed by the downloader itself, up to "maxRedirects" hops (5), so that the session's cookies are sent and stored at each hop. See {@link #redirectMethod} and {@link #redirectHeaders} for what is kept of the request, and {@link RedirectCache} for the hops that are skipped altogether.
+ * Each step of a request is published on the {@link EventBus} as a {@link RequestEvent}.
+ * <p/>
+ * Responses may be compressed with gzip or deflate, which both transports decode as the bytes arrive with a {@link ContentDecoder}. Bodies are only read as far as needed into pooled buffers, see {@link ResponseBody}, and at most "maxBody.route" bytes (or "maxBody", 1MB) are kept per page. The bodies of the other statuses are discarded.
+ * <p/>
+ * The connections use the {@link TlsContext}, which verifies the certificates and host names and caches the sessions for resumption.
+ * <p/>
+ * Every phase of a request has a deadline : "dnsTimeout" for the lookup of the host (5000ms, see {@link HostResolver}), "connectTimeout" for the TCP connection (10000ms), "tlsTimeout" for the handshake (10000ms), "firstByteTimeout" for the start of the response and any pause in its body (15000ms), and "requestTimeout" for the whole request with its redirects (30000ms). A request that misses one fails with a {@link SocketTimeoutException} and is retried like any other timeout.
+ * The asynchronous transport can't tell the connection, the handshake and the wait for the response apart : the response headers have to come within the sum of their deadlines, and only the total one bounds the body.
+ * The request in progress can be aborted with {@link #cancel()}, see {@link RequestHandle}.
+ * <p/>
+ * Two transports are available, selected with the "transport" preference. The default "sync" one opens a blocking {@link HttpsURLConnection} for each request, which holds the thread sending it until the response is read, although the retries are scheduled rather than slept for. The "async" one sends requests through a single {@link HttpClient} shared by all the sessions of the JVM : it keeps persistent connections to each host, negotiates HTTP/2 when the server supports it and never blocks the calling thread.
+ *
  * @author NeuroVertex
  *         Date: 12/09/13, 16:52
  */
-public class HTTPSDownloader extends Observable implements HostnameVerifier {
+public class HTTPSDownloader {
 
 	private YacapPageProcessor processor;
-	private boolean exit = false;
-	private static final Preferences prefs = Preferences.userNodeForPackage(HTTPSDownloader.class);
-	private static final String logFile = "/downloaded_%s.html",
-			ENCODING = "UTF-8";
+	private final GlobalCookieHandler cookies;
+	private volatile boolean exit = false;
+	private volatile RequestHandle current; // Handle of the request in progress
+	private volatile int generation = 0; // Incremented by cancel(), under the lock of the downloader
+	private final boolean async;
+	private volatile RetryPolicy retryPolicy; // Null to use the one of the current Config
+	private final EventBus events = EventBus.getDefault();
+	private final RedirectCache redirects = RedirectCache.getDefault();
+	private static final String ENCODING = "UTF-8";
+	private static final Function<CompletionStage<Integer>, CompletionStage<Integer>> FLATTEN = new Function<CompletionStage<Integer>, CompletionStage<Integer>>() {
+		@Override
+		public CompletionStage<Integer> apply(CompletionStage<Integer> stage) {
+			return stage;
+		}
+	};
 	private static final Logger log = Logger.getLogger(HTTPSDownloader.class.getName());
 
 	static {
 		System.setProperty("sun.net.http.allowRestrictedHeaders", "true"); // Needed to be able to set the Origin header.
-		GlobalCookieHandler.setDefault(new GlobalCookieHandler());
 	}
 
-	public HTTPSDownloader(YacapPageProcessor processor) {
+	/**
+	 * @param processor the processor the downloaded documents are handed to, unless another {@link PageHandler} is given
+	 * @param cookies   the cookie jar of the session. Since several sessions share the JVM, it is applied to each request here rather than installed with {@link java.net.CookieHandler#setDefault}
+	 */
+	public HTTPSDownloader(YacapPageProcessor processor, GlobalCookieHandler cookies) {
 		this.processor = processor;
+		this.cookies = cookies;
+		this.async = Config.current().isAsyncTransport();
+	}
+
+	public GlobalCookieHandler getCookieHandler() {
+		return cookies;
 	}
 
+	/**
+	 * Sends a request and waits for its outcome, retries included, see {@link #getUrlAsync(YacapPageProcessor.HTTPRequest, String)}.
+	 *
+	 * @return the HTTP status code of the response, or -1 if the request failed
+	 */
 	public int getUrl(YacapPageProcessor.HTTPRequest request, String logName) {
-		return downloadUrl(request.getUrl(), logName, "GET", request.getParameters(), null, 0);
+		return await(getUrlAsync(request, logName));
 	}
 
 	public int getUrl(String urlString, String logName, Map<String, String> requestHeaders) {
-		return downloadUrl(urlString, logName, "GET", requestHeaders, null, 0);
+		return await(sendAsync(urlString, logName, processor, "GET", requestHeaders, null));
 	}
 
 	public int postUrl(YacapPageProcessor.HTTPRequest request, String logName) {
-		return downloadUrl(request.getUrl(), logName, "POST", request.getParameters(), encodeData(request.getData()), 0);
+		return await(postUrlAsync(request, logName));
 	}
 
 	public int postUrl(String urlString, String logName, Map<String, String> requestHeaders, String data) {
-		return downloadUrl(urlString, logName, "POST", requestHeaders, data, 0);
+		return await(sendAsync(urlString, logName, processor, "POST", requestHeaders, data));
+	}
+
+	/**
+	 * @return the status code the request completed with, rethrowing the runtime exceptions it may have failed with as they are
+	 */
+	private static int await(CompletableFuture<Integer> request) {
+		try {
+			return request.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends a GET request, retrying it if it fails. With the asynchronous transport the request is sent without blocking. With the synchronous one, the request is sent on the calling thread, but if it fails its retries are scheduled on the {@link TimerWheel} instead of being waited for, so that a session waiting to retry doesn't hold a thread of the pool.
+	 *
+	 * @return a future completed with the HTTP status code of the response, or -1 if the request failed
+	 */
+	public CompletableFuture<Integer> getUrlAsync(YacapPageProcessor.HTTPRequest request, String logName) {
+		return getUrlAsync(request, logName, processor);
+	}
+
+	/**
+	 * Same as {@link #getUrlAsync(YacapPageProcessor.HTTPRequest, String)}, the page being handed to the given handler rather than to the processor.
+	 */
+	public CompletableFuture<Integer> getUrlAsync(YacapPageProcessor.HTTPRequest request, String logName, PageHandler pages) {
+		return sendAsync(request.getUrl(), logName, pages, "GET", request.getParameters(), null);
+	}
+
+	/**
+	 * Same as {@link #getUrlAsync(YacapPageProcessor.HTTPRequest, String, PageHandler)}, without sending the given cookie at any hop, see {@link GlobalCookieHandler#get(URI, Map, String)}. The cookies received are still stored.
+	 */
+	public CompletableFuture<Integer> getUrlAsync(YacapPageProcessor.HTTPRequest request, String logName, PageHandler pages, String withheldCookie) {
+		return sendAsync(request.getUrl(), logName, pages, "GET", request.getParameters(), null, withheldCookie, generation, 1, 0, System.currentTimeMillis());
+	}
+
+	/**
+	 * Same as {@link #getUrlAsync(YacapPageProcessor.HTTPRequest, String, PageHandler)}, with the given headers instead of those of a request template.
+	 */
+	public CompletableFuture<Integer> getUrlAsync(String urlString, Map<String, String> requestHeaders, String logName, PageHandler pages) {
+		return sendAsync(urlString, logName, pages, "GET", requestHeaders, null);
+	}
+
+	/**
+	 * Sends a HEAD request, whose status and headers are handed to {@link PageHandler#processHeaders(int, Map)}.
+	 *
+	 * @see #getUrlAsync(YacapPageProcessor.HTTPRequest, String)
+	 */
+	public CompletableFuture<Integer> headUrlAsync(YacapPageProcessor.HTTPRequest request, String logName, PageHandler pages) {
+		return sendAsync(request.getUrl(), logName, pages, "HEAD", request.getParameters(), null);
+	}
+
+	/**
+	 * @see #getUrlAsync(YacapPageProcessor.HTTPRequest, String)
+	 */
+	public CompletableFuture<Integer> postUrlAsync(YacapPageProcessor.HTTPRequest request, String logName) {
+		return sendAsync(request.getUrl(), logName, processor, "POST", request.getParameters(), encodeData(request.getData()));
+	}
+
+	/**
+	 * Sends a request with the synchronous transport and follows its redirects, going straight to the final URL when the redirects are known to the {@link RedirectCache}.
+	 */
+	private int attemptDownload(RequestHandle handle, String urlString, String logName, PageHandler pages, String method, Map<String, String> requestHeaders, String data, String withheld) throws IOException {
+		String url = urlString;
+		int maxRedirects = Config.current().getMaxRedirects();
+		if (data == null && "GET".equals(method)) {
+			url = redirects.resolve(urlString, cookies, maxRedirects);
+			if (!url.equals(urlString) && log.isLoggable(Level.FINE))
+				log.fine("Going straight to " + Redactor.url(url) + " instead of " + Redactor.url(urlString));
+		}
+		for (int hop = 0; ; hop++) {
+			Hop result = attemptHop(handle, url, logName, pages, method, requestHeaders, data, withheld);
+			int code = result.code;
+			if (hop == 0 && code >= 400 && !url.equals(urlString)) {
+				log.info("Learned redirect target " + Redactor.url(url) + " answered " + code + ", following the redirects from " + Redactor.url(urlString));
+				redirects.invalidate(urlString);
+				url = urlString;
+				continue;
+			}
+			if (!RedirectCache.isRedirect(code) || result.location == null)
+				return code;
+			if (hop >= maxRedirects) {
+				log.warning("Not following more than " + maxRedirects + " redirects, giving up at " + Redactor.url(url));
+				return code;
+			}
+			String next;
+			try {
+				next = URI.create(url).resolve(result.location).toString();
+			} catch (IllegalArgumentException e) {
+				log.warning("Ignoring malformed redirect to " + Redactor.url(result.location));
+				return code;
+			}
+			if (log.isLoggable(Level.FINE))
+				log.fine("Got " + code + ", redirecting to : " + Redactor.url(next));
+			if (data == null && "GET".equals(method))
+				redirects.learn(url, next, code, result.cacheable);
+			String nextMethod = redirectMethod(code, method);
+			requestHeaders = redirectHeaders(url, next, requestHeaders, !nextMethod.equals(method));
+			if (!nextMethod.equals(method))
+				data = null;
+			method = nextMethod;
+			url = next;
+		}
 	}
 
-	private int downloadUrl(String urlString, String logName, String method, Map<String, String> requestHeaders, String data, int retries) {
+	/**
+	 * Sends a single request. The connection isn't closed but left to the JVM's keep-alive cache once the response is read, so that the next request to the host (the next hop of a redirect, or the next popup refresh) reuses it.
+	 * The handle is attached to the thread for the whole hop, so that the handshake of a connection opened again by the JVM still obeys it.
+	 * The {@link CircuitBreaker} of the host of the hop is judged on its response, so that a failing redirect target doesn't count against the host that redirected to it.
+	 */
+	private Hop attemptHop(RequestHandle handle, String urlString, String logName, PageHandler pages, String method, Map<String, String> requestHeaders, String data, String withheld) throws IOException {
+		handle.hop();
 		HttpsURLConnection connection;
-		notifyObservers(new DownloaderStatus(urlString, "Conneting", null, 0));
+		CircuitBreaker breaker = null; // Set back to null once the response has judged the host
+		long start = System.nanoTime();
+		handle.attach();
 		try {
 			URL url = new URL(urlString);
+			CircuitBreaker b = CircuitBreaker.forHost(url.getHost());
+			if (!b.allowRequest()) {
+				circuitOpen(b, logName, urlString);
+				return new Hop(-1, null, false);
+			}
+			breaker = b;
+			publish(RequestEvent.Type.STARTED, logName, urlString, -1, null);
+			Config config = Config.current();
+			resolve(handle, url.getHost(), config.getDnsTimeout());
 			connection = (HttpsURLConnection) url.openConnection();
-			connection.setHostnameVerifier(this);
+			connection.setSSLSocketFactory(TimingSSLSocketFactory.wrap(TlsContext.getDefault().getSocketFactory()));
+			connection.setConnectTimeout(config.getConnectTimeout());
+			connection.setReadTimeout(config.getFirstByteTimeout());
+			connection.setInstanceFollowRedirects(false); // Redirects are followed by attemptDownload, so that the session's cookies are sent and stored at each hop
 			connection.setRequestMethod(method);
 			// Changes the User Agent. Default is Chrome's
-			connection.setRequestProperty("User-Agent", prefs.get("UserAgent", "Mozilla/5.0 (Windows NT 6.2; WOW64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/31.0.1629.2 Safari/537.36"));
+			connection.setRequestProperty("User-Agent", config.getUserAgent());
+			connection.setRequestProperty("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
 			if (requestHeaders != null)
 				for (String key : requestHeaders.keySet()) {
 					connection.addRequestProperty(key, requestHeaders.get(key));
 				}
 
+			URI uri = url.toURI();
+			List<String> cookieHeader = cookies.get(uri, connection.getRequestProperties(), withheld).get("Cookie");
+			boolean sentCookies = cookieHeader != null && !cookieHeader.isEmpty();
+			if (sentCookies) {
+				StringBuilder sb = new StringBuilder();
+				for (String cookie : cookieHeader)
+					sb.append(sb.length() > 0 ? "; " : "").append(cookie);
+				connection.setRequestProperty("Cookie", sb.toString());
+			}
+
 			connection.setDoInput(true);
 			connection.setDoOutput(data != null);
-			Map<String, List<String>> requestProperties = connection.getRequestProperties();
-
+			boolean capture = CaptureLog.getDefault().sample(logName);
+			Map<String, List<String>> requestProperties = capture ? connection.getRequestProperties() : null; // A copy, only made for the capture log
 
-			log.fine("Downloading (" + method + ") " + url.toExternalForm());
+			TimingSSLSocketFactory.reset();
+			handle.enter(RequestHandle.Phase.CONNECT, 0, null); // Bounded by the connect timeout, the TLS phase being entered by the socket factory
+			connection.connect();
+			handle.enter(RequestHandle.Phase.RESPONSE, 0, new Closeable() {
+				@Override
+				public void close() {
+					connection.disconnect();
+				}
+			});
+			handle.check();
+			long connected = System.nanoTime(), layered = TimingSSLSocketFactory.connectedAt();
+			if (layered != 0 && connection.getSSLSession().isPresent())
+				TlsContext.getDefault().handshakeCompleted(connection.getSSLSession().get(), TimingSSLSocketFactory.resumable());
 			if (data != null) {
 				DataOutputStream out = new DataOutputStream(connection.getOutputStream());
 				out.writeBytes(data);
 				out.flush();
 				out.close();
-			} else
-				connection.connect();
+			}
 
 			int code = connection.getResponseCode();
+			long firstByte = System.nanoTime();
+			judge(breaker, code);
+			breaker = null;
+			Map<String, List<String>> responseHeaders = connection.getHeaderFields();
+			cookies.put(uri, responseHeaders);
+			boolean more = pages.processHeaders(code, responseHeaders), readBody = more && !"HEAD".equals(method);
 			Document doc = null;
-			try {
-				doc = Jsoup.parse(connection.getInputStream(), null, url.toExternalForm());
-				connection.getInputStream().close();
+			BodyTagMatcher matcher = null;
+			ResponseBody body = null;
+			// Error responses are read from the error stream, which is null if they have no body
+			try (InputStream in = code >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+				if (in == null) {
+					// Nothing to read
+				} else if (readBody && (code == 200 || capture)) {
+					// Only the body tag of the popup is needed, the reading stops as soon as it's found unless the page is captured
+					if (code == 200 && !pages.needsDocument())
+						matcher = new BodyTagMatcher();
+					body = new ResponseBody(matcher, matcher == null || capture, Config.current().getMaxBody(logName));
+					ContentDecoder decoder = ContentDecoder.forEncoding(connection.getContentEncoding());
+					try {
+						body.readFrom(in, decoder);
+					} finally {
+						decoder.end();
+					}
+					if (body.isTruncated())
+						log.warning("Body of " + Redactor.url(urlString) + " is larger than " + body.size() + " bytes, ignoring the rest");
+					if (code == 200 && matcher == null)
+						doc = Jsoup.parse(body.inputStream(), null, url.toExternalForm());
+				} else // Read the rest of the response so that the connection can be reused
+					ResponseBody.discard(in);
 			} catch (IOException e) {
-				log.severe("Got error while downloading " + urlString + " : " + e.getMessage());
-			}
-			if (code == 200) {
-				processor.processDocument(doc);
-			} else if (code == 302) {
-				log.fine("Got 302, redirecting to : " + connection.getHeaderField("Location"));
-				if (connection.getHeaderField("Location") != null) {
-					return getUrl(connection.getHeaderField("Location"), logName, null);
+				if (handle.isAborted())
+					throw e;
+				log.severe("Got error while downloading " + Redactor.url(urlString) + " : " + e.getMessage());
+			}
+			try {
+				if (code == 200 && readBody) {
+					if (matcher != null)
+						pages.processBodyTag(matcher);
+					else if (doc != null)
+						pages.processDocument(doc);
+				}
+				long end = System.nanoTime();
+				// Without a new connection (persistent one reused), neither the TCP nor the TLS part is known
+				Metrics.getDefault().route(logName).record(code, layered != 0 ? layered - start : -1, layered != 0 ? connected - layered : -1, firstByte - start, end - firstByte, end - start);
+				EventLog.getDefault().request(processor.getName(), logName, method, urlString, code, end - start);
+				if (capture) {
+					byte[] bytes = body != null ? body.toByteArray() : null;
+					CaptureLog.getDefault().capture(new CaptureLog.Record(processor.getName(), logName, url.toExternalForm(), method, code, requestProperties, responseHeaders, data,
+							bytes, bytes != null ? bytes.length : 0));
 				}
+			} finally {
+				if (body != null)
+					body.release();
 			}
-			connection.disconnect();
-			writeLog(logName, doc, url.toExternalForm(), method, code, requestProperties, connection.getHeaderFields(), data);
-			notifyObservers(new DownloaderStatus(urlString, "Conneting", null, code));
-			return code;
-		} catch (MalformedURLException e) {
-			log.severe("Error : URL " + urlString + " is malformed.");
-			System.exit(-1);
+			publish(RequestEvent.Type.COMPLETED, logName, urlString, code, null);
+			return new Hop(code, more ? connection.getHeaderField("Location") : null, !sentCookies && GlobalCookieHandler.setCookieHeaders(responseHeaders).isEmpty());
+		} catch (MalformedURLException | URISyntaxException e) {
+			log.severe("Error : URL " + Redactor.url(urlString) + " is malformed.");
 		} catch (ClassCastException e) {
-			log.severe("URLConnection to " + urlString + " can't be casted to HTTPS");
-			System.exit(-1);
+			log.severe("URLConnection to " + Redactor.url(urlString) + " can't be casted to HTTPS");
 		} catch (IOException e) {
-			log.severe("Error while connecting : " + e.getMessage());
-			notifyObservers(new DownloaderStatus("Connection timeout", urlString, e, -1));
-			try {
-				GlobalCookieHandler.getDefault().clearCookies();
-				Thread.sleep(prefs.getInt("delay", 3000));
-			} catch (InterruptedException ignore) {
+			IOException failure = handle.failure(e);
+			if (breaker != null) {
+				judge(breaker, failure);
+				breaker = null;
 			}
-			if (!exit)
-				return downloadUrl(urlString, logName, method, requestHeaders, data, retries + 1);
+			throw failure;
+		} finally {
+			if (breaker != null) // Ended before the host could be judged
+				breaker.release();
+			handle.detach();
 		}
-		return -1;
-	}
-
-	private void writeLog(String logname, Document doc, String url, String method, int code, Map<String, List<String>> requestHeaders, Map<String, List<String>> responseHeaders, String data) throws IOException {
-		String logDir = prefs.get("logDir", null);
-		if (logDir == null || logDir.isEmpty())
-			return;
-		String filename = String.format(logFile, logname);
-		PrintWriter out = new PrintWriter(new File(filename));
-		out.println("<!--Request URL: " + url +
-				"\nRequest Method: " + method +
-				"\nStatus Code: " + code +
-				"\nRequest Headers");
-		Map<String, List<String>> headers = requestHeaders;
-		StringBuilder sb;
-		for (String key : headers.keySet()) {
-			sb = new StringBuilder("\t");
-			sb.append(key).append(": ");
-			int n = 0;
-			for (String val : headers.get(key))
-				if (val != null)
-					sb.append(n++ > 0 ? "," + val : val);
-			out.println(sb.toString());
+		return new Hop(-1, null, false);
+	}
+
+	/**
+	 * Waits for the address of the host, see {@link HostResolver}.
+	 */
+	private static void resolve(RequestHandle handle, String host, long timeout) throws IOException {
+		final CompletableFuture<Void> lookup = HostResolver.resolve(host, 0);
+		handle.enter(RequestHandle.Phase.DNS, 0, new Closeable() {
+			@Override
+			public void close() {
+				lookup.cancel(false);
+			}
+		});
+		try { // Waiting with a timeout rather than on a deadline, which a busy timer could run late
+			if (timeout > 0)
+				lookup.get(timeout, TimeUnit.MILLISECONDS);
+			else
+				lookup.get();
+		} catch (TimeoutException e) {
+			throw new SocketTimeoutException("DNS lookup of " + host + " took more than " + timeout + "ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted during the DNS lookup of " + host);
+		} catch (CancellationException e) {
+			throw handle.failure(new InterruptedIOException("DNS lookup of " + host + " cancelled"));
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new CompletionException(e.getCause());
 		}
-		if (data != null) {
-			//out.println("With POST Data"); // Not logging the data for obvious reasons.
-			out.println("With POST Data : " + data);
+	}
+
+	/**
+	 * @return the method of the request following a redirect : like browsers, a 303 turns anything but HEAD into a GET and a 301 or 302 turns a POST into a GET, while 307 and 308 keep the method and its data
+	 */
+	private static String redirectMethod(int code, String method) {
+		if (code == 303)
+			return "HEAD".equals(method) ? method : "GET";
+		if ((code == 301 || code == 302) && "POST".equals(method))
+			return "GET";
+		return method;
+	}
+
+	/**
+	 * @return the headers of the request following a redirect. The caller's headers are kept, except those describing the data when the method changes, and the Origin and Authorization headers when the redirect leaves the original host. The cookies are always those of the new host.
+	 */
+	private static Map<String, String> redirectHeaders(String from, String to, Map<String, String> headers, boolean methodChanged) {
+		if (headers == null || headers.isEmpty())
+			return headers;
+		URI a = URI.create(from), b = URI.create(to);
+		boolean crossOrigin = !a.getScheme().equalsIgnoreCase(b.getScheme()) || !a.getHost().equalsIgnoreCase(b.getHost()) || a.getPort() != b.getPort();
+		if (!methodChanged && !crossOrigin)
+			return headers;
+		Map<String, String> map = new HashMap<>();
+		for (Map.Entry<String, String> e : headers.entrySet()) {
+			String key = e.getKey();
+			if (methodChanged && (key.equalsIgnoreCase("Content-Type") || key.equalsIgnoreCase("Content-Length") || key.equalsIgnoreCase("Origin")))
+				continue;
+			if (crossOrigin && (key.equalsIgnoreCase("Origin") || key.equalsIgnoreCase("Authorization")))
+				continue;
+			map.put(key, e.getValue());
 		}
-		out.println("\nResponse Headers");
-		headers = responseHeaders;
-		for (String key : headers.keySet()) {
-			sb = new StringBuilder("\t");
-			if (key != null)
-				sb.append(key).append(": ");
-			int n = 0;
-			for (String val : headers.get(key))
-				sb.append(n++ > 0 ? "," + val : val);
-			out.println(sb.toString());
+		return map;
+	}
+
+	private CompletableFuture<Integer> sendAsync(String urlString, String logName, PageHandler pages, String method, Map<String, String> requestHeaders, String data) {
+		return sendAsync(urlString, logName, pages, method, requestHeaders, data, null, generation, 1, 0, System.currentTimeMillis());
+	}
+
+	/**
+	 * Sends a request, retrying it as long as the {@link RetryPolicy} allows when it fails with an {@link IOException}. The retries are scheduled on the {@link TimerWheel} rather than waited for, and each attempt is sent with the transport of the downloader, the synchronous one blocking the thread that makes the attempt.
+	 *
+	 * @return a future completed with the HTTP status code, or -1 if the request failed or wasn't sent because the circuit to one of its hosts is open
+	 */
+	private CompletableFuture<Integer> sendAsync(final String urlString, final String logName, final PageHandler pages, final String method, final Map<String, String> requestHeaders, final String data, final String withheld,
+												 final int generation, final int attempt, final long previousDelay, final long start) {
+		final RequestHandle handle = begin(generation);
+		CompletableFuture<Integer> sent = async ? attemptAsync(handle, urlString, logName, pages, method, requestHeaders, data, withheld) : attemptBlocking(handle, urlString, logName, pages, method, requestHeaders, data, withheld);
+		return sent.handle(new BiFunction<Integer, Throwable, CompletableFuture<Integer>>() {
+			@Override
+			public CompletableFuture<Integer> apply(Integer code, Throwable error) {
+				end(handle);
+				if (error == null)
+					return CompletableFuture.completedFuture(code);
+				Throwable t = handle.failure(error);
+				if (t instanceof RequestHandle.CancelledException) {
+					cancelled(logName, urlString, (IOException) t);
+					return CompletableFuture.completedFuture(-1);
+				}
+				if (!(t instanceof IOException))
+					return CompletableFuture.<Integer>failedFuture(t);
+				IOException e = (IOException) t;
+				log.severe("Error while connecting : " + e.getMessage());
+				publish(RequestEvent.Type.FAILED, logName, urlString, -1, e);
+				Metrics.Route route = Metrics.getDefault().route(logName);
+				route.error();
+				RetryPolicy retryPolicy = getRetryPolicy();
+				if (retryPolicy.shouldClearCookies(e))
+					cookies.clearCookies();
+				final long delay = retryPolicy.nextDelay(attempt, previousDelay, System.currentTimeMillis() - start, e);
+				if (delay < 0 || exit || generation != HTTPSDownloader.this.generation) {
+					log.warning("Giving up on " + Redactor.url(urlString) + " after " + attempt + " attempts");
+					return CompletableFuture.completedFuture(-1);
+				}
+				route.retry();
+				final CompletableFuture<Void> backoff = new CompletableFuture<>();
+				TimerWheel.getDefault().schedule(new Runnable() {
+					@Override
+					public void run() {
+						backoff.complete(null);
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+				return backoff.thenCompose(new Function<Void, CompletionStage<Integer>>() {
+					@Override
+					public CompletionStage<Integer> apply(Void v) {
+						return exit || generation != HTTPSDownloader.this.generation ? CompletableFuture.completedFuture(-1) :
+								sendAsync(urlString, logName, pages, method, requestHeaders, data, withheld, generation, attempt + 1, delay, start);
+					}
+				});
+			}
+		}).thenCompose(FLATTEN);
+	}
+
+	/**
+	 * Sends a request with the synchronous transport on the current thread, for {@link #sendAsync}.
+	 */
+	private CompletableFuture<Integer> attemptBlocking(RequestHandle handle, String urlString, String logName, PageHandler pages, String method, Map<String, String> requestHeaders, String data, String withheld) {
+		try {
+			return CompletableFuture.completedFuture(attemptDownload(handle, urlString, logName, pages, method, requestHeaders, data, withheld));
+		} catch (IOException | RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
 		}
-		out.println("\nContent : \n\n-->");
-		if (doc != null)
-			out.write(doc.outerHtml());
-		out.flush();
-		out.close();
-		log.log((code == 200 ? Level.INFO : Level.SEVERE), "File parsed and printed to logfile " + filename + "(" + url + ")");
+	}
+
+	/**
+	 * Asynchronous counterpart of {@link #attemptDownload}.
+	 */
+	private CompletableFuture<Integer> attemptAsync(RequestHandle handle, String urlString, String logName, PageHandler pages, String method, Map<String, String> requestHeaders, String data, String withheld) {
+		String url = urlString;
+		if (data == null && "GET".equals(method)) {
+			url = redirects.resolve(urlString, cookies, Config.current().getMaxRedirects());
+			if (!url.equals(urlString) && log.isLoggable(Level.FINE))
+				log.fine("Going straight to " + Redactor.url(url) + " instead of " + Redactor.url(urlString));
+		}
+		return hopAsync(handle, urlString, url, logName, pages, method, requestHeaders, data, withheld, 0);
+	}
+
+	/**
+	 * Sends one hop of a request and the following ones if it is redirected.
+	 *
+	 * @param origin URL the request was made for, that urlString may be a learned redirect of
+	 */
+	private CompletableFuture<Integer> hopAsync(final RequestHandle handle, final String origin, final String urlString, final String logName, final PageHandler pages, final String method, final Map<String, String> requestHeaders, final String data, final String withheld, final int hop) {
+		try {
+			handle.hop();
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		final Config config = Config.current();
+		final URI uri;
+		final HttpRequest request;
+		final boolean sentCookies;
+		try {
+			uri = new URI(urlString);
+			HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+					.header("User-Agent", config.getUserAgent())
+					.header("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
+			if (config.getFirstByteTimeout() > 0)
+				builder.timeout(Duration.ofMillis((long) config.getConnectTimeout() + config.getTlsTimeout() + config.getFirstByteTimeout()));
+			if (requestHeaders != null)
+				for (String key : requestHeaders.keySet())
+					builder.header(key, requestHeaders.get(key));
+			List<String> cookieHeader = cookies.get(uri, requestHeaders != null ? AsyncTransport.asHeaderMap(requestHeaders) : AsyncTransport.EMPTY_HEADERS, withheld).get("Cookie");
+			sentCookies = cookieHeader != null && !cookieHeader.isEmpty();
+			if (sentCookies)
+				builder.header("Cookie", String.join("; ", cookieHeader));
+			if (data != null)
+				builder.header("Content-Type", "application/x-www-form-urlencoded").method(method, HttpRequest.BodyPublishers.ofString(data));
+			else
+				builder.method(method, HttpRequest.BodyPublishers.noBody());
+			request = builder.build();
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			log.severe("Error : URL " + Redactor.url(urlString) + " is malformed.");
+			return CompletableFuture.completedFuture(-1);
+		}
+		final CircuitBreaker breaker = CircuitBreaker.forHost(uri.getHost());
+		if (!breaker.allowRequest()) {
+			circuitOpen(breaker, logName, urlString);
+			return CompletableFuture.completedFuture(-1);
+		}
+		publish(RequestEvent.Type.STARTED, logName, urlString, -1, null);
+
+		final long start = System.nanoTime();
+		final long[] firstByte = new long[1];
+		final boolean[] more = new boolean[1];
+		final boolean capture = CaptureLog.getDefault().sample(logName);
+		final long maxBody = config.getMaxBody(logName);
+		// The popup is streamed through a BodyTagMatcher, other pages are decoded and kept to be parsed. Bodies nobody looks at are discarded as they arrive
+		final HttpResponse.BodyHandler<ResponseBody> handler = new HttpResponse.BodyHandler<ResponseBody>() {
+			@Override
+			public HttpResponse.BodySubscriber<ResponseBody> apply(HttpResponse.ResponseInfo info) {
+				firstByte[0] = System.nanoTime();
+				more[0] = pages.processHeaders(info.statusCode(), info.headers().map());
+				if (!more[0] || "HEAD".equals(method) || info.statusCode() != 200 && !capture)
+					return HttpResponse.BodySubscribers.replacing(null);
+				BodyTagMatcher matcher = info.statusCode() == 200 && !pages.needsDocument() ? new BodyTagMatcher() : null;
+				return new ResponseBody.Subscriber(new ResponseBody(matcher, matcher == null || capture, maxBody), ContentDecoder.forEncoding(info.headers().firstValue("Content-Encoding").orElse(null)));
+			}
+		};
+		final CompletableFuture<Void> lookup = HostResolver.resolve(uri.getHost(), config.getDnsTimeout());
+		handle.enter(RequestHandle.Phase.DNS, 0, new Closeable() {
+			@Override
+			public void close() {
+				lookup.cancel(false);
+			}
+		});
+		final CompletableFuture<HttpResponse<ResponseBody>> sent = lookup.thenCompose(new Function<Void, CompletionStage<HttpResponse<ResponseBody>>>() {
+			@Override
+			public CompletionStage<HttpResponse<ResponseBody>> apply(Void v) {
+				// Cancelling the future of the response aborts the exchange
+				final CompletableFuture<HttpResponse<ResponseBody>> response = AsyncTransport.client().sendAsync(request, handler);
+				handle.enter(RequestHandle.Phase.RESPONSE, 0, new Closeable() {
+					@Override
+					public void close() {
+						response.cancel(true);
+					}
+				});
+				return response;
+			}
+		});
+		sent.whenComplete(new BiConsumer<HttpResponse<ResponseBody>, Throwable>() {
+			@Override
+			public void accept(HttpResponse<ResponseBody> response, Throwable error) {
+				if (error == null)
+					judge(breaker, response.statusCode());
+				else
+					judge(breaker, handle.failure(error));
+			}
+		});
+		return sent.thenCompose(new Function<HttpResponse<ResponseBody>, CompletionStage<Integer>>() {
+			@Override
+			public CompletionStage<Integer> apply(HttpResponse<ResponseBody> response) {
+				cookies.put(uri, response.headers().map());
+				int code = response.statusCode();
+				ResponseBody body = response.body();
+				try {
+					if (body != null && body.isTruncated())
+						log.warning("Body of " + Redactor.url(urlString) + " is larger than " + body.size() + " bytes, ignoring the rest");
+					if (code == 200 && body != null) {
+						if (body.getMatcher() != null)
+							pages.processBodyTag(body.getMatcher());
+						else
+							pages.processDocument(Jsoup.parse(body.inputStream(), AsyncTransport.charset(response).name(), urlString));
+					}
+					long end = System.nanoTime();
+					// The HttpClient doesn't expose its connections, only the time to the response headers is known
+					Metrics.getDefault().route(logName).record(code, -1, -1, firstByte[0] - start, end - firstByte[0], end - start);
+					EventLog.getDefault().request(processor.getName(), logName, method, urlString, code, end - start);
+					if (capture) {
+						byte[] bytes = body != null ? body.toByteArray() : null;
+						CaptureLog.getDefault().capture(new CaptureLog.Record(processor.getName(), logName, urlString, method, code, request.headers().map(), response.headers().map(), data, bytes, bytes != null ? bytes.length : 0));
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e); // Can't happen, the body is in memory
+				} finally {
+					if (body != null)
+						body.release();
+				}
+				publish(RequestEvent.Type.COMPLETED, logName, urlString, code, null);
+
+				if (hop == 0 && code >= 400 && !urlString.equals(origin)) {
+					log.info("Learned redirect target " + Redactor.url(urlString) + " answered " + code + ", following the redirects from " + Redactor.url(origin));
+					redirects.invalidate(origin);
+					return hopAsync(handle, origin, origin, logName, pages, method, requestHeaders, data, withheld, hop + 1);
+				}
+				String location = more[0] ? response.headers().firstValue("Location").orElse(null) : null;
+				if (!RedirectCache.isRedirect(code) || location == null)
+					return CompletableFuture.completedFuture(code);
+				int maxRedirects = config.getMaxRedirects();
+				if (hop >= maxRedirects) {
+					log.warning("Not following more than " + maxRedirects + " redirects, giving up at " + Redactor.url(urlString));
+					return CompletableFuture.completedFuture(code);
+				}
+				String next;
+				try {
+					next = uri.resolve(location).toString();
+				} catch (IllegalArgumentException e) {
+					log.warning("Ignoring malformed redirect to " + Redactor.url(location));
+					return CompletableFuture.completedFuture(code);
+				}
+				if (log.isLoggable(Level.FINE))
+					log.fine("Got " + code + ", redirecting to : " + Redactor.url(next));
+				if (data == null && "GET".equals(method))
+					redirects.learn(urlString, next, code, !sentCookies && response.headers().allValues("Set-Cookie").isEmpty());
+				String nextMethod = redirectMethod(code, method);
+				boolean methodChanged = !nextMethod.equals(method);
+				return hopAsync(handle, origin, next, logName, pages, nextMethod, redirectHeaders(urlString, next, requestHeaders, methodChanged), methodChanged ? null : data, withheld, hop + 1);
+			}
+		});
 	}
 
 	public String encodeData(Map<String, String> data) {
@@ -183,43 +678,108 @@ public class HTTPSDownloader extends Observable implements HostnameVerifier {
 		return str.toString();
 	}
 
-	protected void stop() {
-		exit = true;
+	/**
+	 * @return the policy deciding when failed requests are retried, the one of the current {@link Config} unless another was set
+	 */
+	public RetryPolicy getRetryPolicy() {
+		RetryPolicy policy = retryPolicy;
+		return policy != null ? policy : Config.current().getRetryPolicy();
 	}
 
-	@Override
-	public boolean verify(String hostname, SSLSession session) {
-		// Turns off hostname verifying by accepting anything
-		return true;
+	/**
+	 * Replaces the policy deciding when failed requests are retried, a {@link BackoffRetryPolicy} built from the {@link Config} by default.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
 	}
 
-	public class DownloaderStatus {
-		private int httpCode;
-		private String status, url;
-		private Throwable exception;
+	/**
+	 * Outcome of a single request of a redirect chain.
+	 */
+	private static class Hop {
+		private final int code;
+		private final String location;
+		private final boolean cacheable; // Whether the redirect depended on and set no cookie
 
-		public DownloaderStatus(String status, String url, Throwable exception, int httpCode) {
-			this.status = status;
-			this.url = url;
-			this.exception = exception;
-			this.httpCode = httpCode;
+		private Hop(int code, String location, boolean cacheable) {
+			this.code = code;
+			this.location = location;
+			this.cacheable = cacheable;
 		}
+	}
 
-		public int getHttpCode() {
-			return httpCode;
-		}
+	private void publish(RequestEvent.Type type, String logName, String url, int code, Throwable error) {
+		events.publish(new RequestEvent(processor, type, logName, url, code, error));
+	}
 
-		public String getStatus() {
-			return status;
-		}
+	/**
+	 * Starts tracking a request, as the one {@link #cancel()} aborts.
+	 *
+	 * @param generation value of {@link #generation} when the request was made. If it changed since, the request is cancelled right away
+	 */
+	private RequestHandle begin(int generation) {
+		RequestHandle handle = new RequestHandle(Config.current().getRequestTimeout());
+		current = handle;
+		if (exit || generation != this.generation)
+			handle.cancel();
+		return handle;
+	}
 
-		public String getUrl() {
-			return url;
-		}
+	private void end(RequestHandle handle) {
+		handle.finish();
+		if (current == handle)
+			current = null;
+	}
 
-		public Throwable getException() {
-			return exception;
+	private void circuitOpen(CircuitBreaker breaker, String logName, String urlString) {
+		log.warning("Circuit to " + breaker.getHost() + " is open, not downloading " + Redactor.url(urlString));
+		publish(RequestEvent.Type.CIRCUIT_OPEN, logName, urlString, -1, null);
+	}
+
+	/**
+	 * Tells the breaker of a hop how its host answered : a 5xx is a failure, any other status a success.
+	 */
+	private static void judge(CircuitBreaker breaker, int code) {
+		if (code >= 500)
+			breaker.onFailure();
+		else
+			breaker.onSuccess();
+	}
+
+	/**
+	 * Tells the breaker of a hop that it failed. Only I/O errors count against the host, a cancelled request or a bug saying nothing of it.
+	 */
+	private static void judge(CircuitBreaker breaker, Throwable error) {
+		if (error instanceof IOException && !(error instanceof RequestHandle.CancelledException))
+			breaker.onFailure();
+		else
+			breaker.release();
+	}
+
+	private void cancelled(String logName, String urlString, IOException e) {
+		if (log.isLoggable(Level.FINE))
+			log.fine("Cancelled the request to " + Redactor.url(urlString));
+		publish(RequestEvent.Type.CANCELLED, logName, urlString, -1, e);
+	}
+
+	/**
+	 * Aborts the request in progress, if any, and gives up the retries of the requests made before : they complete with -1 right away. Requests made afterwards are sent as usual.
+	 */
+	public void cancel() {
+		synchronized (this) {
+			generation++;
 		}
+		RequestHandle handle = current;
+		if (handle != null)
+			handle.cancel();
+	}
+
+	/**
+	 * Cancels the request in progress and all the following ones.
+	 */
+	protected void stop() {
+		exit = true;
+		cancel();
 	}
 
 }
@@ -0,0 +1,120 @@
+package eu.neurovertex.yacapd;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the spirit of HdrHistogram : each power of two is split in 16 buckets, which keeps the error on any percentile under about 6%.
+ * Values are recorded in microseconds, from 1us to about 12 days. Recording is a couple of atomic increments and never allocates, reading the percentiles walks the buckets.
+ *
+ * @author NeuroVertex
+ */
+public class Histogram implements HistogramMXBean {
+	private static final int SUB_BITS = 4, SUB = 1 << SUB_BITS, MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder(), sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos the duration in nanoseconds, negative values are ignored
+	 */
+	public void recordNanos(long nanos) {
+		if (nanos < 0)
+			return;
+		long micros = nanos / 1000;
+		buckets.incrementAndGet(index(micros));
+		count.increment();
+		sum.add(micros);
+		long m;
+		while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) ;
+	}
+
+	private static int index(long value) {
+		if (value < SUB)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT)
+			return BUCKETS - 1;
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB - 1);
+		return (exponent - SUB_BITS + 1) * SUB + sub;
+	}
+
+	/**
+	 * @return the value in the middle of the given bucket, in microseconds
+	 */
+	private static double value(int index) {
+		if (index < SUB)
+			return index;
+		int exponent = index / SUB + SUB_BITS - 1, sub = index % SUB;
+		long width = 1L << (exponent - SUB_BITS);
+		return ((SUB + sub) * width) + width / 2.0;
+	}
+
+	/**
+	 * @param quantile between 0 and 1
+	 * @return the value under which the given proportion of the recorded values fall, in microseconds
+	 */
+	public double quantileMicros(double quantile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			total += snapshot[i] = buckets.get(i);
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(quantile * total)), seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(value(i), max.get());
+		}
+		return max.get();
+	}
+
+	@Override
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the sum of the recorded values, in microseconds
+	 */
+	public long getSumMicros() {
+		return sum.sum();
+	}
+
+	@Override
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : sum.sum() / 1000.0 / n;
+	}
+
+	@Override
+	public double getMax() {
+		return max.get() / 1000.0;
+	}
+
+	@Override
+	public double getP50() {
+		return quantileMicros(0.5) / 1000;
+	}
+
+	@Override
+	public double getP90() {
+		return quantileMicros(0.9) / 1000;
+	}
+
+	@Override
+	public double getP99() {
+		return quantileMicros(0.99) / 1000;
+	}
+
+	@Override
+	public double getP999() {
+		return quantileMicros(0.999) / 1000;
+	}
+}
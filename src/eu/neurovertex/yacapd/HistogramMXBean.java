@@ -0,0 +1,22 @@
+package eu.neurovertex.yacapd;
+
+/**
+ * JMX view of a {@link Histogram}. Durations are in milliseconds.
+ *
+ * @author NeuroVertex
+ */
+public interface HistogramMXBean {
+	long getCount();
+
+	double getMean();
+
+	double getMax();
+
+	double getP50();
+
+	double getP90();
+
+	double getP99();
+
+	double getP999();
+}
@@ -0,0 +1,92 @@
+package eu.neurovertex.yacapd;
+
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Bounds the time the requests spend resolving host names. Both transports resolve them with a blocking call that neither the connect nor the read timeout covers and that can't be interrupted, so the lookup is made here beforehand, on a thread of its own, and the request only waits for it "dnsTimeout" milliseconds (5000). The address then is in the cache of {@link InetAddress}, where the transport finds it.
+ * <p/>
+ * A host resolved less than {@link #TTL} ago isn't looked up again, and a lookup that is still running is shared by all the requests to its host rather than started again, so that a hung resolver doesn't pile up threads.
+ *
+ * @author NeuroVertex
+ */
+final class HostResolver {
+	/**
+	 * Time in milliseconds a lookup is trusted, the time the JVM caches successful lookups by default
+	 */
+	static final long TTL = 30000;
+	private static final CompletableFuture<Void> RESOLVED = CompletableFuture.completedFuture(null);
+	private static final ConcurrentHashMap<String, Long> resolved = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+	private static final ExecutorService lookups = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "yacap-dns-" + count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private HostResolver() {
+	}
+
+	/**
+	 * @param timeout time in milliseconds to wait for the lookup, 0 for no limit (a caller that blocks can rather wait for the future with a timeout)
+	 * @return a future completed once the host is resolved, or failed with an {@link UnknownHostException} or, when it takes too long, a {@link SocketTimeoutException}. Cancelling it doesn't stop the lookup, which is shared
+	 */
+	static CompletableFuture<Void> resolve(final String host, final long timeout) {
+		if (host == null)
+			return RESOLVED;
+		Long at = resolved.get(host);
+		if (at != null && System.currentTimeMillis() - at < TTL)
+			return RESOLVED;
+		CompletableFuture<Void> lookup = pending.get(host);
+		if (lookup == null)
+			lookup = pending.computeIfAbsent(host, new Function<String, CompletableFuture<Void>>() {
+				@Override
+				public CompletableFuture<Void> apply(final String h) {
+					return CompletableFuture.runAsync(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								InetAddress.getAllByName(h);
+								resolved.put(h, System.currentTimeMillis());
+							} catch (UnknownHostException e) {
+								throw new CompletionException(e);
+							} finally {
+								pending.remove(h);
+							}
+						}
+					}, lookups);
+				}
+			});
+		if (timeout <= 0)
+			return lookup.copy();
+		final CompletableFuture<Void> result = lookup.copy();
+		final TimerWheel.Timeout expiry = TimerWheel.getDeadlines().schedule(new Runnable() {
+			@Override
+			public void run() { // Completed on a lookup thread, the stages depending on the result don't belong on the thread of the deadlines
+				lookups.execute(new Runnable() {
+					@Override
+					public void run() {
+						result.completeExceptionally(new SocketTimeoutException("DNS lookup of " + host + " took more than " + timeout + "ms"));
+					}
+				});
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		result.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable error) {
+				expiry.cancel();
+			}
+		});
+		return result;
+	}
+}
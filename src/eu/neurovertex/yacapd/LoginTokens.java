@@ -0,0 +1,119 @@
+package eu.neurovertex.yacapd;
+
+import org.jsoup.nodes.Document;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hidden fields of the login form (for the CAS, "lt", "execution" and "_eventId", see {@link PortalProfile}), fetched ahead of time while the session is connected so that a reconnection only takes the POST of {@link YacapPageProcessor.YacapState#AUTH} instead of downloading the form first.
+ * <p/>
+ * The fields are tied to the CAS session cookie, so they are only considered valid for "tokenTtl" seconds (600) and as long as the cookies haven't been cleared since they were fetched. They are refetched once half of that time has passed, and can only be used once since the login ticket is consumed by the POST.
+ * The form is fetched without the ticket-granting cookie of the CAS (see {@link PortalProfile#getTicketGrantingCookie()}), which would otherwise log the session in again and open a second portal session instead of showing the form. A prefetch that finds no tokens isn't tried again before half the lifetime has passed, so that a CAS that doesn't show the form isn't asked for it every iteration.
+ *
+ * @author NeuroVertex
+ */
+public class LoginTokens implements PageHandler {
+	private static final Logger log = Logger.getLogger(LoginTokens.class.getName());
+
+	private final GlobalCookieHandler cookies;
+	private final long ttl;
+	private final PortalProfile profile;
+	private volatile Tokens tokens;
+	private volatile long missedAt = Long.MIN_VALUE / 2; // Time of the last prefetch that found no tokens
+
+	/**
+	 * @param cookies cookie jar of the session
+	 * @param ttl     time in milliseconds during which fetched tokens are considered valid
+	 * @param profile profile of the portal, telling where the hidden fields of the login form are
+	 */
+	public LoginTokens(GlobalCookieHandler cookies, long ttl, PortalProfile profile) {
+		this.cookies = cookies;
+		this.ttl = ttl;
+		this.profile = profile;
+	}
+
+	/**
+	 * @return true if there are no valid tokens or they are past half their lifetime, unless the last prefetch found none less than half their lifetime ago
+	 */
+	public boolean needsRefresh() {
+		Tokens t = tokens;
+		long now = System.currentTimeMillis();
+		return (t == null || !isValid(t, now + ttl / 2)) && now - missedAt >= ttl / 2;
+	}
+
+	private boolean isValid(Tokens t, long at) {
+		return at - t.fetchedAt < ttl && t.generation == cookies.getGeneration();
+	}
+
+	/**
+	 * Downloads the login form in order to have tokens ready.
+	 *
+	 * @return a future completed once the page has been handled, with true if valid tokens were found in it
+	 */
+	public CompletableFuture<Boolean> prefetch(HTTPSDownloader downloader, YacapPageProcessor.HTTPRequest loginURL) {
+		final int generation = cookies.getGeneration();
+		final long start = System.currentTimeMillis();
+		return downloader.getUrlAsync(loginURL, "login", this, profile.getTicketGrantingCookie()).thenApply(new Function<Integer, Boolean>() {
+			@Override
+			public Boolean apply(Integer code) {
+				Tokens t = tokens;
+				boolean found = code == 200 && t != null && t.fetchedAt >= start;
+				if (!found)
+					missedAt = System.currentTimeMillis();
+				else if (t.generation != generation) { // Cookies cleared during the request, the tokens belong to a session that no longer exists
+					tokens = null;
+					found = false;
+				}
+				if (log.isLoggable(Level.FINE))
+					log.fine("Login tokens " + (found ? "prefetched" : "not found") + " (" + code + ")");
+				return found;
+			}
+		});
+	}
+
+	/**
+	 * Takes the tokens, which can't be used again afterwards.
+	 *
+	 * @return the values of the tokens, in the order of {@link PortalProfile#getFormFields()}, if they are still valid, null otherwise
+	 */
+	public String[] take() {
+		Tokens t = tokens;
+		tokens = null;
+		return t != null && isValid(t, System.currentTimeMillis()) ? t.fields : null;
+	}
+
+	public void invalidate() {
+		tokens = null;
+	}
+
+	@Override
+	public boolean needsDocument() {
+		return true;
+	}
+
+	@Override
+	public void processDocument(Document doc) {
+		String[] fields = profile.extract(doc).getForm();
+		if (fields != null)
+			tokens = new Tokens(fields, System.currentTimeMillis(), cookies.getGeneration());
+	}
+
+	@Override
+	public void processBodyTag(BodyTagMatcher body) {
+	}
+
+	private static final class Tokens {
+		private final String[] fields;
+		private final long fetchedAt;
+		private final int generation;
+
+		private Tokens(String[] fields, long fetchedAt, int generation) {
+			this.fields = fields;
+			this.fetchedAt = fetchedAt;
+			this.generation = generation;
+		}
+	}
+}
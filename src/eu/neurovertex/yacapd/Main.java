@@ -4,7 +4,10 @@ import eu.neurovertex.yacapd.gui.Gui;
 
 import java.awt.*;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.*;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
@@ -14,9 +17,10 @@ import java.util.prefs.Preferences;
  *         Date: 12/09/13, 16:29
  */
 public class Main {
+	private static final Logger log = Logger.getLogger(Main.class.getName());
 
-	public static void main(String args[]) throws IOException {
-		// TODO add command-line arguments
+	public static void main(String args[]) throws IOException, BackingStoreException, InterruptedException {
+		Config config = Config.load(args);
 		Preferences prefs = Preferences.userNodeForPackage(YacapPageProcessor.class);
 		Logger.getLogger(Main.class.getPackage().getName()).setLevel(Level.INFO); // Sets logging level
 
@@ -26,15 +30,50 @@ public class Main {
 
 		root.addHandler(new StreamHandler(System.out, new SimpleFormatter()));
 
-		if (prefs.get("username", "").isEmpty() || prefs.get("password", "").isEmpty())
-			promptLogin(prefs);
+		if (config.getMetricsPort() > 0)
+			new MetricsServer(Metrics.getDefault(), config.getMetricsPort());
 
-		YacapPageProcessor processor = new YacapPageProcessor();
-		if (!GraphicsEnvironment.isHeadless()) {
-			new Gui(processor);
+		final SessionEngine engine = new SessionEngine();
+		List<YacapPageProcessor> accounts = engine.loadAccounts(prefs);
+		if (accounts.isEmpty()) { // Single account stored directly in the package's node
+			if (prefs.get("username", "").isEmpty() || prefs.get("password", "").isEmpty())
+				promptLogin(prefs);
+
+			YacapPageProcessor processor = new YacapPageProcessor();
+			engine.add(processor);
+			if (!GraphicsEnvironment.isHeadless()) {
+				new Gui(processor);
+			} else
+				log.info("Skipping GUI (Headless environment)");
 		} else
-			System.out.println("Skipping GUI (Headless environment)");
-		new Thread(processor).start();
+			log.info("Running " + accounts.size() + " accounts, skipping GUI");
+		final ControlServer control = config.getControlSocket().isEmpty() ? null : new ControlServer(engine, Paths.get(config.getControlSocket()));
+		// Also run when the daemon is killed (SIGTERM, Ctrl+C), so that the sessions are stopped rather than cut in the middle of a request
+		Runtime.getRuntime().addShutdownHook(new Thread("yacap-shutdown") {
+			@Override
+			public void run() {
+				shutdown(engine, control);
+			}
+		});
+		engine.start();
+		engine.awaitTermination();
+		System.exit(0);
+	}
+
+	/**
+	 * Stops the sessions, aborting their requests in progress, closes the control socket and writes the pending saves of the {@link SessionStore}. The sessions are given "shutdownTimeout" milliseconds (5000) to exit, so that the daemon always exits in a bounded time.
+	 */
+	static void shutdown(SessionEngine engine, ControlServer control) {
+		long timeout = Config.current().getShutdownTimeout();
+		try {
+			if (!engine.stop(timeout, TimeUnit.MILLISECONDS))
+				log.warning(engine.getSessions().size() + " session(s) still running after " + timeout + "ms, exiting anyway");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (control != null)
+			control.stop();
+		SessionStore.getDefault().close();
 	}
 
 	public static void promptLogin(Preferences prefs) {
@@ -0,0 +1,324 @@
+package eu.neurovertex.yacapd;
+
+import eu.neurovertex.yacapd.YacapPageProcessor.YacapState;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counters and latency histograms of the requests and sessions of the JVM.
+ * <p/>
+ * Requests are grouped by route, the kind of page given to the {@link HTTPSDownloader} ("login", "auth", "popup", "logout"), and their duration is split in phases : TCP connection, TLS handshake, time to the first byte of the response, and reading and processing the page. The connection phases are only measured by the synchronous transport, and only when a new connection is opened.
+ * The TLS handshakes of the synchronous transport and of the pre-warmings are counted as full or resumed, see {@link TlsContext}.
+ * The sessions report the time spent in each state, how long it takes to get from the start of a login ({@link YacapState#LOGIN}, or {@link YacapState#AUTH} with prefetched {@link LoginTokens}) to {@link YacapState#CONNECTED}, and when their popup was last refreshed.
+ * <p/>
+ * Recording never locks : everything is kept in atomic counters and {@link Histogram}s. The metrics are registered as MXBeans under "eu.neurovertex.yacapd", and {@link MetricsServer} serves them in Prometheus' text format.
+ *
+ * @author NeuroVertex
+ */
+public class Metrics implements MetricsMXBean {
+	private static final Logger log = Logger.getLogger(Metrics.class.getName());
+	private static final String DOMAIN = "eu.neurovertex.yacapd";
+	private static final YacapState[] STATES = YacapState.values();
+	private static volatile Metrics instance;
+
+	private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<>();
+	private final LongAdder[] stateNanos = new LongAdder[STATES.length], stateEntries = new LongAdder[STATES.length];
+	private final Histogram reconnect = new Histogram();
+	private final ConcurrentHashMap<String, AtomicLong> lastRefresh = new ConcurrentHashMap<>();
+	private final LongAdder tlsFull = new LongAdder(), tlsResumed = new LongAdder();
+	private final boolean jmx;
+
+	/**
+	 * @param jmx whether the metrics should be registered to the platform MBean server
+	 */
+	public Metrics(boolean jmx) {
+		this.jmx = jmx;
+		for (int i = 0; i < STATES.length; i++) {
+			stateNanos[i] = new LongAdder();
+			stateEntries[i] = new LongAdder();
+		}
+		register("type=Metrics", this);
+		register("type=Reconnect", reconnect);
+	}
+
+	/**
+	 * @return the metrics of the JVM, registered to the platform MBean server
+	 */
+	public static Metrics getDefault() {
+		Metrics m = instance;
+		if (m == null)
+			synchronized (Metrics.class) {
+				if ((m = instance) == null)
+					instance = m = new Metrics(true);
+			}
+		return m;
+	}
+
+	private void register(String name, Object bean) {
+		if (!jmx)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(bean, new ObjectName(DOMAIN + ":" + name));
+		} catch (JMException e) {
+			log.log(Level.WARNING, "Can't register MBean " + name, e);
+		}
+	}
+
+	/**
+	 * @param name kind of page, as passed to the downloader
+	 * @return the metrics of the route, created on first use
+	 */
+	public Route route(String name) {
+		Route route = routes.get(name);
+		if (route == null) {
+			Route created = new Route(name);
+			route = routes.putIfAbsent(name, created);
+			if (route == null) {
+				route = created;
+				for (int i = 0; i < Route.PHASES.length; i++)
+					register("type=Latency,route=" + ObjectName.quote(name) + ",phase=" + Route.PHASES[i], route.phases[i]);
+			}
+		}
+		return route;
+	}
+
+	/**
+	 * Records a change of state of a session.
+	 *
+	 * @param from  state that was left
+	 * @param nanos time spent in that state
+	 */
+	public void stateChanged(YacapState from, YacapState to, long nanos) {
+		if (nanos > 0)
+			stateNanos[from.ordinal()].add(nanos);
+		stateEntries[to.ordinal()].increment();
+	}
+
+	/**
+	 * Records the time taken by a session to get from the start of a login to {@link YacapState#CONNECTED}.
+	 */
+	public void reconnected(long nanos) {
+		reconnect.recordNanos(nanos);
+	}
+
+	/**
+	 * Records a TLS handshake.
+	 *
+	 * @param resumed whether the handshake resumed a cached session
+	 */
+	public void tlsHandshake(boolean resumed) {
+		(resumed ? tlsResumed : tlsFull).increment();
+	}
+
+	/**
+	 * Records a successful refresh of the popup of a session.
+	 */
+	public void refreshed(String session) {
+		AtomicLong last = lastRefresh.get(session);
+		if (last == null)
+			last = lastRefresh.computeIfAbsent(session, new Function<String, AtomicLong>() {
+				@Override
+				public AtomicLong apply(String s) {
+					return new AtomicLong();
+				}
+			});
+		last.set(System.currentTimeMillis());
+	}
+
+	/**
+	 * Forgets a session that exited.
+	 */
+	public void removeSession(String session) {
+		lastRefresh.remove(session);
+	}
+
+	public Histogram getReconnect() {
+		return reconnect;
+	}
+
+	@Override
+	public Map<String, Long> getResponseCounts() {
+		Map<String, Long> map = new TreeMap<>();
+		for (Route route : routes.values())
+			for (int code = 0; code < Route.CODES; code++) {
+				long n = route.status.get(code);
+				if (n > 0)
+					map.put(route.name + " " + code, n);
+			}
+		return map;
+	}
+
+	@Override
+	public Map<String, Long> getErrorCounts() {
+		Map<String, Long> map = new TreeMap<>();
+		for (Route route : routes.values())
+			map.put(route.name, route.errors.sum());
+		return map;
+	}
+
+	@Override
+	public Map<String, Long> getRetryCounts() {
+		Map<String, Long> map = new TreeMap<>();
+		for (Route route : routes.values())
+			map.put(route.name, route.retries.sum());
+		return map;
+	}
+
+	@Override
+	public Map<String, Double> getStateSeconds() {
+		Map<String, Double> map = new TreeMap<>();
+		for (YacapState state : STATES)
+			map.put(state.name(), stateNanos[state.ordinal()].sum() / 1e9);
+		return map;
+	}
+
+	@Override
+	public Map<String, Long> getMillisSinceLastRefresh() {
+		Map<String, Long> map = new TreeMap<>();
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, AtomicLong> e : lastRefresh.entrySet())
+			map.put(e.getKey(), now - e.getValue().get());
+		return map;
+	}
+
+	@Override
+	public long getTlsFullHandshakes() {
+		return tlsFull.sum();
+	}
+
+	@Override
+	public long getTlsResumedHandshakes() {
+		return tlsResumed.sum();
+	}
+
+	@Override
+	public double getTlsResumptionRate() {
+		long resumed = tlsResumed.sum(), total = resumed + tlsFull.sum();
+		return total == 0 ? 0 : (double) resumed / total;
+	}
+
+	/**
+	 * Writes all the metrics in Prometheus' text exposition format.
+	 */
+	public void writeText(StringBuilder out) {
+		out.append("# HELP yacapd_request_duration_seconds Duration of the phases of the HTTP requests\n# TYPE yacapd_request_duration_seconds summary\n");
+		for (Route route : routes.values())
+			for (int i = 0; i < Route.PHASES.length; i++)
+				writeSummary(out, "yacapd_request_duration_seconds", "route=\"" + route.name + "\",phase=\"" + Route.PHASES[i] + "\"", route.phases[i]);
+
+		out.append("# HELP yacapd_http_responses_total HTTP responses by status code\n# TYPE yacapd_http_responses_total counter\n");
+		for (Route route : routes.values())
+			for (int code = 0; code < Route.CODES; code++) {
+				long n = route.status.get(code);
+				if (n > 0)
+					out.append("yacapd_http_responses_total{route=\"").append(route.name).append("\",code=\"").append(code).append("\"} ").append(n).append('\n');
+			}
+		out.append("# HELP yacapd_request_errors_total Requests that failed with an I/O error\n# TYPE yacapd_request_errors_total counter\n");
+		for (Route route : routes.values())
+			out.append("yacapd_request_errors_total{route=\"").append(route.name).append("\"} ").append(route.errors.sum()).append('\n');
+		out.append("# HELP yacapd_request_retries_total Requests retried after an I/O error\n# TYPE yacapd_request_retries_total counter\n");
+		for (Route route : routes.values())
+			out.append("yacapd_request_retries_total{route=\"").append(route.name).append("\"} ").append(route.retries.sum()).append('\n');
+
+		out.append("# HELP yacapd_tls_handshakes_total TLS handshakes, full or resuming a cached session\n# TYPE yacapd_tls_handshakes_total counter\n");
+		out.append("yacapd_tls_handshakes_total{type=\"full\"} ").append(tlsFull.sum()).append('\n');
+		out.append("yacapd_tls_handshakes_total{type=\"resumed\"} ").append(tlsResumed.sum()).append('\n');
+
+		out.append("# HELP yacapd_state_seconds_total Time spent by the sessions in each state, counted when the state is left\n# TYPE yacapd_state_seconds_total counter\n");
+		for (YacapState state : STATES)
+			out.append("yacapd_state_seconds_total{state=\"").append(state.name()).append("\"} ").append(stateNanos[state.ordinal()].sum() / 1e9).append('\n');
+		out.append("# HELP yacapd_state_transitions_total Number of times the sessions entered each state\n# TYPE yacapd_state_transitions_total counter\n");
+		for (YacapState state : STATES)
+			out.append("yacapd_state_transitions_total{state=\"").append(state.name()).append("\"} ").append(stateEntries[state.ordinal()].sum()).append('\n');
+
+		out.append("# HELP yacapd_reconnect_duration_seconds Time from LOGIN to CONNECTED\n# TYPE yacapd_reconnect_duration_seconds summary\n");
+		writeSummary(out, "yacapd_reconnect_duration_seconds", null, reconnect);
+
+		out.append("# HELP yacapd_seconds_since_refresh Time since the popup was last refreshed successfully\n# TYPE yacapd_seconds_since_refresh gauge\n");
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, AtomicLong> e : lastRefresh.entrySet())
+			out.append("yacapd_seconds_since_refresh{session=\"").append(escape(e.getKey())).append("\"} ").append((now - e.getValue().get()) / 1000.0).append('\n');
+	}
+
+	private static void writeSummary(StringBuilder out, String name, String labels, Histogram histogram) {
+		String prefix = labels == null ? "{" : "{" + labels + ",";
+		for (double q : new double[]{0.5, 0.9, 0.99, 0.999})
+			out.append(name).append(prefix).append("quantile=\"").append(q).append("\"} ").append(histogram.quantileMicros(q) / 1e6).append('\n');
+		String suffix = labels == null ? " " : "{" + labels + "} ";
+		out.append(name).append("_sum").append(suffix).append(histogram.getSumMicros() / 1e6).append('\n');
+		out.append(name).append("_count").append(suffix).append(histogram.getCount()).append('\n');
+	}
+
+	private static String escape(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Metrics of the requests to one kind of page.
+	 */
+	public static class Route {
+		private static final String[] PHASES = {"connect", "tls", "firstbyte", "parse", "total"};
+		private static final int CONNECT = 0, TLS = 1, FIRST_BYTE = 2, PARSE = 3, TOTAL = 4, CODES = 600;
+
+		private final String name;
+		private final Histogram[] phases = new Histogram[PHASES.length];
+		private final AtomicLongArray status = new AtomicLongArray(CODES);
+		private final LongAdder errors = new LongAdder(), retries = new LongAdder();
+
+		private Route(String name) {
+			this.name = escape(name);
+			for (int i = 0; i < phases.length; i++)
+				phases[i] = new Histogram();
+		}
+
+		/**
+		 * Records a completed request. Phases that weren't measured are given as negative durations and aren't recorded.
+		 *
+		 * @param code      HTTP status code of the response
+		 * @param connect   time taken to open the TCP connection
+		 * @param tls       time taken by the TLS handshake
+		 * @param firstByte time from the start of the request to the status line of the response
+		 * @param parse     time taken to read and process the body
+		 * @param total     time from the start of the request to the end of the processing
+		 */
+		public void record(int code, long connect, long tls, long firstByte, long parse, long total) {
+			if (code >= 0 && code < CODES)
+				status.incrementAndGet(code);
+			phases[CONNECT].recordNanos(connect);
+			phases[TLS].recordNanos(tls);
+			phases[FIRST_BYTE].recordNanos(firstByte);
+			phases[PARSE].recordNanos(parse);
+			phases[TOTAL].recordNanos(total);
+		}
+
+		/**
+		 * Records a request that failed with an I/O error.
+		 */
+		public void error() {
+			errors.increment();
+		}
+
+		public void retry() {
+			retries.increment();
+		}
+
+		public Histogram getTotal() {
+			return phases[TOTAL];
+		}
+
+		public long getStatusCount(int code) {
+			return code >= 0 && code < CODES ? status.get(code) : 0;
+		}
+	}
+}
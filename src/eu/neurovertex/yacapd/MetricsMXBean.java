@@ -0,0 +1,50 @@
+package eu.neurovertex.yacapd;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link Metrics} that aren't latencies, those being exported as one {@link HistogramMXBean} per route and phase.
+ *
+ * @author NeuroVertex
+ */
+public interface MetricsMXBean {
+	/**
+	 * @return the number of responses by route and HTTP status code, keyed "route code"
+	 */
+	Map<String, Long> getResponseCounts();
+
+	/**
+	 * @return the number of requests that failed with an I/O error, by route
+	 */
+	Map<String, Long> getErrorCounts();
+
+	/**
+	 * @return the number of retries, by route
+	 */
+	Map<String, Long> getRetryCounts();
+
+	/**
+	 * @return the time spent by the sessions in each state, in seconds. The time spent in the current state is only counted once it is left
+	 */
+	Map<String, Double> getStateSeconds();
+
+	/**
+	 * @return the time since the popup of each session was last refreshed successfully, in milliseconds
+	 */
+	Map<String, Long> getMillisSinceLastRefresh();
+
+	/**
+	 * @return the number of TLS handshakes that negotiated a new session. Only the handshakes of the synchronous transport and of the pre-warmings are counted, see {@link TlsContext}
+	 */
+	long getTlsFullHandshakes();
+
+	/**
+	 * @return the number of TLS handshakes that resumed a cached session
+	 */
+	long getTlsResumedHandshakes();
+
+	/**
+	 * @return the proportion of the TLS handshakes that resumed a session, 0 if there was none
+	 */
+	double getTlsResumptionRate();
+}
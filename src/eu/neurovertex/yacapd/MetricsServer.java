@@ -0,0 +1,60 @@
+package eu.neurovertex.yacapd;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+/**
+ * Serves the {@link Metrics} on http://localhost:port/metrics in Prometheus' text format, so that they can be scraped without JMX. It only listens on the loopback interface.
+ * Started by {@link Main} when the "metricsPort" preference is set.
+ *
+ * @author NeuroVertex
+ */
+public class MetricsServer implements HttpHandler {
+	private static final Logger log = Logger.getLogger(MetricsServer.class.getName());
+	private final Metrics metrics;
+	private final HttpServer server;
+
+	public MetricsServer(Metrics metrics, int port) throws IOException {
+		this.metrics = metrics;
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 4);
+		server.createContext("/metrics", this);
+		server.start();
+		log.info("Serving metrics on http://localhost:" + server.getAddress().getPort() + "/metrics");
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			StringBuilder sb = new StringBuilder(4096);
+			metrics.writeText(sb);
+			byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+}
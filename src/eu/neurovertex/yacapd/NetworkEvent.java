@@ -0,0 +1,56 @@
+package eu.neurovertex.yacapd;
+
+/**
+ * Published by the {@link NetworkWatcher} when the network configuration of the machine changes.
+ *
+ * @author NeuroVertex
+ */
+public class NetworkEvent {
+	private final long timestamp = System.currentTimeMillis();
+	private final Type type;
+	private final String networkInterface;
+
+	/**
+	 * @param networkInterface name of the interface concerned, null for route changes
+	 */
+	public NetworkEvent(Type type, String networkInterface) {
+		this.type = type;
+		this.networkInterface = networkInterface;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getInterface() {
+		return networkInterface;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return type + (networkInterface != null ? " (" + networkInterface + ")" : "");
+	}
+
+	public enum Type {
+		/**
+		 * An interface came up
+		 */
+		LINK_UP,
+		/**
+		 * An interface went down or disappeared
+		 */
+		LINK_DOWN,
+		/**
+		 * The addresses of an interface changed, e.g. after a DHCP renewal
+		 */
+		ADDRESS_CHANGED,
+		/**
+		 * The routing table changed, e.g. a new default gateway after roaming
+		 */
+		ROUTE_CHANGED
+	}
+}
@@ -0,0 +1,146 @@
+package eu.neurovertex.yacapd;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Watches the network configuration of the machine and publishes a {@link NetworkEvent} on the {@link EventBus} when it changes, so that the sessions can check their connection right away instead of at their next popup refresh.
+ * <p/>
+ * The interfaces and their addresses are polled through {@link NetworkInterface}, which works everywhere. On Linux the routing tables (/proc/net/route and /proc/net/ipv6_route) are checksummed too, which catches a change of gateway that keeps the same address. Loopback and virtual interfaces are ignored.
+ * The polls run on a {@link TimerWheel}, every "networkPoll" milliseconds (1000) when started by the {@link SessionEngine}.
+ *
+ * @author NeuroVertex
+ */
+public class NetworkWatcher implements Runnable {
+	private static final Logger log = Logger.getLogger(NetworkWatcher.class.getName());
+	private static final File[] ROUTES = {new File("/proc/net/route"), new File("/proc/net/ipv6_route")};
+	// Columns of each table that change with traffic (reference and use counters) and are left out of the checksum
+	private static final int[][] COUNTERS = {{4, 5}, {6, 7}};
+
+	private final TimerWheel timer;
+	private final long interval;
+	private final EventBus bus;
+	private TimerWheel.Timeout pending;
+	private boolean running = false;
+	// Last state seen, only used by poll()
+	private Map<String, Set<InetAddress>> interfaces;
+	private long routes;
+
+	/**
+	 * @param interval time in milliseconds between two polls
+	 */
+	public NetworkWatcher(TimerWheel timer, long interval, EventBus bus) {
+		this.timer = timer;
+		this.interval = interval;
+		this.bus = bus;
+	}
+
+	/**
+	 * Takes the current state of the network as reference and starts polling.
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		interfaces = readInterfaces();
+		routes = readRoutes();
+		pending = timer.schedule(this, interval, 0);
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (pending != null)
+			pending.cancel();
+	}
+
+	@Override
+	public synchronized void run() {
+		if (!running)
+			return;
+		try {
+			poll();
+		} catch (RuntimeException e) {
+			log.log(Level.WARNING, "Error while polling the network configuration", e);
+		}
+		pending = timer.schedule(this, interval, 0);
+	}
+
+	/**
+	 * Compares the network configuration with the last one seen and publishes the differences.
+	 */
+	synchronized void poll() {
+		Map<String, Set<InetAddress>> current = readInterfaces();
+		for (Map.Entry<String, Set<InetAddress>> e : current.entrySet()) {
+			Set<InetAddress> previous = interfaces.get(e.getKey());
+			if (previous == null)
+				publish(NetworkEvent.Type.LINK_UP, e.getKey());
+			else if (!previous.equals(e.getValue()))
+				publish(NetworkEvent.Type.ADDRESS_CHANGED, e.getKey());
+		}
+		for (String name : interfaces.keySet())
+			if (!current.containsKey(name))
+				publish(NetworkEvent.Type.LINK_DOWN, name);
+		interfaces = current;
+
+		long r = readRoutes();
+		if (r != routes)
+			publish(NetworkEvent.Type.ROUTE_CHANGED, null);
+		routes = r;
+	}
+
+	private void publish(NetworkEvent.Type type, String name) {
+		NetworkEvent event = new NetworkEvent(type, name);
+		log.info("Network change : " + event);
+		bus.publish(event);
+	}
+
+	/**
+	 * @return the addresses of each interface that is up, by name
+	 */
+	private static Map<String, Set<InetAddress>> readInterfaces() {
+		Map<String, Set<InetAddress>> map = new HashMap<>();
+		try {
+			Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces();
+			while (e != null && e.hasMoreElements()) {
+				NetworkInterface ni = e.nextElement();
+				if (!ni.isUp() || ni.isLoopback() || ni.isVirtual())
+					continue;
+				map.put(ni.getName(), new HashSet<>(Collections.list(ni.getInetAddresses())));
+			}
+		} catch (SocketException e) {
+			log.log(Level.WARNING, "Can't list the network interfaces", e);
+		}
+		return map;
+	}
+
+	/**
+	 * @return a checksum of the routing tables, 0 if they can't be read
+	 */
+	private static long readRoutes() {
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < ROUTES.length; i++)
+			if (ROUTES[i].canRead())
+				try {
+					for (String line : Files.readAllLines(ROUTES[i].toPath(), StandardCharsets.US_ASCII)) {
+						String[] columns = line.trim().split("\\s+");
+						for (int c = 0; c < columns.length; c++)
+							if (c != COUNTERS[i][0] && c != COUNTERS[i][1]) {
+								crc.update(columns[c].getBytes(StandardCharsets.US_ASCII));
+								crc.update(' ');
+							}
+						crc.update('\n');
+					}
+				} catch (IOException ignore) {
+				}
+		return crc.getValue();
+	}
+}
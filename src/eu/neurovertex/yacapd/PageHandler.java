@@ -0,0 +1,37 @@
+package eu.neurovertex.yacapd;
+
+import org.jsoup.nodes.Document;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receives the pages downloaded by a {@link HTTPSDownloader}. The {@link YacapPageProcessor} handles the pages of its state machine, other handlers can be given for requests made on the side, such as {@link LoginTokens}.
+ *
+ * @author NeuroVertex
+ */
+public interface PageHandler {
+	/**
+	 * @return false if only the attributes of the body tag of the next page are needed, in which case it is streamed to {@link #processBodyTag(BodyTagMatcher)} instead of being parsed
+	 */
+	boolean needsDocument();
+
+	/**
+	 * Called with the status and headers of each response, redirects included, before its body is read.
+	 *
+	 * @return false if nothing more is needed from the request : the body isn't read and a redirect isn't followed, the status being returned as it is
+	 */
+	default boolean processHeaders(int code, Map<String, List<String>> headers) {
+		return true;
+	}
+
+	/**
+	 * Called with each page successfully downloaded (200) when {@link #needsDocument()} is true.
+	 */
+	void processDocument(Document doc);
+
+	/**
+	 * Called with each page successfully downloaded (200) when {@link #needsDocument()} is false.
+	 */
+	void processBodyTag(BodyTagMatcher body);
+}
@@ -0,0 +1,491 @@
+package eu.neurovertex.yacapd;
+
+import eu.neurovertex.yacapd.YacapPageProcessor.HTTPRequest;
+import eu.neurovertex.yacapd.YacapPageProcessor.YacapState;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+import org.jsoup.select.QueryParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Description of a captive portal as data : the requests a session sends, the values it reads from the pages it gets back, and the state each page leads to. The CROUS portal with the CAS of the Universite de Lorraine is built in, another one can be described in a properties file given with the "profile" setting.
+ * <p/>
+ * The keys of a profile are :
+ * <ul>
+ * <li>login.url, auth.url, logout.url and popup.url, with the request headers and POST data of each as "login.header.Name" and "auth.data.name". "${cas}" and "${portal}" are replaced by the "casUrl" and "portalUrl" settings in all of them</li>
+ * <li>auth.username and auth.password : names of the POST fields the credentials are sent in. sessionCookie : name of the cookie of the portal session. ticketGrantingCookie : name of the cookie with which the CAS logs a client in again without its credentials, which is withheld when the login form is fetched ahead of time</li>
+ * <li>form : selector of the login form, the only form of the page being taken if there is one. form.fields : comma-separated names of its hidden fields sent with the credentials</li>
+ * <li>field.name : a value read from the pages, given as a CSS selector followed by " @attribute" to read an attribute instead of the text. Only the first element matching is read, unless the name ends with "[]"</li>
+ * <li>rule.state.n : the rules tried in order for a page received in a state, "condition -> outcome". The condition is "*", a field (or "form") that was found, or "field op value" with op one of contains, icontains, equals and iequals (the latter two ignoring the case). "${username}" is replaced by the username of the session. The outcomes are listed in {@link Outcome}</li>
+ * </ul>
+ * The selectors are compiled once when the profile is loaded, and all the fields of a page are read in a single walk of its tree. The states whose rules only read attributes of the body tag don't need the page to be parsed at all, see {@link #isStreamable(YacapState)}.
+ * The requests of a profile are shared by all the sessions created with it, a session only keeps the values of the hidden fields of the form until it has posted them.
+ *
+ * @author NeuroVertex
+ */
+public final class PortalProfile {
+	private static final String ANY = "*", FORM = "form";
+	private static final String[][] CROUS = {
+			{"login.url", "${cas}/login?service=${portal}/authen-cas%3Furl%3DaHR0cDovL2dvb2dsZS5jb20%3D%26authen%3DAA%3A%3AAuthen-CAS-UL%3A%3AAuthz-LDAP-UL"},
+			{"login.header.Referer", "${portal}/?url=aHR0cDovL2dvb2dsZS5jb20="},
+			{"auth.url", "${cas}/login?service=${portal}/authen-cas%3Furl%3D%26authen%3DAA%3A%3AAuthen-CAS-UL%3A%3AAuthz-LDAP-UL"},
+			{"auth.header.Origin", "${portal}"},
+			{"auth.header.Referer", "${portal}/?url=aHR0cDovL2dvb2dsZS5jb20="},
+			{"auth.data.submit", "LOGIN"},
+			{"auth.username", "username"},
+			{"auth.password", "password"},
+			{"logout.url", "${cas}/logout?service=${portal}/logout&gateway=1"},
+			{"logout.data.submit", "logout"},
+			{"popup.url", "${portal}/popup"},
+			{"sessionCookie", "YaCaP_session_ID"},
+			{"ticketGrantingCookie", "CASTGC"},
+			{"form", "#fm1"},
+			{"form.fields", "lt,execution,_eventId"},
+			{"field.status", "#status.errors"},
+			{"field.title", "title"},
+			{"field.bold[]", "b"},
+			{"field.bgcolor", "body @bgcolor"},
+			{"rule.login.1", "form -> AUTH"},
+			{"rule.login.2", "title icontains yacap -> CONNECTED"}, // The CAS logged the session in again with its ticket-granting cookie
+			{"rule.login.3", "* -> LOGOUT"},
+			{"rule.auth.1", "status contains LT- -> LOGIN"}, // The login ticket expired or was already used
+			{"rule.auth.2", "status -> BADLOGIN"},
+			{"rule.auth.3", "title icontains yacap -> CONNECTED"},
+			{"rule.auth.4", "bold icontains ${username} -> LOGOUT"}, // If the CAS displays the username, it's probably about the account already being logged in somewhere else
+			{"rule.connected.1", "bgcolor iequals #86A3D4 -> CONNECTED"}, // Background colour of the popup while connected
+			{"rule.connected.2", "* -> REAUTH"}
+	};
+	private static final YacapState[] STATES = YacapState.values();
+	private static volatile PortalProfile builtIn; // Kept across reloads of the configuration, so that the sessions created before and after share it
+
+	private final String name, casUrl, portalUrl, sessionCookie, ticketGrantingCookie, usernameField, passwordField;
+	private final HTTPRequest login, auth, logout, popup;
+	private final Evaluator form;
+	private final String[] formFields; // Names as they are sent
+	private final Map<String, Integer> formFieldIndex = new HashMap<>(); // Index in formFields by lowercase name
+	private final Field[] fields;
+	private final Map<String, Field> fieldsByName = new HashMap<>();
+	private final Rule[][] rules = new Rule[STATES.length][];
+	private final boolean[] streamable = new boolean[STATES.length];
+
+	private PortalProfile(String name, Properties properties, String casUrl, String portalUrl) {
+		this.name = name;
+		this.casUrl = casUrl;
+		this.portalUrl = portalUrl;
+		login = request(properties, "login");
+		auth = request(properties, "auth");
+		logout = request(properties, "logout");
+		popup = request(properties, "popup");
+		sessionCookie = properties.getProperty("sessionCookie", "");
+		ticketGrantingCookie = properties.getProperty("ticketGrantingCookie", "");
+		usernameField = properties.getProperty("auth.username", "username");
+		passwordField = properties.getProperty("auth.password", "password");
+		form = QueryParser.parse(properties.getProperty("form", "form"));
+		List<String> names = new ArrayList<>();
+		for (String field : properties.getProperty("form.fields", "").split(","))
+			if (!field.trim().isEmpty() && !formFieldIndex.containsKey(field.trim().toLowerCase(Locale.ROOT))) {
+				formFieldIndex.put(field.trim().toLowerCase(Locale.ROOT), names.size());
+				names.add(field.trim());
+			}
+		formFields = names.toArray(new String[names.size()]);
+
+		List<Field> list = new ArrayList<>();
+		for (String key : new TreeSet<>(properties.stringPropertyNames()))
+			if (key.startsWith("field.")) {
+				Field field = new Field(list.size(), key.substring("field.".length()), properties.getProperty(key).trim());
+				list.add(field);
+				fieldsByName.put(field.name, field);
+			}
+		fields = list.toArray(new Field[list.size()]);
+
+		for (YacapState state : STATES) {
+			String prefix = "rule." + state.name().toLowerCase(Locale.ROOT) + ".";
+			TreeMap<Integer, Rule> sorted = new TreeMap<>();
+			for (String key : properties.stringPropertyNames())
+				if (key.startsWith(prefix))
+					try {
+						sorted.put(Integer.parseInt(key.substring(prefix.length())), new Rule(properties.getProperty(key)));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Invalid rule number in " + key);
+					}
+			rules[state.ordinal()] = sorted.values().toArray(new Rule[sorted.size()]);
+			boolean body = true;
+			for (Rule rule : rules[state.ordinal()])
+				body &= !rule.form && (rule.field == null || rule.field.isBodyAttribute());
+			streamable[state.ordinal()] = body;
+		}
+	}
+
+	private static HTTPRequest request(Properties properties, String name) {
+		return new HTTPRequest(properties.getProperty(name + ".url", ""), prefixed(properties, name + ".header."), prefixed(properties, name + ".data."));
+	}
+
+	private static Map<String, String> prefixed(Properties properties, String prefix) {
+		Map<String, String> map = new HashMap<>();
+		for (String key : properties.stringPropertyNames())
+			if (key.startsWith(prefix))
+				map.put(key.substring(prefix.length()), properties.getProperty(key));
+		return map;
+	}
+
+	/**
+	 * @return the built-in profile of the CROUS portal, the same instance as long as the URLs don't change
+	 */
+	public static PortalProfile crous(String casUrl, String portalUrl) {
+		PortalProfile profile = builtIn;
+		if (profile == null || !profile.casUrl.equals(casUrl) || !profile.portalUrl.equals(portalUrl)) {
+			Properties properties = new Properties();
+			for (String[] entry : CROUS)
+				properties.setProperty(entry[0], entry[1]);
+			builtIn = profile = create("crous", properties, casUrl, portalUrl);
+		}
+		return profile;
+	}
+
+	/**
+	 * Loads and compiles a profile.
+	 *
+	 * @param path properties file describing the portal
+	 * @throws IllegalArgumentException if a selector or rule is malformed
+	 */
+	public static PortalProfile load(String path, String casUrl, String portalUrl) throws IOException {
+		Properties properties = new Properties();
+		try (Reader in = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+			properties.load(in);
+		}
+		return create(path, properties, casUrl, portalUrl);
+	}
+
+	private static PortalProfile create(String name, Properties properties, String casUrl, String portalUrl) {
+		Properties resolved = new Properties();
+		for (String key : properties.stringPropertyNames())
+			resolved.setProperty(key, properties.getProperty(key).replace("${cas}", casUrl).replace("${portal}", portalUrl));
+		try {
+			return new PortalProfile(name, resolved, casUrl, portalUrl);
+		} catch (IllegalStateException e) { // Thrown by the selector parser
+			throw new IllegalArgumentException("Invalid selector in profile " + name + " : " + e.getMessage(), e);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public HTTPRequest getLogin() {
+		return login;
+	}
+
+	/**
+	 * @param form     values of the hidden fields of the login form, as returned by {@link Page#getForm()}
+	 * @param username username of the session
+	 * @param password password of the session
+	 * @return the POST of the credentials, only kept while it is sent
+	 */
+	public HTTPRequest getAuth(String[] form, String username, String password) {
+		Map<String, String> data = new HashMap<>(auth.getData());
+		for (int i = 0; i < formFields.length; i++)
+			data.put(formFields[i], form[i]);
+		if (!username.isEmpty() && !password.isEmpty()) {
+			data.put(usernameField, username);
+			data.put(passwordField, password);
+		}
+		return new HTTPRequest(auth.getUrl(), auth.getParameters(), data);
+	}
+
+	public HTTPRequest getLogout() {
+		return logout;
+	}
+
+	public HTTPRequest getPopup() {
+		return popup;
+	}
+
+	/**
+	 * @return the names of the hidden fields of the login form, which have to be sent with the credentials
+	 */
+	public List<String> getFormFields() {
+		return Collections.unmodifiableList(Arrays.asList(formFields));
+	}
+
+	public String getSessionCookie() {
+		return sessionCookie;
+	}
+
+	/**
+	 * @return the name of the ticket-granting cookie of the CAS, null if the profile doesn't give one
+	 */
+	public String getTicketGrantingCookie() {
+		return ticketGrantingCookie.isEmpty() ? null : ticketGrantingCookie;
+	}
+
+	public String getUsernameField() {
+		return usernameField;
+	}
+
+	public String getPasswordField() {
+		return passwordField;
+	}
+
+	/**
+	 * @return true if the rules of the given state only read attributes of the body tag, in which case the pages received in that state can be checked by a {@link BodyTagMatcher} instead of being parsed
+	 */
+	public boolean isStreamable(YacapState state) {
+		return streamable[state.ordinal()];
+	}
+
+	/**
+	 * Reads all the fields and the hidden fields of the login form in a single walk of the tree.
+	 */
+	public Page extract(final Document doc) {
+		final Page page = new Page(this);
+		final String[] first = new String[formFields.length], selected = new String[formFields.length];
+		final int[] forms = new int[1], counts = new int[2];
+		final boolean[] found = new boolean[1];
+		NodeTraversor.traverse(new NodeVisitor() {
+			private Element currentForm;
+			private boolean isFirst, isSelected;
+
+			@Override
+			public void head(Node node, int depth) {
+				if (!(node instanceof Element))
+					return;
+				Element e = (Element) node;
+				for (Field field : fields)
+					if ((field.multiple || page.values[field.index] == null) && field.selector.matches(doc, e))
+						page.add(field, field.attribute != null ? e.attr(field.attribute) : e.text());
+				String tag = e.normalName();
+				if (FORM.equals(tag)) {
+					currentForm = e;
+					isFirst = forms[0]++ == 0;
+					isSelected = !found[0] && form.matches(doc, e);
+					found[0] |= isSelected;
+				} else if (currentForm != null && "input".equals(tag)) {
+					Integer index = formFieldIndex.get(e.attr("name").toLowerCase(Locale.ROOT));
+					if (index != null) {
+						if (isFirst && first[index] == null) {
+							first[index] = e.attr("value");
+							counts[0]++;
+						}
+						if (isSelected && selected[index] == null) {
+							selected[index] = e.attr("value");
+							counts[1]++;
+						}
+					}
+				}
+			}
+
+			@Override
+			public void tail(Node node, int depth) {
+				if (node == currentForm)
+					currentForm = null;
+			}
+		}, doc);
+		int count = forms[0] == 1 ? counts[0] : found[0] ? counts[1] : 0;
+		if (count == formFields.length && count > 0)
+			page.form = forms[0] == 1 ? first : selected;
+		return page;
+	}
+
+	/**
+	 * Reads the fields that are attributes of the body tag, see {@link #isStreamable(YacapState)}.
+	 */
+	public Page extract(BodyTagMatcher body) {
+		Page page = new Page(this);
+		for (Field field : fields)
+			if (field.isBodyAttribute())
+				page.add(field, body.attr(field.attribute));
+		return page;
+	}
+
+	/**
+	 * @param username username of the session, replacing "${username}" in the rules
+	 * @return the first rule of the state whose condition holds for the page, null if there is none
+	 */
+	public Rule match(YacapState state, Page page, String username) {
+		for (Rule rule : rules[state.ordinal()])
+			if (rule.matches(page, username))
+				return rule;
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "PortalProfile(" + name + ")";
+	}
+
+	/**
+	 * What a session does with a page, once a rule has matched it.
+	 */
+	public enum Outcome {
+		/**
+		 * Sends the credentials, with the hidden fields of the login form if the page has it
+		 */
+		AUTH,
+		/**
+		 * Starts over from the login form, with new cookies
+		 */
+		LOGIN,
+		/**
+		 * The credentials were refused, the session waits for new ones
+		 */
+		BADLOGIN,
+		/**
+		 * The session is (still) connected
+		 */
+		CONNECTED,
+		/**
+		 * Ends the session on the portal before logging back in
+		 */
+		LOGOUT,
+		/**
+		 * The session was disconnected and logs back in, with the prefetched {@link LoginTokens} if possible
+		 */
+		REAUTH
+	}
+
+	private static final class Field {
+		private final int index;
+		private final String name, attribute, query;
+		private final boolean multiple;
+		private final Evaluator selector;
+
+		private Field(int index, String name, String spec) {
+			this.index = index;
+			this.multiple = name.endsWith("[]");
+			this.name = multiple ? name.substring(0, name.length() - 2) : name;
+			int at = spec.lastIndexOf(" @");
+			this.query = at < 0 ? spec : spec.substring(0, at).trim();
+			this.attribute = at < 0 ? null : spec.substring(at + 2).trim();
+			this.selector = QueryParser.parse(query);
+		}
+
+		private boolean isBodyAttribute() {
+			return attribute != null && "body".equalsIgnoreCase(query);
+		}
+	}
+
+	/**
+	 * A condition on a page and the outcome it leads to.
+	 */
+	public final class Rule {
+		private final Field field;
+		private final boolean form, ignoreCase, contains;
+		private final String value;
+		private final Outcome outcome;
+
+		private Rule(String spec) {
+			int arrow = spec.lastIndexOf("->");
+			if (arrow < 0)
+				throw new IllegalArgumentException("Invalid rule \"" + spec + "\", expected \"condition -> outcome\"");
+			try {
+				outcome = Outcome.valueOf(spec.substring(arrow + 2).trim().toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown outcome in rule \"" + spec + "\"");
+			}
+			String[] condition = spec.substring(0, arrow).trim().split(" ", 3);
+			form = FORM.equals(condition[0]);
+			if (ANY.equals(condition[0]) || form)
+				field = null;
+			else if ((field = fieldsByName.get(condition[0])) == null)
+				throw new IllegalArgumentException("Unknown field in rule \"" + spec + "\"");
+			if (condition.length == 1) {
+				value = null;
+				ignoreCase = contains = false;
+			} else if (condition.length == 3 && field != null) {
+				String op = condition[1].toLowerCase(Locale.ROOT);
+				ignoreCase = op.startsWith("i");
+				contains = op.endsWith("contains");
+				if (!contains && !op.endsWith("equals") || op.length() != (contains ? 8 : 6) + (ignoreCase ? 1 : 0))
+					throw new IllegalArgumentException("Unknown operator in rule \"" + spec + "\"");
+				value = ignoreCase ? condition[2].toLowerCase(Locale.ROOT) : condition[2];
+			} else
+				throw new IllegalArgumentException("Invalid condition in rule \"" + spec + "\"");
+		}
+
+		private boolean matches(Page page, String username) {
+			if (form)
+				return page.form != null;
+			if (field == null)
+				return true;
+			List<String> values = page.values[field.index];
+			if (values == null)
+				return false;
+			String expected = value;
+			if (expected != null && expected.contains("${username}")) {
+				expected = expected.replace("${username}", ignoreCase ? username.toLowerCase(Locale.ROOT) : username);
+				if (username.isEmpty())
+					return false;
+			}
+			for (String v : values) {
+				if (expected == null) {
+					if (!v.isEmpty())
+						return true;
+					continue;
+				}
+				if (ignoreCase)
+					v = v.toLowerCase(Locale.ROOT);
+				if (contains ? v.contains(expected) : v.equals(expected))
+					return true;
+			}
+			return false;
+		}
+
+		public Outcome getOutcome() {
+			return outcome;
+		}
+
+		/**
+		 * @return the name of the field the condition is on, null for "*" and "form"
+		 */
+		public String getField() {
+			return field != null ? field.name : null;
+		}
+	}
+
+	/**
+	 * The values read from a page.
+	 */
+	public static final class Page {
+		private final List<String>[] values;
+		private final PortalProfile profile;
+		private String[] form;
+
+		@SuppressWarnings("unchecked")
+		private Page(PortalProfile profile) {
+			this.profile = profile;
+			this.values = (List<String>[]) new List<?>[profile.fields.length];
+		}
+
+		private void add(Field field, String value) {
+			if (values[field.index] == null)
+				values[field.index] = field.multiple ? new ArrayList<String>() : new ArrayList<String>(1);
+			values[field.index].add(value);
+		}
+
+		/**
+		 * @return the first value of the field, or null if it wasn't found
+		 */
+		public String get(String name) {
+			Field field = profile.fieldsByName.get(name);
+			List<String> list = field != null ? values[field.index] : null;
+			return list != null ? list.get(0) : null;
+		}
+
+		/**
+		 * @return the values of the hidden fields of the login form, in the order of {@link PortalProfile#getFormFields()}, or null if the page doesn't have the form or it lacks one of them
+		 */
+		public String[] getForm() {
+			return form;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package eu.neurovertex.yacapd;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Hides the secrets of the requests before they are written to the logs : the values of the POST data (credentials and login form tokens), the CAS tickets, credentials and session ids (";jsessionid=" path parameter) found in URLs, including those of redirects, and the values of the cookies.
+ * Only the names are kept, so that the logs still tell what was sent.
+ *
+ * @author NeuroVertex
+ */
+final class Redactor {
+	static final String HIDDEN = "***";
+	// Lowercase names of the URL parameters whose values are hidden
+	private static final Set<String> SECRET_PARAMETERS = new HashSet<>(Arrays.asList("ticket", "lt", "execution", "username", "password", "samlart", "samlresponse"));
+	private static final String SESSION_ID = "jsessionid=";
+
+	private Redactor() {
+	}
+
+	/**
+	 * @return the URL with the session id and the values of the parameters that are tickets or credentials hidden, or the same string if it has none
+	 */
+	static String url(String url) {
+		if (url == null)
+			return null;
+		int query = url.indexOf('?'), path = query < 0 ? url.length() : query;
+		int session = sessionId(url, path);
+		if (session >= 0) { // The servlet container of the CAS puts it in the path when the client doesn't take cookies
+			int end = session;
+			while (end < path && url.charAt(end) != ';' && url.charAt(end) != '/' && url.charAt(end) != '#')
+				end++;
+			url = url.substring(0, session) + HIDDEN + url.substring(end);
+			query = url.indexOf('?');
+		}
+		if (query < 0)
+			return url;
+		StringBuilder sb = null;
+		int start = query + 1;
+		while (start <= url.length()) {
+			int end = url.indexOf('&', start), eq;
+			if (end < 0)
+				end = url.length();
+			eq = url.indexOf('=', start);
+			if (eq > start && eq < end && SECRET_PARAMETERS.contains(url.substring(start, eq).toLowerCase(Locale.ROOT))) {
+				if (sb == null)
+					sb = new StringBuilder(url.length()).append(url, 0, start);
+				sb.append(url, start, eq + 1).append(HIDDEN);
+			} else if (sb != null)
+				sb.append(url, start, end);
+			if (sb != null && end < url.length())
+				sb.append('&');
+			start = end + 1;
+		}
+		return sb != null ? sb.toString() : url;
+	}
+
+	/**
+	 * @return the offset of the value of the ";jsessionid=" parameter in the path of the URL, -1 if there is none
+	 */
+	private static int sessionId(String url, int end) {
+		for (int i = url.indexOf(';'); i >= 0 && i < end; i = url.indexOf(';', i + 1))
+			if (url.regionMatches(true, i + 1, SESSION_ID, 0, SESSION_ID.length()))
+				return i + 1 + SESSION_ID.length();
+		return -1;
+	}
+
+	/**
+	 * @param data form-encoded POST data
+	 * @return the data with all the values hidden
+	 */
+	static String data(String data) {
+		if (data == null)
+			return null;
+		StringBuilder sb = new StringBuilder(data.length());
+		for (String pair : data.split("&")) {
+			if (sb.length() > 0)
+				sb.append('&');
+			int eq = pair.indexOf('=');
+			sb.append(eq < 0 ? pair : pair.substring(0, eq)).append('=').append(HIDDEN);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param value value of a Cookie or Set-Cookie header
+	 * @return the value with the values of the cookies hidden, their attributes (path, expiry...) being kept for Set-Cookie
+	 */
+	static String cookies(String value, boolean setCookie) {
+		if (value == null)
+			return null;
+		StringBuilder sb = new StringBuilder(value.length());
+		String[] parts = value.split(";");
+		for (int i = 0; i < parts.length; i++) {
+			if (i > 0)
+				sb.append(';');
+			int eq = parts[i].indexOf('=');
+			if (eq < 0 || setCookie && i > 0)
+				sb.append(parts[i]);
+			else
+				sb.append(parts[i], 0, eq + 1).append(HIDDEN);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the value of a header, with the values of the cookies hidden if it is a Cookie or Set-Cookie header, and the secrets of the URL if it is a Location (the CAS redirects to the service with its ticket)
+	 */
+	static String header(String name, String value) {
+		if ("Location".equalsIgnoreCase(name) || "Content-Location".equalsIgnoreCase(name) || "Referer".equalsIgnoreCase(name))
+			return url(value);
+		if ("Cookie".equalsIgnoreCase(name))
+			return cookies(value, false);
+		if ("Set-Cookie".equalsIgnoreCase(name))
+			return cookies(value, true);
+		return value;
+	}
+}
@@ -0,0 +1,131 @@
+package eu.neurovertex.yacapd;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the redirects that always lead to the same place, such as the portal sending to the CAS login page, so that the next requests go straight to the final URL and save a round trip per hop.
+ * <p/>
+ * Only GET redirects that neither depend on nor set cookies are learned : a hop whose request carried cookies may redirect elsewhere once the session changes, and one setting cookies can't be skipped without losing them. For the same reason, a learned hop is only taken when the session has no cookie for its host.
+ * Permanent redirects (301, 308) are learned as soon as they are seen, temporary ones once the same target has been seen twice in a row. Entries expire after "redirectTtl" seconds (3600), and the cache holds at most 64 of them.
+ *
+ * @author NeuroVertex
+ */
+public class RedirectCache {
+	private static final Logger log = Logger.getLogger(RedirectCache.class.getName());
+	private static final int MAX_ENTRIES = 64, CONFIRMATIONS = 2;
+	private static volatile RedirectCache instance;
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final long ttl;
+
+	/**
+	 * @param ttl time in milliseconds after which a learned redirect is forgotten
+	 */
+	public RedirectCache(long ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * @return the cache shared by the sessions of the JVM
+	 */
+	public static RedirectCache getDefault() {
+		RedirectCache c = instance;
+		if (c == null)
+			synchronized (RedirectCache.class) {
+				if ((c = instance) == null)
+					instance = c = new RedirectCache(Config.current().getRedirectTtl());
+			}
+		return c;
+	}
+
+	public static boolean isRedirect(int code) {
+		return code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
+	}
+
+	/**
+	 * Follows the learned redirects from the given URL.
+	 *
+	 * @param cookies  cookie jar of the session, hops to hosts it has cookies for aren't taken
+	 * @param maxHops  maximum number of learned hops to follow
+	 * @return the URL to request, which is url itself if no redirect is known
+	 */
+	public String resolve(String url, GlobalCookieHandler cookies, int maxHops) {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < maxHops; i++) {
+			Entry entry = entries.get(url);
+			if (entry == null || !entry.isStable(now))
+				break;
+			if (!cookies.get(URI.create(url), AsyncTransport.EMPTY_HEADERS).isEmpty())
+				break;
+			url = entry.target;
+		}
+		return url;
+	}
+
+	/**
+	 * Records a redirect that was followed.
+	 *
+	 * @param cacheable false if the request sent cookies or the response set some, in which case a previously learned hop from that URL is forgotten
+	 */
+	public void learn(String from, String to, int code, boolean cacheable) {
+		if (!cacheable || from.equals(to)) {
+			entries.remove(from);
+			return;
+		}
+		long now = System.currentTimeMillis();
+		boolean permanent = code == 301 || code == 308;
+		Entry entry = entries.get(from);
+		if (entry != null && entry.target.equals(to)) {
+			entry.confirm(now, permanent);
+			return;
+		}
+		if (entry == null && entries.size() >= MAX_ENTRIES) { // Drop the expired entries, or any entry if there is none
+			for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); )
+				if (now - it.next().confirmedAt >= ttl)
+					it.remove();
+			Iterator<String> it = entries.keySet().iterator();
+			if (entries.size() >= MAX_ENTRIES && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+		entries.put(from, new Entry(to, now, permanent));
+	}
+
+	/**
+	 * Forgets the redirect from the given URL, when going straight to its target didn't work.
+	 */
+	public void invalidate(String from) {
+		if (entries.remove(from) != null && log.isLoggable(Level.FINE))
+			log.fine("Forgot redirect from " + Redactor.url(from));
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	private final class Entry {
+		private final String target;
+		private volatile int seen;
+		private volatile long confirmedAt;
+
+		private Entry(String target, long now, boolean permanent) {
+			this.target = target;
+			this.seen = permanent ? CONFIRMATIONS : 1;
+			this.confirmedAt = now;
+		}
+
+		private void confirm(long now, boolean permanent) {
+			seen = permanent ? CONFIRMATIONS : Math.min(seen + 1, CONFIRMATIONS);
+			confirmedAt = now;
+		}
+
+		private boolean isStable(long now) {
+			return seen >= CONFIRMATIONS && now - confirmedAt < ttl;
+		}
+	}
+}
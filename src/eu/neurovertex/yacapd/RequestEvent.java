@@ -0,0 +1,77 @@
+package eu.neurovertex.yacapd;
+
+/**
+ * Published by the {@link HTTPSDownloader} of a session at each step of a request.
+ *
+ * @author NeuroVertex
+ */
+public class RequestEvent extends SessionEvent {
+	private final Type type;
+	private final String route, url;
+	private final int httpCode;
+	private final Throwable exception;
+
+	/**
+	 * @param route    kind of page, as passed to the downloader
+	 * @param httpCode status code of the response, or -1 if there is none
+	 */
+	public RequestEvent(YacapPageProcessor session, Type type, String route, String url, int httpCode, Throwable exception) {
+		super(session);
+		this.type = type;
+		this.route = route;
+		this.url = url;
+		this.httpCode = httpCode;
+		this.exception = exception;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getRoute() {
+		return route;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public int getHttpCode() {
+		return httpCode;
+	}
+
+	/**
+	 * @return the error the request failed with, if any
+	 */
+	public Throwable getException() {
+		return exception;
+	}
+
+	@Override
+	public String toString() {
+		return getSession().getName() + " : " + type + " " + route + " (" + Redactor.url(url) + ")" + (httpCode >= 0 ? " " + httpCode : "") + (exception != null ? " : " + exception.getMessage() : "");
+	}
+
+	public enum Type {
+		/**
+		 * The connection is about to be opened
+		 */
+		STARTED,
+		/**
+		 * A response was received and processed
+		 */
+		COMPLETED,
+		/**
+		 * The request failed with an I/O error, it may be retried
+		 */
+		FAILED,
+		/**
+		 * The request was aborted by {@link HTTPSDownloader#cancel()}, it isn't retried
+		 */
+		CANCELLED,
+		/**
+		 * The request wasn't sent because too many requests to the host failed recently
+		 */
+		CIRCUIT_OPEN
+	}
+}
@@ -0,0 +1,242 @@
+package eu.neurovertex.yacapd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A request of a {@link HTTPSDownloader} in progress, with its redirects. It enforces the deadlines of the request and lets another thread cancel it.
+ * <p/>
+ * The request goes through {@link Phase phases}, and entering one gives the handle the way to abort the I/O of that phase : closing the socket during the TLS handshake, disconnecting the connection or cancelling the future of the response afterwards. A phase can have its own deadline, and the whole request has one from its start.
+ * When a deadline passes or {@link #cancel()} is called, the I/O is aborted, which makes the thread waiting on it fail with an {@link IOException} that {@link #failure(IOException)} turns into a {@link CancelledException} or a {@link DeadlineException}. If the phase has no way to be aborted (a TCP connection being opened), it is aborted as soon as the next phase is entered.
+ * <p/>
+ * The deadlines are timeouts of the {@link TimerWheel#getDeadlines() deadline wheel}, whose thread is never blocked by the requests, and are cancelled when the request ends.
+ *
+ * @author NeuroVertex
+ */
+final class RequestHandle {
+	private static final Logger log = Logger.getLogger(RequestHandle.class.getName());
+	private static final ThreadLocal<RequestHandle> attached = new ThreadLocal<>();
+	private static final int RUNNING = 0, DONE = 1, CANCELLED = 2, EXPIRED = 3;
+
+	// Guarded by this
+	private int state = RUNNING;
+	private Phase phase; // Null at the start of a hop
+	private int entries = 0; // Number of phases entered, so that the deadline of a phase that is over doesn't abort the next one
+	private Closeable abort;
+	private String expiry; // Description of the deadline that passed
+	private TimerWheel.Timeout phaseTimeout;
+	private final TimerWheel.Timeout totalTimeout;
+
+	/**
+	 * @param total time in milliseconds the request may take, 0 for no limit
+	 */
+	RequestHandle(final long total) {
+		totalTimeout = total > 0 ? TimerWheel.getDeadlines().schedule(new Runnable() {
+			@Override
+			public void run() {
+				abort(EXPIRED, -1, "Request took more than " + total + "ms");
+			}
+		}, total, TimeUnit.MILLISECONDS) : null;
+	}
+
+	/**
+	 * @return the handle of the request sent by the current thread, set while it opens its connection, or null
+	 */
+	static RequestHandle attached() {
+		return attached.get();
+	}
+
+	/**
+	 * Makes this handle the one of the current thread until {@link #detach()}, for the parts of the transport that don't know the request they work for (see {@link TimingSSLSocketFactory}).
+	 */
+	void attach() {
+		attached.set(this);
+	}
+
+	void detach() {
+		attached.remove();
+	}
+
+	/**
+	 * Starts a hop of the request, the first one or a redirect, which goes through the phases again.
+	 *
+	 * @throws IOException the exception of {@link #failure(IOException)} if the request was aborted
+	 */
+	synchronized void hop() throws IOException {
+		check();
+		phase = null;
+		if (phaseTimeout != null)
+			phaseTimeout.cancel();
+		phaseTimeout = null;
+	}
+
+	/**
+	 * Enters a phase of the hop. Phases are entered in order : one that the hop already went through (when the transport reconnects on its own to retry a stale connection) is ignored.
+	 * If the request was cancelled or expired while nothing could be aborted, the given abort is run right away.
+	 *
+	 * @param timeout time in milliseconds the phase may take, 0 for no other limit than the one of the request
+	 * @param abort   what aborts the I/O of that phase, or null if it can't be
+	 */
+	void enter(final Phase phase, final long timeout, Closeable abort) {
+		synchronized (this) {
+			if (state == DONE)
+				return;
+			if (state == RUNNING) {
+				if (this.phase != null && phase.compareTo(this.phase) <= 0)
+					return;
+				if (phaseTimeout != null)
+					phaseTimeout.cancel();
+				phaseTimeout = null;
+				this.phase = phase;
+				this.abort = abort;
+				final int entry = ++entries;
+				if (timeout > 0)
+					phaseTimeout = TimerWheel.getDeadlines().schedule(new Runnable() {
+						@Override
+						public void run() {
+							abort(EXPIRED, entry, phase.description + " took more than " + timeout + "ms");
+						}
+					}, timeout, TimeUnit.MILLISECONDS);
+				return;
+			}
+		}
+		close(abort);
+	}
+
+	/**
+	 * Aborts the request, unless it is already over.
+	 */
+	void cancel() {
+		abort(CANCELLED, -1, "Request cancelled");
+	}
+
+	/**
+	 * @param entry the phase being aborted, -1 for whichever is current
+	 */
+	private void abort(int reason, int entry, String description) {
+		Closeable a;
+		synchronized (this) {
+			if (state != RUNNING || entry >= 0 && entry != entries)
+				return;
+			state = reason;
+			expiry = description;
+			a = abort;
+			abort = null;
+			cancelTimeouts();
+		}
+		if (log.isLoggable(Level.FINE))
+			log.fine(description);
+		close(a);
+	}
+
+	private static void close(Closeable abort) {
+		if (abort != null)
+			try {
+				abort.close();
+			} catch (IOException | RuntimeException e) {
+				log.log(Level.FINE, "Error while aborting a request", e);
+			}
+	}
+
+	/**
+	 * Ends the request, its deadlines being cancelled.
+	 */
+	synchronized void finish() {
+		if (state == RUNNING)
+			state = DONE;
+		abort = null;
+		cancelTimeouts();
+	}
+
+	private void cancelTimeouts() {
+		if (phaseTimeout != null)
+			phaseTimeout.cancel();
+		phaseTimeout = null;
+		if (totalTimeout != null)
+			totalTimeout.cancel();
+	}
+
+	/**
+	 * @return true if the request was cancelled or one of its deadlines passed
+	 */
+	synchronized boolean isAborted() {
+		return state == CANCELLED || state == EXPIRED;
+	}
+
+	/**
+	 * @throws IOException the exception of {@link #failure(IOException)} if the request was aborted, for the I/O that can't tell (a connection that was disconnected would be opened again)
+	 */
+	void check() throws IOException {
+		if (isAborted())
+			throw failure((IOException) null);
+	}
+
+	/**
+	 * @param cause the error the I/O failed with
+	 * @return a {@link CancelledException} or a {@link DeadlineException} caused by the error if the request was aborted, the error itself otherwise
+	 */
+	IOException failure(IOException cause) {
+		if (cause instanceof CancelledException || cause instanceof DeadlineException)
+			return cause;
+		synchronized (this) {
+			if (state == CANCELLED)
+				return (IOException) new CancelledException(expiry).initCause(cause);
+			if (state == EXPIRED)
+				return (IOException) new DeadlineException(expiry).initCause(cause);
+		}
+		return cause;
+	}
+
+	/**
+	 * Same as {@link #failure(IOException)} for the error of a future, which the request may have failed with because it was cancelled.
+	 */
+	Throwable failure(Throwable error) {
+		Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+		if (cause instanceof IOException)
+			return failure((IOException) cause);
+		if (isAborted())
+			return failure((IOException) new InterruptedIOException(cause.toString()).initCause(cause));
+		return cause;
+	}
+
+	/**
+	 * The phases of a request, in order. The DNS lookup is bounded by the {@link HostResolver}, the TCP connection by the connect timeout of the transport, which can't be interrupted otherwise.
+	 */
+	enum Phase {
+		DNS("DNS lookup"), CONNECT("TCP connection"), TLS("TLS handshake"), RESPONSE("Response");
+
+		private final String description;
+
+		Phase(String description) {
+			this.description = description;
+		}
+	}
+
+	/**
+	 * The request was cancelled by {@link #cancel()}. It isn't retried.
+	 */
+	static final class CancelledException extends InterruptedIOException {
+		private static final long serialVersionUID = 1L;
+
+		CancelledException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * One of the deadlines of the request passed. Like any timeout it says nothing of the session, whose cookies are kept, and the request is retried as the {@link RetryPolicy} allows.
+	 */
+	static final class DeadlineException extends SocketTimeoutException {
+		private static final long serialVersionUID = 1L;
+
+		DeadlineException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package eu.neurovertex.yacapd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Decoded body of a response, as much of it as is needed : when the page is only checked by a {@link BodyTagMatcher}, the reading stops as soon as the tag is found, and when it is kept (to be parsed or captured), it is stored in buffers of the {@link BufferPool} up to a maximum size, the rest being ignored.
+ * The buffers must be given back with {@link #release()} once the body has been used.
+ *
+ * @author NeuroVertex
+ */
+final class ResponseBody implements ContentDecoder.Sink {
+	/**
+	 * Bodies that aren't needed are read up to that size so that the connection can be reused, past it closing the connection is cheaper
+	 */
+	static final int DRAIN_LIMIT = 64 * 1024;
+	private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BufferPool.BUFFER_SIZE];
+		}
+	};
+
+	private final BodyTagMatcher matcher;
+	private final boolean keep;
+	private final long maxSize;
+	private final List<ByteBuffer> chunks = new ArrayList<>(4);
+	private long size = 0;
+	private boolean truncated = false;
+
+	/**
+	 * @param matcher matcher the body is fed to, or null
+	 * @param keep    whether the body is stored
+	 * @param maxSize number of bytes past which the body isn't stored anymore
+	 */
+	ResponseBody(BodyTagMatcher matcher, boolean keep, long maxSize) {
+		this.matcher = matcher;
+		this.keep = keep;
+		this.maxSize = maxSize;
+	}
+
+	@Override
+	public boolean accept(ByteBuffer decoded) {
+		if (matcher != null && !matcher.isFound())
+			matcher.feed(keep ? decoded.duplicate() : decoded);
+		if (keep && !truncated)
+			store(decoded);
+		return needsMore();
+	}
+
+	private boolean needsMore() {
+		return (matcher != null && !matcher.isFound()) || (keep && !truncated);
+	}
+
+	private void store(ByteBuffer data) {
+		while (data.hasRemaining()) {
+			if (size >= maxSize) {
+				truncated = true;
+				return;
+			}
+			ByteBuffer last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+			if (last == null || !last.hasRemaining()) {
+				last = BufferPool.getDefault().acquire();
+				chunks.add(last);
+			}
+			int n = (int) Math.min(Math.min(last.remaining(), data.remaining()), maxSize - size);
+			ByteBuffer slice = data.duplicate();
+			slice.limit(slice.position() + n);
+			last.put(slice);
+			data.position(data.position() + n);
+			size += n;
+		}
+	}
+
+	/**
+	 * Reads and decodes a response stream until the body isn't needed anymore. The stream isn't closed.
+	 */
+	void readFrom(InputStream in, ContentDecoder decoder) throws IOException {
+		byte[] buf = scratch.get();
+		int n;
+		while (needsMore() && (n = in.read(buf)) >= 0)
+			if (!decoder.decode(ByteBuffer.wrap(buf, 0, n), this))
+				break;
+	}
+
+	/**
+	 * Reads and discards the body of a response nobody looks at, so that the connection goes back to the keep-alive cache. Bodies larger than {@link #DRAIN_LIMIT} are left unread, the connection being closed instead.
+	 */
+	static void discard(InputStream in) throws IOException {
+		byte[] buf = scratch.get();
+		int n;
+		long total = 0;
+		while (total < DRAIN_LIMIT && (n = in.read(buf)) >= 0)
+			total += n;
+	}
+
+	BodyTagMatcher getMatcher() {
+		return matcher;
+	}
+
+	long size() {
+		return size;
+	}
+
+	/**
+	 * @return true if the body was larger than the maximum size, in which case only its beginning was stored
+	 */
+	boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * @return a stream reading the stored body
+	 */
+	InputStream inputStream() {
+		return new InputStream() {
+			private int chunk = 0;
+			private ByteBuffer current;
+
+			@Override
+			public int read() {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				while (current == null || !current.hasRemaining()) {
+					if (chunk >= chunks.size())
+						return -1;
+					current = chunks.get(chunk++).duplicate();
+					current.flip();
+				}
+				int n = Math.min(len, current.remaining());
+				current.get(b, off, n);
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * @return a copy of the stored body, for the captures
+	 */
+	byte[] toByteArray() {
+		byte[] bytes = new byte[(int) size];
+		int off = 0;
+		for (ByteBuffer chunk : chunks) {
+			ByteBuffer b = chunk.duplicate();
+			b.flip();
+			int n = b.remaining();
+			b.get(bytes, off, n);
+			off += n;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Gives the buffers back to the pool. The body can't be read afterwards.
+	 */
+	void release() {
+		for (ByteBuffer chunk : chunks)
+			BufferPool.getDefault().release(chunk);
+		chunks.clear();
+	}
+
+	/**
+	 * Body subscriber for the asynchronous transport, decoding the buffers as they arrive. The body future is completed as soon as the body isn't needed anymore, the rest of the response being read and discarded by the client so that the connection can be reused.
+	 */
+	static final class Subscriber implements HttpResponse.BodySubscriber<ResponseBody> {
+		private final ResponseBody body;
+		private final ContentDecoder decoder;
+		private final CompletableFuture<ResponseBody> result = new CompletableFuture<>();
+
+		Subscriber(ResponseBody body, ContentDecoder decoder) {
+			this.body = body;
+			this.decoder = decoder;
+		}
+
+		@Override
+		public CompletionStage<ResponseBody> getBody() {
+			return result;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			subscription.request(Long.MAX_VALUE);
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> buffers) {
+			if (result.isDone())
+				return;
+			try {
+				for (ByteBuffer buffer : buffers)
+					if (!decoder.decode(buffer, body)) {
+						decoder.end();
+						result.complete(body);
+						return;
+					}
+			} catch (IOException e) {
+				onError(e);
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			if (result.isDone())
+				return;
+			decoder.end();
+			body.release();
+			result.completeExceptionally(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			if (result.isDone())
+				return;
+			decoder.end();
+			result.complete(body);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package eu.neurovertex.yacapd;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+
+/**
+ * Decides whether and when a failed request is retried by the {@link HTTPSDownloader}.
+ *
+ * @author NeuroVertex
+ * @see BackoffRetryPolicy
+ */
+public interface RetryPolicy {
+
+	/**
+	 * @param attempt       number of attempts that failed so far, starting at 1
+	 * @param previousDelay delay returned for the previous attempt, 0 for the first one
+	 * @param elapsed       time in milliseconds since the first attempt started
+	 * @param error         the error of the last attempt
+	 * @return the delay in milliseconds before the next attempt, or -1 to give up
+	 */
+	long nextDelay(int attempt, long previousDelay, long elapsed, IOException error);
+
+	/**
+	 * Errors that only mean the network or the server can't be reached say nothing about the session, so its cookies are kept. Any other error (TLS or protocol error, connection dropped in the middle of a response...) clears them, like the downloader always used to do.
+	 *
+	 * @return true if the cookies of the session should be cleared after this error
+	 */
+	default boolean shouldClearCookies(IOException error) {
+		return !(error instanceof ConnectException || error instanceof NoRouteToHostException || error instanceof UnknownHostException
+				|| error instanceof SocketTimeoutException || error instanceof HttpTimeoutException || error instanceof HttpConnectTimeoutException);
+	}
+}
@@ -0,0 +1,315 @@
+package eu.neurovertex.yacapd;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+/**
+ * Runs any number of {@link YacapPageProcessor} sessions in a single process. Instead of giving each session its own thread that sleeps between requests, every session is a continuation : the engine calls {@link YacapPageProcessor#step()} on a small shared pool and schedules the next call after the delay it returns on a {@link TimerWheel}. Virtual threads would do the same, but they are only final in JDK 21 while the daemon runs on JDK 16 and later.
+ * The delays are spread by a random jitter of "jitter" percent (10 by default) so that sessions started together don't refresh in lockstep.
+ * With the synchronous transport, a step holds its thread while its request is sent, so the "threads" setting bounds the number of requests in flight and a stalled portal can take the whole pool until the deadlines of the requests pass (see {@link HTTPSDownloader}). The retries and the other delays never hold a thread. The asynchronous transport only uses the pool to process the responses.
+ * A session that is waiting for user input isn't scheduled at all until it is woken up by {@link YacapPageProcessor#reconnect()}, {@link YacapPageProcessor#logout()} or a change of its login information.
+ * <p/>
+ * Unless "networkPoll" is set to 0, a {@link NetworkWatcher} polls the network configuration every "networkPoll" milliseconds (1000) while the engine runs, and every session checks its connection as soon as it changes, rather than at its next refresh.
+ * <p/>
+ * The CPU time and memory allocated by each session are measured around every step and available through {@link Session#getStats()}.
+ *
+ * @author NeuroVertex
+ */
+public class SessionEngine {
+	private static final Logger log = Logger.getLogger(SessionEngine.class.getName());
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private final TimerWheel timer;
+	private final List<Session> sessions = new CopyOnWriteArrayList<>();
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private final NetworkWatcher network;
+	private EventBus.Subscription<NetworkEvent> networkEvents;
+	private boolean started = false;
+	private volatile boolean shutdown = false;
+
+	/**
+	 * Creates an engine running on the shared {@link TimerWheel#getDefault() timer wheel}.
+	 */
+	public SessionEngine() {
+		this(TimerWheel.getDefault());
+	}
+
+	/**
+	 * @param timer timer wheel the steps of the sessions are scheduled and run on
+	 */
+	public SessionEngine(TimerWheel timer) {
+		this.timer = timer;
+		long poll = Config.current().getNetworkPoll();
+		this.network = poll > 0 ? new NetworkWatcher(timer, poll, EventBus.getDefault()) : null;
+	}
+
+	/**
+	 * Creates a session for each account stored under the "accounts" child of the given node, each account being a node holding its username and password.
+	 *
+	 * @param root the application's Preferences node
+	 * @return the sessions created, empty if there is no such account
+	 */
+	public List<YacapPageProcessor> loadAccounts(Preferences root) throws BackingStoreException {
+		List<YacapPageProcessor> list = new ArrayList<>();
+		if (!root.nodeExists("accounts"))
+			return list;
+		Preferences accounts = root.node("accounts");
+		for (String name : accounts.childrenNames()) {
+			YacapPageProcessor processor = new YacapPageProcessor(name, accounts.node(name));
+			add(processor);
+			list.add(processor);
+		}
+		return list;
+	}
+
+	/**
+	 * Adds a session to the engine. If the engine is already started, its first step is scheduled immediately.
+	 */
+	public Session add(YacapPageProcessor processor) {
+		Session session = new Session(processor);
+		sessions.add(session);
+		processor.setWakeup(session);
+		synchronized (this) {
+			if (started)
+				session.schedule(0);
+		}
+		return session;
+	}
+
+	public synchronized void start() {
+		if (started)
+			return;
+		started = true;
+		log.info("Starting " + sessions.size() + " session(s).");
+		for (Session session : sessions)
+			session.schedule(0);
+		if (sessions.isEmpty())
+			shutdown();
+		else if (network != null) {
+			// Waking the sessions is cheap, so it's done on the publishing thread. Several changes in a row only need one check
+			networkEvents = EventBus.getDefault().subscribe(NetworkEvent.class, new EventBus.Listener<NetworkEvent>() {
+				@Override
+				public void onEvent(NetworkEvent event) {
+					networkChanged(event);
+				}
+			}, EventBus.DIRECT, 1, EventBus.Overflow.COALESCE_LATEST);
+			network.start();
+		}
+	}
+
+	private void networkChanged(NetworkEvent event) {
+		if (event.getType() == NetworkEvent.Type.LINK_DOWN)
+			return; // Nothing to do until another link is up
+		CircuitBreaker.retryAll();
+		for (Session session : sessions)
+			session.getProcessor().checkConnection();
+	}
+
+	/**
+	 * Stops all the sessions. Each of them exits after its current step, whose request is aborted.
+	 */
+	public void stop() {
+		for (Session session : sessions)
+			session.getProcessor().stop();
+	}
+
+	/**
+	 * Stops all the sessions and waits for them to exit.
+	 *
+	 * @return true if they all exited in time
+	 */
+	public boolean stop(long timeout, TimeUnit unit) throws InterruptedException {
+		stop();
+		return awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Blocks until every session has exited.
+	 */
+	public void awaitTermination() throws InterruptedException {
+		terminated.await();
+	}
+
+	/**
+	 * Blocks until every session has exited, or the timeout elapses.
+	 *
+	 * @return true if every session has exited
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	public List<Session> getSessions() {
+		return Collections.unmodifiableList(sessions);
+	}
+
+	private void remove(Session session) {
+		sessions.remove(session);
+		if (sessions.isEmpty())
+			shutdown();
+	}
+
+	private synchronized void shutdown() {
+		shutdown = true;
+		if (network != null)
+			network.stop();
+		if (networkEvents != null)
+			networkEvents.cancel();
+		terminated.countDown();
+	}
+
+	/**
+	 * A session driven by the engine. It is also the wakeup callback of its processor.
+	 */
+	public class Session implements Runnable {
+		private final YacapPageProcessor processor;
+		private final SessionStats stats = new SessionStats();
+		private TimerWheel.Timeout pending;
+		private boolean running = false, woken = false;
+		private final Runnable stepTask = new Runnable() {
+			@Override
+			public void run() {
+				step();
+			}
+		};
+
+		private Session(YacapPageProcessor processor) {
+			this.processor = processor;
+		}
+
+		private synchronized void schedule(long delay) {
+			pending = timer.schedule(stepTask, delay, delay * Config.current().getJitter() / 100);
+		}
+
+		private void step() {
+			synchronized (this) {
+				pending = null;
+				running = true;
+				woken = false;
+			}
+			final long start = System.nanoTime();
+			long cpu = threads.getCurrentThreadCpuTime(), allocated = allocatedBytes();
+			CompletableFuture<Long> next;
+			try {
+				next = processor.isStopped() ? CompletableFuture.completedFuture(-1L) : processor.stepAsync();
+			} catch (RuntimeException e) {
+				next = CompletableFuture.failedFuture(e);
+			}
+			// Only the part of the step run on this thread is accounted for, which is all of it with the synchronous transport unless a request is retried
+			final long stepCpu = threads.getCurrentThreadCpuTime() - cpu, stepAllocated = allocatedBytes() - allocated;
+			next.whenComplete(new BiConsumer<Long, Throwable>() {
+				@Override
+				public void accept(Long wait, Throwable error) {
+					stats.record(System.nanoTime() - start, stepCpu, stepAllocated);
+					if (error != null) {
+						log.log(Level.SEVERE, "Uncaught exception in session " + processor.getName(), error);
+						wait = 1000L;
+					}
+					next(wait);
+				}
+			});
+		}
+
+		private void next(long wait) {
+			if (processor.isStopped()) {
+				processor.terminate();
+				remove(this);
+				return;
+			}
+			synchronized (this) {
+				running = false;
+				if (woken)
+					wait = 0;
+				if (wait >= 0)
+					schedule(wait);
+			}
+		}
+
+		/**
+		 * Runs the next step as soon as possible, cancelling the pending delay if any.
+		 */
+		@Override
+		public synchronized void run() {
+			if (running) {
+				woken = true;
+			} else if (pending == null || pending.cancel()) {
+				if (!shutdown)
+					schedule(0);
+			}
+		}
+
+		public YacapPageProcessor getProcessor() {
+			return processor;
+		}
+
+		public SessionStats getStats() {
+			return stats;
+		}
+	}
+
+	private static long allocatedBytes() {
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+			if (bean.isThreadAllocatedMemoryEnabled())
+				return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	/**
+	 * Resources used by a session since it was added to the engine. The counters are plain fields updated atomically, which is cheaper for thousands of sessions than an AtomicLong each.
+	 */
+	public static class SessionStats {
+		private static final AtomicLongFieldUpdater<SessionStats> STEPS = AtomicLongFieldUpdater.newUpdater(SessionStats.class, "steps"),
+				WALL = AtomicLongFieldUpdater.newUpdater(SessionStats.class, "wallNanos"),
+				CPU = AtomicLongFieldUpdater.newUpdater(SessionStats.class, "cpuNanos"),
+				ALLOCATED = AtomicLongFieldUpdater.newUpdater(SessionStats.class, "allocatedBytes");
+		private volatile long steps, wallNanos, cpuNanos, allocatedBytes;
+
+		private void record(long wall, long cpu, long allocated) {
+			STEPS.incrementAndGet(this);
+			WALL.addAndGet(this, wall);
+			if (cpu > 0)
+				CPU.addAndGet(this, cpu);
+			if (allocated > 0)
+				ALLOCATED.addAndGet(this, allocated);
+		}
+
+		public long getSteps() {
+			return steps;
+		}
+
+		/**
+		 * @return the time spent in steps, including the time blocked on network I/O
+		 */
+		public long getWallNanos() {
+			return wallNanos;
+		}
+
+		public long getCpuNanos() {
+			return cpuNanos;
+		}
+
+		/**
+		 * @return the number of bytes allocated on the heap by the session's steps, or 0 if the JVM can't measure it
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("steps=%d, wall=%dms, cpu=%dms, allocated=%dkB", getSteps(), getWallNanos() / 1000000, getCpuNanos() / 1000000, getAllocatedBytes() / 1024);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package eu.neurovertex.yacapd;
+
+/**
+ * Base class of the events published by a session on the {@link EventBus}.
+ *
+ * @author NeuroVertex
+ */
+public abstract class SessionEvent {
+	private final long timestamp = System.currentTimeMillis();
+	private final YacapPageProcessor session;
+
+	protected SessionEvent(YacapPageProcessor session) {
+		this.session = session;
+	}
+
+	/**
+	 * @return the processor of the session the event comes from
+	 */
+	public YacapPageProcessor getSession() {
+		return session;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return an object equal for all the events of this kind from this session, which {@link EventBus.Overflow#COALESCE_LATEST} uses to replace a pending event by a newer one
+	 */
+	Object getKey() {
+		return getClass().getName() + ':' + session.getName();
+	}
+}
@@ -0,0 +1,405 @@
+package eu.neurovertex.yacapd;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the session cookies of all the accounts in a single append-only file, so that saving a session after a login is one small write instead of rewriting the Preferences backing store, and a restart reads every account at once.
+ * <p/>
+ * The file starts with a magic number and a format version, followed by batches. Each batch is its length, the CRC32 of its content, then the content : a version byte, a number of records and the records, each being the account, then either its session (host, cookie name, cookie value and date) or nothing when the session was forgotten.
+ * Saves are only queued in memory and written together, as a single batch followed by a force, "storeFlush" milliseconds (200) after the first of them, and when the store is closed. A batch is only taken into account if it is complete and its checksum matches, so a crash in the middle of a write loses that batch but never corrupts the previous ones : the torn end of the file is ignored and cut at the next opening.
+ * <p/>
+ * The whole file is mapped and read once when the store is opened, the last record of each account winning. Once the file is more than four times the size of its live records, it is compacted by writing them to a temporary file that atomically replaces it.
+ * The file is the "sessionStore" setting, ".yacapd-sessions" in the user's home directory by default. Since the cookies log the accounts in, it is only readable by its owner where the file system has POSIX permissions.
+ *
+ * @author NeuroVertex
+ */
+public class SessionStore {
+	private static final Logger log = Logger.getLogger(SessionStore.class.getName());
+	private static final int MAGIC = 0x59435353, FORMAT = 1, HEADER = 8, BATCH_HEADER = 8, COMPACT_MIN = 64 * 1024;
+	private static final byte BATCH_VERSION = 1;
+	private static final Entry REMOVED = new Entry("", "", "", 0);
+	private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+	private static volatile SessionStore instance;
+
+	private final Path path;
+	private final long flushDelay;
+	private final Map<String, Entry> sessions = new ConcurrentHashMap<>();
+	private final Map<String, Entry> pending = new LinkedHashMap<>(); // Guarded by itself
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+	// Guarded by this
+	private FileChannel channel;
+	private long liveBytes;
+	private boolean closed = false;
+
+	/**
+	 * Opens the store, reading all the sessions it holds.
+	 *
+	 * @param file       file of the store, created if it doesn't exist
+	 * @param flushDelay time in milliseconds the saves are held to be written together, 0 to write each of them right away
+	 */
+	public SessionStore(File file, long flushDelay) throws IOException {
+		this.path = file.toPath();
+		this.flushDelay = flushDelay;
+		if (path.getParent() != null)
+			Files.createDirectories(path.getParent());
+		channel = open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (isPosix(path)) // A store written by an older version may be readable by others
+			Files.setPosixFilePermissions(path, OWNER_ONLY);
+		long end = load();
+		if (end < channel.size()) {
+			log.warning("Ignoring " + (channel.size() - end) + " bytes of incomplete or corrupted data at the end of " + path);
+			channel.truncate(end);
+		}
+		if (end == 0) {
+			channel.write(header(), 0);
+			channel.force(true);
+		}
+		channel.position(channel.size());
+	}
+
+	/**
+	 * @return the store configured in the {@link Config}, opened on first use and flushed when the JVM exits. If it can't be opened, sessions are only kept in memory
+	 */
+	public static SessionStore getDefault() {
+		SessionStore s = instance;
+		if (s == null)
+			synchronized (SessionStore.class) {
+				if ((s = instance) == null) {
+					Config config = Config.current();
+					String file = config.getSessionStore();
+					try {
+						s = new SessionStore(file.isEmpty() ? new File(System.getProperty("user.home"), ".yacapd-sessions") : new File(file), config.getStoreFlush());
+						final SessionStore store = s;
+						Runtime.getRuntime().addShutdownHook(new Thread() {
+							@Override
+							public void run() {
+								store.close();
+							}
+						});
+					} catch (IOException e) {
+						log.log(Level.WARNING, "Couldn't open the session store, sessions won't be saved", e);
+						s = new SessionStore();
+					}
+					instance = s;
+				}
+			}
+		return s;
+	}
+
+	private SessionStore() {
+		path = null;
+		flushDelay = 0;
+		closed = true;
+	}
+
+	/**
+	 * @return the saved session of the account, or null if there is none
+	 */
+	public Entry get(String account) {
+		return sessions.get(account);
+	}
+
+	/**
+	 * @return a read-only view of the saved sessions, by account
+	 */
+	public Map<String, Entry> getAll() {
+		return Collections.unmodifiableMap(sessions);
+	}
+
+	/**
+	 * Saves the session of an account. It is written with the next batch.
+	 */
+	public void put(String account, Entry entry) {
+		sessions.put(account, entry);
+		enqueue(account, entry);
+	}
+
+	/**
+	 * Forgets the session of an account, once the portal doesn't know it anymore.
+	 */
+	public void remove(String account) {
+		if (sessions.remove(account) != null)
+			enqueue(account, REMOVED);
+	}
+
+	private void enqueue(String account, Entry entry) {
+		synchronized (pending) {
+			pending.put(account, entry);
+		}
+		if (flushDelay <= 0)
+			flush();
+		else if (scheduled.compareAndSet(false, true))
+			TimerWheel.getDefault().schedule(flushTask, flushDelay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes the pending saves as a single batch, and waits for them to reach the disk.
+	 */
+	public synchronized void flush() {
+		scheduled.set(false);
+		Map<String, Entry> batch;
+		synchronized (pending) {
+			if (pending.isEmpty())
+				return;
+			batch = new LinkedHashMap<>(pending);
+			pending.clear();
+		}
+		if (closed)
+			return;
+		try {
+			ByteBuffer buffer = encode(batch);
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(false);
+			log.fine("Saved " + batch.size() + " session(s)");
+			if (channel.size() > COMPACT_MIN && channel.size() > 4 * liveBytes())
+				compact();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't write the session store", e);
+		}
+	}
+
+	/**
+	 * Rewrites the file with only the current sessions.
+	 */
+	public synchronized void compact() throws IOException {
+		if (closed)
+			return;
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		Map<String, Entry> live = new LinkedHashMap<>(sessions);
+		Files.deleteIfExists(tmp); // Left by a failed compaction, possibly with other permissions
+		try (FileChannel out = open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			ByteBuffer header = header();
+			while (header.hasRemaining())
+				out.write(header);
+			if (!live.isEmpty()) {
+				ByteBuffer buffer = encode(live);
+				while (buffer.hasRemaining())
+					out.write(buffer);
+			}
+			out.force(true);
+		}
+		channel.close();
+		try {
+			Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		} finally { // Whether it was replaced or not, the file is opened again for the next batches
+			try {
+				channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				channel.position(channel.size());
+			} catch (IOException e) {
+				closed = true;
+				log.log(Level.WARNING, "Couldn't open the session store again after compacting it, sessions won't be saved anymore", e);
+			}
+		}
+		if (closed)
+			return;
+		liveBytes = channel.size() - HEADER;
+		log.fine("Compacted the session store to " + live.size() + " session(s)");
+	}
+
+	/**
+	 * Writes the pending saves and closes the file. Later saves are kept in memory only.
+	 */
+	public synchronized void close() {
+		if (closed)
+			return;
+		flush();
+		closed = true;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't close the session store", e);
+		}
+	}
+
+	/**
+	 * Opens a file, creating it only readable and writable by its owner where the file system supports it.
+	 */
+	private static FileChannel open(Path file, OpenOption... options) throws IOException {
+		Set<OpenOption> set = new HashSet<>(Arrays.asList(options));
+		if (isPosix(file))
+			return FileChannel.open(file, set, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+		return FileChannel.open(file, set);
+	}
+
+	private static boolean isPosix(Path file) {
+		return file.getFileSystem().supportedFileAttributeViews().contains("posix");
+	}
+
+	private long liveBytes() {
+		// Estimated until the first compaction measures it, so that checking doesn't require encoding the sessions
+		return Math.max(liveBytes, HEADER + (long) sessions.size() * 160);
+	}
+
+	/**
+	 * Reads the whole file at once.
+	 *
+	 * @return the offset of the end of the last valid batch, 0 if the file is empty or isn't a store
+	 */
+	private long load() throws IOException {
+		long size = channel.size();
+		if (size < HEADER)
+			return 0;
+		MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		int magic = map.getInt(), format = map.getInt();
+		if (magic != MAGIC || format > FORMAT)
+			throw new IOException(path + " isn't a session store of a supported version");
+		CRC32 crc = new CRC32();
+		long end = HEADER;
+		int batches = 0;
+		while (map.remaining() >= BATCH_HEADER) {
+			int length = map.getInt(), checksum = map.getInt();
+			if (length < 0 || length > map.remaining())
+				break;
+			ByteBuffer content = map.slice();
+			content.limit(length);
+			crc.reset();
+			crc.update(content.duplicate());
+			if ((int) crc.getValue() != checksum)
+				break;
+			try {
+				decode(content);
+			} catch (BufferUnderflowException | IllegalArgumentException e) {
+				break;
+			}
+			map.position(map.position() + length);
+			end = map.position();
+			batches++;
+		}
+		log.fine("Loaded " + sessions.size() + " session(s) from " + batches + " batch(es) in " + path);
+		return end;
+	}
+
+	private void decode(ByteBuffer content) {
+		byte version = content.get();
+		if (version != BATCH_VERSION)
+			throw new IllegalArgumentException("Unknown batch version " + version);
+		Map<String, Entry> batch = new LinkedHashMap<>();
+		for (int i = content.getInt(); i > 0; i--) {
+			String account = getString(content);
+			if (content.get() == 0)
+				batch.put(account, REMOVED);
+			else
+				batch.put(account, new Entry(getString(content), getString(content), getString(content), content.getLong()));
+		}
+		// Only applied once the whole batch has been read
+		for (Map.Entry<String, Entry> e : batch.entrySet())
+			if (e.getValue() == REMOVED)
+				sessions.remove(e.getKey());
+			else
+				sessions.put(e.getKey(), e.getValue());
+	}
+
+	private static ByteBuffer encode(Map<String, Entry> batch) {
+		int size = BATCH_HEADER + 5;
+		for (Map.Entry<String, Entry> e : batch.entrySet()) {
+			size += 3 + utf8Length(e.getKey());
+			Entry entry = e.getValue();
+			if (entry != REMOVED)
+				size += 6 + utf8Length(entry.host) + utf8Length(entry.name) + utf8Length(entry.value) + 8;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.position(BATCH_HEADER);
+		buffer.put(BATCH_VERSION).putInt(batch.size());
+		for (Map.Entry<String, Entry> e : batch.entrySet()) {
+			putString(buffer, e.getKey());
+			Entry entry = e.getValue();
+			if (entry == REMOVED)
+				buffer.put((byte) 0);
+			else {
+				buffer.put((byte) 1);
+				putString(buffer, entry.host);
+				putString(buffer, entry.name);
+				putString(buffer, entry.value);
+				buffer.putLong(entry.savedAt);
+			}
+		}
+		buffer.flip();
+		CRC32 crc = new CRC32();
+		ByteBuffer content = buffer.duplicate();
+		content.position(BATCH_HEADER);
+		crc.update(content);
+		buffer.putInt(0, size - BATCH_HEADER).putInt(4, (int) crc.getValue());
+		return buffer;
+	}
+
+	private static ByteBuffer header() {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(MAGIC).putInt(FORMAT).flip();
+		return header;
+	}
+
+	private static int utf8Length(String s) {
+		return s.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	private static void putString(ByteBuffer buffer, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		buffer.putShort((short) bytes.length).put(bytes);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Saved session of an account : the session cookie and the host it belongs to.
+	 */
+	public static final class Entry {
+		private final String host, name, value;
+		private final long savedAt;
+
+		public Entry(String host, String name, String value, long savedAt) {
+			this.host = host;
+			this.name = name;
+			this.value = value;
+			this.savedAt = savedAt;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		/**
+		 * @return the date the session was saved, in milliseconds since the epoch
+		 */
+		public long getSavedAt() {
+			return savedAt;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package eu.neurovertex.yacapd;
+
+import eu.neurovertex.yacapd.YacapPageProcessor.YacapState;
+
+/**
+ * Published when a session changes state.
+ *
+ * @author NeuroVertex
+ */
+public class StateChangeEvent extends SessionEvent {
+	private final YacapState previous, state;
+
+	public StateChangeEvent(YacapPageProcessor session, YacapState previous, YacapState state) {
+		super(session);
+		this.previous = previous;
+		this.state = state;
+	}
+
+	public YacapState getPrevious() {
+		return previous;
+	}
+
+	public YacapState getState() {
+		return state;
+	}
+
+	@Override
+	public String toString() {
+		return getSession().getName() + " : " + previous + " -> " + state;
+	}
+}
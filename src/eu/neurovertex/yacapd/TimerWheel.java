@@ -0,0 +1,288 @@
+package eu.neurovertex.yacapd;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hierarchical timer wheel owning all the delayed work of the sessions : popup refreshes, retry backoffs and re-login attempts.
+ * <p/>
+ * Time is cut in ticks, and timeouts are stored in one of four wheels of 64 slots depending on how far their deadline is : the first wheel covers the next 64 ticks, the second one the next 64^2 ticks, and so on. When a wheel completes a turn, the next slot of the wheel above is cascaded into the lower ones.
+ * Scheduling and cancelling only append the timeout to a lock-free queue, which the ticker thread drains at the next tick, so both are O(1) and never block. The expired tasks are run on the executor given to the wheel, the ticker thread only does the bookkeeping.
+ * <p/>
+ * With the default tick of 10ms, the wheels cover about 46 hours, longer delays are cascaded until they fit.
+ *
+ * @author NeuroVertex
+ */
+public class TimerWheel {
+	private static final Logger log = Logger.getLogger(TimerWheel.class.getName());
+	private static final int LEVELS = 4, BITS = 6, SLOTS = 1 << BITS, MASK = SLOTS - 1;
+	private static final long MAX_TICKS = 1L << (BITS * LEVELS);
+	private static volatile TimerWheel instance, deadlines;
+
+	private final long tickNanos, start;
+	private final Executor executor;
+	private final Bucket[][] wheels = new Bucket[LEVELS][SLOTS];
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<>(), cancelled = new ConcurrentLinkedQueue<>();
+	private final Thread ticker;
+	private volatile boolean running = true;
+	private long tick = 0; // Next tick to process, only used by the ticker thread
+
+	/**
+	 * @param tick     duration of a tick, the precision of the timer
+	 * @param unit     unit of tick
+	 * @param executor executor the expired tasks are run on
+	 */
+	public TimerWheel(long tick, TimeUnit unit, Executor executor) {
+		this.tickNanos = unit.toNanos(tick);
+		this.executor = executor;
+		for (Bucket[] wheel : wheels)
+			for (int i = 0; i < SLOTS; i++)
+				wheel[i] = new Bucket();
+		start = System.nanoTime();
+		ticker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				tickLoop();
+			}
+		}, "yacap-timer");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	/**
+	 * @return the wheel shared by the sessions of the JVM. Its tasks run on a pool of "threads" threads (defaults to the number of processors)
+	 */
+	public static TimerWheel getDefault() {
+		TimerWheel w = instance;
+		if (w == null)
+			synchronized (TimerWheel.class) {
+				if ((w = instance) == null)
+					instance = w = new TimerWheel(Config.current().getTick(), TimeUnit.MILLISECONDS,
+							Executors.newFixedThreadPool(Config.current().getThreads(), new ThreadFactory() {
+								private final AtomicInteger count = new AtomicInteger();
+
+								@Override
+								public Thread newThread(Runnable r) {
+									Thread t = new Thread(r, "yacap-worker-" + count.getAndIncrement());
+									t.setDaemon(true);
+									return t;
+								}
+							}));
+			}
+		return w;
+	}
+
+	/**
+	 * @return the wheel of the deadlines that abort blocked I/O (see {@link RequestHandle}). Its tasks run on a thread of their own rather than on the pool of the default wheel, whose workers may all be blocked on the very requests the deadlines have to abort. They must therefore be short and never block
+	 */
+	public static TimerWheel getDeadlines() {
+		TimerWheel w = deadlines;
+		if (w == null)
+			synchronized (TimerWheel.class) {
+				if ((w = deadlines) == null)
+					deadlines = w = new TimerWheel(Config.current().getTick(), TimeUnit.MILLISECONDS,
+							Executors.newSingleThreadExecutor(new ThreadFactory() {
+								@Override
+								public Thread newThread(Runnable r) {
+									Thread t = new Thread(r, "yacap-deadlines");
+									t.setDaemon(true);
+									return t;
+								}
+							}));
+			}
+		return w;
+	}
+
+	/**
+	 * Schedules a task to be run once after the given delay.
+	 *
+	 * @return a handle that can be used to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, (System.nanoTime() - start + unit.toNanos(Math.max(0, delay)) + tickNanos - 1) / tickNanos);
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Schedules a task with some randomness, so that sessions started together don't all end up firing at the same instant.
+	 *
+	 * @param delay  average delay in milliseconds
+	 * @param jitter width in milliseconds of the window, centered on delay, in which the task is run
+	 */
+	public Timeout schedule(Runnable task, long delay, long jitter) {
+		if (jitter > 0)
+			delay += ThreadLocalRandom.current().nextLong(jitter + 1) - jitter / 2;
+		return schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return an executor running its tasks after the given delay, for use with {@link CompletableFuture}
+	 */
+	public Executor delayed(final long delay, final TimeUnit unit) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				schedule(command, delay, unit);
+			}
+		};
+	}
+
+	/**
+	 * Stops the ticker thread. Pending timeouts are never run.
+	 */
+	public void shutdown() {
+		running = false;
+		LockSupport.unpark(ticker);
+	}
+
+	private void tickLoop() {
+		while (running) {
+			long deadline = start + tick * tickNanos, now;
+			while ((now = System.nanoTime()) < deadline && running)
+				LockSupport.parkNanos(this, deadline - now);
+			if (!running)
+				break;
+
+			Timeout timeout;
+			while ((timeout = cancelled.poll()) != null)
+				if (timeout.bucket != null)
+					timeout.bucket.remove(timeout);
+			while ((timeout = added.poll()) != null)
+				if (timeout.state.get() == Timeout.PENDING)
+					insert(timeout);
+
+			// Cascade the wheels that completed a turn, highest first so that their timeouts can end up in the slots cascaded next
+			for (int level = LEVELS - 1; level > 0; level--)
+				if ((tick & ((1L << (BITS * level)) - 1)) == 0) {
+					Bucket bucket = wheels[level][(int) (tick >>> (BITS * level)) & MASK];
+					Timeout t = bucket.clear();
+					while (t != null) {
+						Timeout next = t.next;
+						t.next = t.prev = null;
+						insert(t);
+						t = next;
+					}
+				}
+
+			Timeout t = wheels[0][(int) tick & MASK].clear();
+			while (t != null) {
+				Timeout next = t.next;
+				t.next = t.prev = null;
+				t.expire();
+				t = next;
+			}
+			tick++;
+		}
+	}
+
+	private void insert(Timeout timeout) {
+		long ticks = Math.max(timeout.deadline, tick), diff = ticks - tick;
+		if (diff >= MAX_TICKS)
+			ticks = tick + MAX_TICKS - 1;
+		int level = 0;
+		while (level < LEVELS - 1 && diff >= 1L << (BITS * (level + 1)))
+			level++;
+		wheels[level][(int) (ticks >>> (BITS * level)) & MASK].add(timeout);
+	}
+
+	/**
+	 * Handle of a scheduled task.
+	 */
+	public class Timeout {
+		private static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+		private final Runnable task;
+		private final long deadline; // In ticks since the start of the wheel
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		// Only used by the ticker thread
+		private Timeout prev, next;
+		private Bucket bucket;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task if it hasn't been run yet.
+		 *
+		 * @return true if the task won't be run, false if it already was or is running
+		 */
+		public boolean cancel() {
+			if (state.compareAndSet(PENDING, CANCELLED)) {
+				cancelled.add(this);
+				return true;
+			}
+			return state.get() == CANCELLED;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		/**
+		 * @return true if the task has been handed to the executor
+		 */
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		private void expire() {
+			bucket = null;
+			if (state.compareAndSet(PENDING, EXPIRED))
+				try {
+					executor.execute(task);
+				} catch (RejectedExecutionException e) {
+					log.log(Level.WARNING, "Timer task rejected", e);
+				}
+		}
+	}
+
+	/**
+	 * Doubly-linked list of the timeouts of a slot, so that cancelled ones can be removed in constant time.
+	 */
+	private static class Bucket {
+		private Timeout head, tail;
+
+		void add(Timeout t) {
+			t.bucket = this;
+			t.prev = tail;
+			t.next = null;
+			if (tail == null)
+				head = t;
+			else
+				tail.next = t;
+			tail = t;
+		}
+
+		void remove(Timeout t) {
+			if (t.prev == null)
+				head = t.next;
+			else
+				t.prev.next = t.next;
+			if (t.next == null)
+				tail = t.prev;
+			else
+				t.next.prev = t.prev;
+			t.prev = t.next = null;
+			t.bucket = null;
+		}
+
+		/**
+		 * Empties the slot.
+		 *
+		 * @return the first timeout of the slot, the next ones being linked from it
+		 */
+		Timeout clear() {
+			Timeout t = head;
+			for (Timeout it = head; it != null; it = it.next)
+				it.bucket = null;
+			head = tail = null;
+			return t;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package eu.neurovertex.yacapd;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Socket factory noting when {@link javax.net.ssl.HttpsURLConnection} layers TLS over its freshly connected socket, which splits the connection time in its TCP and TLS parts.
+ * Unconnected sockets are deliberately not supported (see {@link javax.net.SocketFactory#createSocket()}), which makes the connection open a plain socket and call {@link #createSocket(Socket, String, int, boolean)} once it is connected, the handshake following right after.
+ * The sessions cached for the host are noted at the same time, so that {@link TlsContext} can tell whether the handshake resumed one of them.
+ * The time is kept per thread since the connection is opened on the thread calling {@link java.net.URLConnection#connect()}.
+ * This is also where the handshake starts the TLS phase of the {@link RequestHandle} attached to the thread, which closes the plain socket if the handshake takes longer than "tlsTimeout" milliseconds.
+ *
+ * @author NeuroVertex
+ */
+class TimingSSLSocketFactory extends SSLSocketFactory {
+	private static final ThreadLocal<long[]> layered = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+	private static final ThreadLocal<List<byte[]>> resumable = new ThreadLocal<>();
+	private static volatile TimingSSLSocketFactory cached;
+	private final SSLSocketFactory delegate;
+
+	private TimingSSLSocketFactory(SSLSocketFactory delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @return a factory wrapping the given one. The same instance is returned as long as the delegate doesn't change, so that persistent connections can still be reused.
+	 */
+	static SSLSocketFactory wrap(SSLSocketFactory delegate) {
+		TimingSSLSocketFactory f = cached;
+		if (f == null || f.delegate != delegate)
+			cached = f = new TimingSSLSocketFactory(delegate);
+		return f;
+	}
+
+	/**
+	 * Resets the time of the current thread, before a connection is opened.
+	 */
+	static void reset() {
+		layered.get()[0] = 0;
+	}
+
+	/**
+	 * @return the IDs of the TLS sessions that were cached for the host when the last connection of this thread started its handshake, see {@link TlsContext#handshakeCompleted(javax.net.ssl.SSLSession, List)}
+	 */
+	static List<byte[]> resumable() {
+		List<byte[]> ids = resumable.get();
+		return ids != null ? ids : Collections.<byte[]>emptyList();
+	}
+
+	/**
+	 * @return the {@link System#nanoTime()} at which the TCP connection was established on this thread since the last {@link #reset()}, or 0 if no new connection was opened
+	 */
+	static long connectedAt() {
+		return layered.get()[0];
+	}
+
+	@Override
+	public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+		long[] times = layered.get();
+		times[0] = System.nanoTime();
+		resumable.set(TlsContext.getDefault().cachedSessions(host, port));
+		RequestHandle handle = RequestHandle.attached();
+		if (handle != null) // The handshake is interrupted by closing the plain socket, the connection isn't known to the downloader until it is done
+			handle.enter(RequestHandle.Phase.TLS, Config.current().getTlsTimeout(), s);
+		return delegate.createSocket(s, host, port, autoClose);
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		return delegate.getDefaultCipherSuites();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return delegate.getSupportedCipherSuites();
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		return delegate.createSocket(host, port);
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+		return delegate.createSocket(host, port, localHost, localPort);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return delegate.createSocket(host, port);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+		return delegate.createSocket(address, port, localAddress, localPort);
+	}
+}
@@ -0,0 +1,290 @@
+package eu.neurovertex.yacapd;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TLS setup shared by both transports of the {@link HTTPSDownloader}. A dedicated {@link SSLContext} is used instead of the JVM's default one so that its client session cache can be sized for the daemon ("tlsSessionCache" sessions, kept "tlsSessionTimeout" seconds) : a new connection to a host whose session is still cached resumes it with an abbreviated handshake, by session ID or ticket.
+ * <p/>
+ * The certificates are checked against the JVM's trust store, or the one given with "tlsTrustStore" (and "tlsTrustStorePassword"), and the host name is verified. The certificates of a host can moreover be pinned with "tlsPin.host", a comma-separated list of base64-encoded SHA-256 hashes of public keys (as in HPKP) : the connection is refused unless one of the certificates of the chain has one of those keys. The pins are read at each full handshake, so they can be changed without restarting.
+ * <p/>
+ * So that a session reconnecting after a disconnection starts with an abbreviated handshake, the connected sessions call {@link #prewarm(String)} on the authentication host : every "tlsPrewarm" seconds (240) without a handshake to that host, a fresh session is negotiated in the background.
+ * Whether the handshakes of the synchronous transport and of the pre-warmings were resumed is reported to the {@link Metrics} : a handshake resumed a session if the session it ends with has the ID of one of the sessions cached for the host before it started (with TLS 1.3, the session the ticket was received with), a full handshake getting a new ID. The asynchronous transport isn't counted, the {@link java.net.http.HttpClient} neither telling when it opens a connection nor letting a handshake be watched.
+ *
+ * @author NeuroVertex
+ */
+final class TlsContext {
+	private static final Logger log = Logger.getLogger(TlsContext.class.getName());
+	private static final int PREWARM_TIMEOUT = 10000;
+	private static volatile TlsContext instance;
+
+	private final SSLContext context;
+	private final SSLSocketFactory socketFactory;
+	private final ConcurrentHashMap<String, AtomicLong> lastHandshake = new ConcurrentHashMap<>();
+	private final ExecutorService prewarmer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "yacap-tls");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * @param trustManagers trust managers checking the certificates, which get the pins checked on top of them
+	 * @param cacheSize     maximum number of sessions kept for resumption, 0 for no limit
+	 * @param timeout       time in seconds a session is kept for resumption
+	 */
+	TlsContext(TrustManager[] trustManagers, int cacheSize, int timeout) throws GeneralSecurityException {
+		TrustManager[] pinned = new TrustManager[trustManagers.length];
+		for (int i = 0; i < trustManagers.length; i++)
+			pinned[i] = trustManagers[i] instanceof X509ExtendedTrustManager ? new PinningTrustManager((X509ExtendedTrustManager) trustManagers[i]) : trustManagers[i];
+		context = SSLContext.getInstance("TLS");
+		context.init(null, pinned, null);
+		SSLSessionContext sessions = context.getClientSessionContext();
+		sessions.setSessionCacheSize(cacheSize);
+		sessions.setSessionTimeout(timeout);
+		socketFactory = context.getSocketFactory(); // A new one is returned at each call, which would keep the persistent connections from being reused
+	}
+
+	/**
+	 * @return the context of the JVM, created from the settings on first use
+	 * @throws IllegalStateException if the trust store can't be loaded
+	 */
+	static TlsContext getDefault() {
+		TlsContext t = instance;
+		if (t == null)
+			synchronized (TlsContext.class) {
+				if ((t = instance) == null) {
+					Config config = Config.current();
+					try {
+						KeyStore store = null;
+						if (!config.getTlsTrustStore().isEmpty()) {
+							store = KeyStore.getInstance(KeyStore.getDefaultType());
+							try (InputStream in = Files.newInputStream(Paths.get(config.getTlsTrustStore()))) {
+								store.load(in, config.getTlsTrustStorePassword().toCharArray());
+							}
+						}
+						TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+						tmf.init(store); // The JVM's trust store if null
+						instance = t = new TlsContext(tmf.getTrustManagers(), config.getTlsSessionCache(), config.getTlsSessionTimeout());
+					} catch (GeneralSecurityException | IOException e) {
+						throw new IllegalStateException("Can't set up TLS", e);
+					}
+				}
+			}
+		return t;
+	}
+
+	/**
+	 * Replaces the context of the JVM, to trust other certificates than the settings' (for benchmarks). Must be called before the first request.
+	 */
+	static void setDefault(TlsContext context) {
+		synchronized (TlsContext.class) {
+			instance = context;
+		}
+	}
+
+	SSLContext getContext() {
+		return context;
+	}
+
+	SSLSocketFactory getSocketFactory() {
+		return socketFactory;
+	}
+
+	/**
+	 * @return the IDs of the sessions cached for the host, which a handshake starting now resumes if it is abbreviated
+	 */
+	List<byte[]> cachedSessions(String host, int port) {
+		SSLSessionContext sessions = context.getClientSessionContext();
+		List<byte[]> ids = new ArrayList<>(2);
+		for (Enumeration<byte[]> e = sessions.getIds(); e.hasMoreElements(); ) {
+			byte[] id = e.nextElement();
+			SSLSession session = sessions.getSession(id);
+			if (session != null && session.getPeerPort() == port && host.equalsIgnoreCase(session.getPeerHost()))
+				ids.add(id);
+		}
+		return ids;
+	}
+
+	/**
+	 * Records a handshake of the synchronous transport, or of a pre-warming.
+	 *
+	 * @param session the session negotiated
+	 * @param cached  the {@link #cachedSessions(String, int) sessions cached} for the host when the handshake started
+	 */
+	void handshakeCompleted(SSLSession session, List<byte[]> cached) {
+		boolean resumed = false;
+		for (byte[] id : cached)
+			if (Arrays.equals(id, session.getId())) {
+				resumed = true;
+				break;
+			}
+		Metrics.getDefault().tlsHandshake(resumed);
+		String key = session.getPeerHost() + ":" + session.getPeerPort();
+		AtomicLong last = lastHandshake.get(key);
+		if (last == null)
+			last = lastHandshake.computeIfAbsent(key, new Function<String, AtomicLong>() {
+				@Override
+				public AtomicLong apply(String k) {
+					return new AtomicLong();
+				}
+			});
+		last.set(System.currentTimeMillis());
+	}
+
+	/**
+	 * Negotiates a fresh session with the host of the given URL in the background, unless there was a handshake with it during the last "tlsPrewarm" seconds. Returns immediately.
+	 */
+	void prewarm(String url) {
+		long interval = Config.current().getTlsPrewarm();
+		if (interval <= 0)
+			return;
+		URI uri;
+		try {
+			uri = new URI(url);
+		} catch (URISyntaxException e) {
+			return; // Reported by the requests to that URL
+		}
+		final String host = uri.getHost();
+		final int port = uri.getPort() < 0 ? 443 : uri.getPort();
+		if (host == null)
+			return;
+		long now = System.currentTimeMillis();
+		AtomicLong last = lastHandshake.get(host + ":" + port);
+		if (last == null)
+			last = lastHandshake.computeIfAbsent(host + ":" + port, new Function<String, AtomicLong>() {
+				@Override
+				public AtomicLong apply(String k) {
+					return new AtomicLong();
+				}
+			});
+		long previous = last.get();
+		// Only one of the sessions calling it starts the handshake
+		if (now - previous < interval || !last.compareAndSet(previous, now))
+			return;
+		prewarmer.execute(new Runnable() {
+			@Override
+			public void run() {
+				warm(host, port);
+			}
+		});
+	}
+
+	private void warm(String host, int port) {
+		List<byte[]> cached = cachedSessions(host, port);
+		try (Socket plain = new Socket()) {
+			plain.connect(new InetSocketAddress(host, port), PREWARM_TIMEOUT);
+			plain.setSoTimeout(PREWARM_TIMEOUT);
+			try (SSLSocket socket = (SSLSocket) getSocketFactory().createSocket(plain, host, port, true)) {
+				SSLParameters parameters = socket.getSSLParameters();
+				parameters.setEndpointIdentificationAlgorithm("HTTPS");
+				socket.setSSLParameters(parameters);
+				socket.startHandshake();
+				// TLS 1.3 tickets are sent after the handshake, and only processed when the socket is read : a short request is made and its response read
+				OutputStream out = socket.getOutputStream();
+				out.write(("HEAD / HTTP/1.1\r\nHost: " + host + "\r\nUser-Agent: " + Config.current().getUserAgent() + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+				out.flush();
+				InputStream in = socket.getInputStream();
+				byte[] buf = new byte[1024];
+				int total = 0, n;
+				while (total < ResponseBody.DRAIN_LIMIT && (n = in.read(buf)) >= 0)
+					total += n;
+				handshakeCompleted(socket.getSession(), cached);
+				if (log.isLoggable(Level.FINE))
+					log.fine("Pre-warmed the TLS session to " + host);
+			}
+		} catch (IOException e) {
+			log.log(Level.FINE, "Couldn't pre-warm the TLS session to " + host, e);
+		}
+	}
+
+	/**
+	 * Checks the pins of the host on top of the delegate's checks. Hosts without pins are only checked by the delegate.
+	 */
+	private static final class PinningTrustManager extends X509ExtendedTrustManager {
+		private final X509ExtendedTrustManager delegate;
+
+		private PinningTrustManager(X509ExtendedTrustManager delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+			delegate.checkServerTrusted(chain, authType, socket);
+			checkPins(chain, socket instanceof SSLSocket ? ((SSLSocket) socket).getHandshakeSession().getPeerHost() : null);
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+			delegate.checkServerTrusted(chain, authType, engine);
+			checkPins(chain, engine != null ? engine.getPeerHost() : null);
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			delegate.checkServerTrusted(chain, authType);
+		}
+
+		private void checkPins(X509Certificate[] chain, String host) throws CertificateException {
+			if (host == null)
+				return;
+			Set<String> pins = Config.current().getTlsPins(host);
+			if (pins.isEmpty())
+				return;
+			try {
+				MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+				for (X509Certificate certificate : chain)
+					if (pins.contains(Base64.getEncoder().encodeToString(sha256.digest(certificate.getPublicKey().getEncoded()))))
+						return;
+			} catch (GeneralSecurityException e) {
+				throw new CertificateException(e);
+			}
+			throw new CertificateException("No pinned key in the certificates of " + host);
+		}
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+			delegate.checkClientTrusted(chain, authType, socket);
+		}
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+			delegate.checkClientTrusted(chain, authType, engine);
+		}
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			delegate.checkClientTrusted(chain, authType);
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return delegate.getAcceptedIssuers();
+		}
+	}
+}
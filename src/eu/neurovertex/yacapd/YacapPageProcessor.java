@@ -1,14 +1,14 @@
 package eu.neurovertex.yacapd;
 
 import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 
 import java.net.URI;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Observable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.PreferenceChangeEvent;
 import java.util.prefs.PreferenceChangeListener;
@@ -17,148 +17,283 @@ import java.util.prefs.Preferences;
 
 /**
  * This class is the main thread of the application. It is in charge of keeping up with the current state of the session, detect change of state (disconnections) and act appropriately.
- * It is also an Observable object that will notify its observers on state change.
+ * Its changes of state are published on the {@link EventBus} as {@link StateChangeEvent}s.
  *
  * @author NeuroVertex
  *         Date: 12/09/13, 18:24
  */
-public class YacapPageProcessor extends Observable implements Runnable, PreferenceChangeListener {
-	private YacapState currentState = YacapState.UNINITIALIZED, nextState = null;
+public class YacapPageProcessor implements Runnable, PreferenceChangeListener, PageHandler {
+	private volatile YacapState currentState = YacapState.UNINITIALIZED, nextState = null;
 	private HTTPSDownloader downloader;
-	private boolean exit = false, reconnect = true;
-	private static final Preferences prefs = Preferences.userNodeForPackage(YacapPageProcessor.class);
-	private boolean loginCorrect = false;
+	private final LoginTokens tokens;
+	private final ConnectivityProbe probe = new ConnectivityProbe(this);
+	private volatile boolean exit = false, reconnect = true;
+	private static final Preferences settings = Preferences.userNodeForPackage(YacapPageProcessor.class);
+	private final Preferences prefs;
+	private final String name;
+	private volatile boolean loginCorrect = false;
+	private int retries = 0;
+	private volatile Runnable wakeup;
+	private long stateSince = System.nanoTime(), loginSince = 0; // For the metrics, see recordTransition
 	private static final Logger log = Logger.getLogger(YacapPageProcessor.class.getName());
 
-	private static final String YacapSessionCookie = "YaCaP_session_ID", b64url = "aHR0cDovL2dvb2dsZS5jb20=";
-
-	private static final HTTPRequest loginURL = new HTTPRequest("https://auth.univ-lorraine.fr/login?service=https://portail-crous.crous-nancy-metz.fr/authen-cas%3Furl%3DaHR0cDovL2dvb2dsZS5jb20%3D%26authen%3DAA%3A%3AAuthen-CAS-UL%3A%3AAuthz-LDAP-UL", new String[][]{{"Referer", "https://portail-crous.crous-nancy-metz.fr/?url=aHR0cDovL2dvb2dsZS5jb20="}}, new String[][]{}),
-			authURL = new HTTPRequest("https://auth.univ-lorraine.fr/login?service=https://portail-crous.crous-nancy-metz.fr/authen-cas%3Furl%3D%26authen%3DAA%3A%3AAuthen-CAS-UL%3A%3AAuthz-LDAP-UL", new String[][]{{"Origin", "https://portail-crous.crous-nancy-metz.fr"}, {"Referer", "https://portail-crous.crous-nancy-metz.fr/?url=" + b64url}}, new String[][]{{"submit", "LOGIN"}}),
-			logoutURL = new HTTPRequest("https://auth.univ-lorraine.fr/logout?service=https://portail-crous.crous-nancy-metz.fr/logout&gateway=1", new String[][]{}, new String[][]{{"submit", "logout"}}),
-			popupURL = new HTTPRequest("https://portail-crous.crous-nancy-metz.fr/popup");
+	/**
+	 * Base URLs of the CAS and of the captive portal, which can be replaced by those of a simulator with the "casUrl" and "portalUrl" settings
+	 */
+	public static final String DEFAULT_CAS_URL = "https://auth.univ-lorraine.fr", DEFAULT_PORTAL_URL = "https://portail-crous.crous-nancy-metz.fr";
 
+	// The requests are those of the profile, shared by all the sessions. A session only keeps the hidden fields of the login form until it posts them, along with the credentials read from the Preferences at that time
+	private final PortalProfile profile;
+	private volatile String[] form;
 
+	/**
+	 * Creates the processor for the single account whose credentials are stored directly in the package's Preferences node.
+	 */
 	public YacapPageProcessor() {
-		downloader = new HTTPSDownloader(this);
+		this("default", settings);
+	}
+
+	/**
+	 * Creates the processor for one account.
+	 *
+	 * @param name    name of the session, used in logs and to tell sessions apart
+	 * @param account Preferences node holding the username, password and saved session of the account
+	 */
+	public YacapPageProcessor(String name, Preferences account) {
+		this.name = name;
+		this.prefs = account;
+		Config config = Config.current();
+		profile = config.getProfile();
+		GlobalCookieHandler cookies = new GlobalCookieHandler(account);
+		downloader = new HTTPSDownloader(this, cookies);
+		tokens = new LoginTokens(cookies, config.getTokenTtl(), profile);
 		prefs.addPreferenceChangeListener(this);
-		if (!prefs.get("username", "").isEmpty() && !prefs.get("password", "").isEmpty()) {
+		if (!prefs.get("username", "").isEmpty() && !prefs.get("password", "").isEmpty())
 			loginCorrect = true;
-			authURL.data.put("username", prefs.get("username", ""));
-			authURL.data.put("password", prefs.get("password", ""));
-		}
 	}
 
+	/**
+	 * Runs the session on the calling thread until {@link #stop()}, for a session that isn't run by a {@link SessionEngine}. Returns once the session is terminated, the process exiting is up to the caller.
+	 */
 	@Override
 	public void run() {
 		log.setUseParentHandlers(true);
 		log.info("Processor started.");
-		int retries = 0;
 		while (!exit) {
-			log.info("Next iteration (CS = " + currentState.name() + ")");
-			int code;
-			int delay = prefs.getInt("delay", 5000), errordelay = prefs.getInt("errordelay", 1000);
-			switch (currentState) {
-				case UNINITIALIZED:
-					// Attempt to load a previously saved cookie
-					if (GlobalCookieHandler.getDefault().loadSession())
-						setCurrentState(YacapState.CONNECTED);
-					else
-						setCurrentState(YacapState.LOGIN);
-					break;
-				case LOGIN:
-					code = downloader.getUrl(loginURL, "login");
-					if (currentState == YacapState.LOGIN)
-						try {
-							Thread.sleep(errordelay + (1000 * retries++));
-						} catch (InterruptedException ignore) {
-							stop();
+			long wait = step();
+			try {
+				if (wait < 0)
+					synchronized (this) {
+						while (isParked() && !exit)
+							wait();
+					}
+				else if (wait > 0)
+					Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				stop();
+			}
+		}
+		terminate();
+	}
+
+	/**
+	 * Runs a single iteration of the state machine, blocking until its request (if any) is done.
+	 *
+	 * @return the delay in milliseconds before the next call, or -1 if the session is waiting for {@link #reconnect()} or new login information.
+	 * @see #stepAsync()
+	 */
+	public long step() {
+		return stepAsync().join();
+	}
+
+	/**
+	 * Runs a single iteration of the state machine. Unlike {@link #run()}, this never sleeps nor waits, it instead returns how long the caller should wait before the next iteration, which lets a {@link SessionEngine} drive many sessions with a few threads.
+	 * When the downloader uses the asynchronous transport, the returned future completes once the response has been processed, otherwise it is already completed when this method returns, unless the request has to be retried.
+	 *
+	 * @return the delay in milliseconds before the next call, or -1 if the session is waiting for {@link #reconnect()} or new login information.
+	 */
+	public CompletableFuture<Long> stepAsync() {
+		EventLog.getDefault().step(name, currentState);
+		Config config = Config.current();
+		final int delay = config.getDelay(), errordelay = config.getErrorDelay();
+		CompletableFuture<Long> result;
+		long wait = 0;
+		switch (currentState) {
+			case UNINITIALIZED:
+				// Attempt to load a previously saved cookie, and check that the portal still knows it before going on as connected. The sessions started together are all checked at once
+				if (downloader.getCookieHandler().loadSession()) {
+					final PopupCheck check = new PopupCheck();
+					result = downloader.getUrlAsync(profile.getPopup(), "popup", check).thenApply(new Function<Integer, Long>() {
+						@Override
+						public Long apply(Integer code) {
+							if (code == 200 && check.connected) {
+								log.info("Restored the saved session of " + name);
+								setCurrentState(YacapState.CONNECTED);
+							} else {
+								log.info("The saved session of " + name + " has expired");
+								downloader.getCookieHandler().forgetSession();
+								clearCookies();
+								setCurrentState(YacapState.LOGIN);
+							}
+							return 0L;
 						}
-					else
-						retries = 0;
-					if (code != 200)
-						clearCookies();
-					break;
-				case AUTH:
-					if (authURL.data.containsKey("lt") && authURL.data.containsKey("execution") && authURL.data.containsKey("_eventId")) {
-						code = downloader.postUrl(authURL, "auth");
-						if (code != 200)
-							setCurrentState(YacapState.LOGIN);
-						URI uri = URI.create(popupURL.getUrl());
-						if (currentState == YacapState.CONNECTED) {
-							GlobalCookieHandler.getDefault().setSessionCookie(uri.getHost(), YacapSessionCookie);
-							GlobalCookieHandler.getDefault().save();
+					});
+				} else {
+					setCurrentState(YacapState.LOGIN);
+					result = CompletableFuture.completedFuture(0L);
+				}
+				break;
+			case LOGIN:
+				result = downloader.getUrlAsync(profile.getLogin(), "login").thenApply(new Function<Integer, Long>() {
+					@Override
+					public Long apply(Integer code) {
+						long w = 0;
+						if (currentState == YacapState.LOGIN)
+							w = errordelay + (1000 * retries++);
+						else
 							retries = 0;
-						} else if (currentState == YacapState.AUTH) {
-							try {
-								Thread.sleep(errordelay + 1000 * retries++);
-							} catch (InterruptedException e) {
-								stop();
+						if (currentState == YacapState.CONNECTED) // Logged in again by the CAS with its ticket-granting cookie
+							saveSession();
+						if (code != 200)
+							clearCookies();
+						return w;
+					}
+				});
+				break;
+			case AUTH:
+				String[] fields = form;
+				if (fields != null) {
+					result = downloader.postUrlAsync(profile.getAuth(fields, prefs.get("username", ""), prefs.get("password", "")), "auth").thenApply(new Function<Integer, Long>() {
+						@Override
+						public Long apply(Integer code) {
+							long w = 0;
+							if (code != 200)
+								setCurrentState(YacapState.LOGIN);
+							if (currentState == YacapState.CONNECTED) {
+								form = null; // The login ticket is used up
+								saveSession();
+								retries = 0;
+							} else if (currentState == YacapState.AUTH) {
+								w = errordelay + 1000 * retries++;
 							}
+							return w;
 						}
-					} else
-						setCurrentState(YacapState.LOGIN);
-					break;
-				case BADLOGIN:
-					System.out.println("Erroneous login information. Please re-enter your login and password.");
-					while (!loginCorrect)
-						synchronized (this) {
-							try {
-								wait();
-							} catch (InterruptedException e) {
-								stop();
+					});
+				} else {
+					setCurrentState(YacapState.LOGIN);
+					result = CompletableFuture.completedFuture(0L);
+				}
+				break;
+			case BADLOGIN:
+				if (!loginCorrect) {
+					log.warning("Erroneous login information for " + name + ". Please re-enter your login and password.");
+					wait = -1;
+				} else { // The login information was changed or a reconnection asked for, starting over with a new CAS session
+					clearCookies();
+					setCurrentState(YacapState.LOGIN);
+				}
+				result = CompletableFuture.completedFuture(wait);
+				break;
+			case CONNECTED:
+				if (probe.needsRefresh())
+					result = downloader.getUrlAsync(profile.getPopup(), "popup").thenCompose(new Function<Integer, CompletionStage<Long>>() {
+						@Override
+						public CompletionStage<Long> apply(Integer code) {
+							if (currentState == YacapState.CONNECTED && code == 200) {
+								probe.refreshed();
+								Metrics.getDefault().refreshed(name);
+								return stillConnected(delay);
 							}
+							if (code != 200)
+								reauthenticate();
+							return CompletableFuture.completedFuture(0L);
 						}
-					break;
-				case CONNECTED:
-					code = downloader.getUrl(popupURL, "popup");
-					if (currentState == YacapState.CONNECTED && code == 200) {
-						log.info("Popup refreshed.");
-						try {
-							Thread.sleep(delay);
-						} catch (InterruptedException e) {
-							stop();
+					});
+				else // Cheaper check, the popup being downloaded right away if it looks suspicious
+					result = probe.probe(downloader, profile.getPopup()).thenCompose(new Function<Boolean, CompletionStage<Long>>() {
+						@Override
+						public CompletionStage<Long> apply(Boolean ok) {
+							return ok && currentState == YacapState.CONNECTED ? stillConnected(delay) : CompletableFuture.completedFuture(0L);
 						}
+					});
+				break;
+			case LOGOUT:
+				result = downloader.postUrlAsync(profile.getLogout(), "logout").thenApply(new Function<Integer, Long>() {
+					@Override
+					public Long apply(Integer code) {
+						clearCookies();
+						if (reconnect)
+							setCurrentState(YacapState.LOGIN);
+						else
+							setCurrentState(YacapState.WAIT);
+						return (long) errordelay;
 					}
-					if (code != 200)
-						setCurrentState(YacapState.LOGIN);
-					break;
-				case LOGOUT:
-					downloader.postUrl(logoutURL, "logout");
-					clearCookies();
-					try {
-						Thread.sleep(errordelay);
-					} catch (InterruptedException e) {
-						stop();
-					}
-					if (reconnect)
-						setCurrentState(YacapState.LOGIN);
-					else
-						setCurrentState(YacapState.WAIT);
-					break;
-				case WAIT:
-					synchronized (this) {
-						while (!reconnect && !exit)
-							try {
-								wait();
-							} catch (InterruptedException e) {
-								stop();
-							}
-						setCurrentState(YacapState.LOGIN);
-					}
-					break;
-			}
-			if (nextState != null) {
-				setCurrentState(nextState);
-				nextState = null;
-			}
+				});
+				break;
+			case WAIT:
+				if (!reconnect && !exit)
+					wait = -1;
+				else
+					setCurrentState(YacapState.LOGIN);
+				result = CompletableFuture.completedFuture(wait);
+				break;
+			default:
+				result = CompletableFuture.completedFuture(-1L);
 		}
-		log.info("Exiting YacapProcessor thread");
+		return result.thenApply(new Function<Long, Long>() {
+			@Override
+			public Long apply(Long w) {
+				if (nextState != null) {
+					setCurrentState(nextState);
+					nextState = null;
+					return 0L;
+				}
+				return w;
+			}
+		});
+	}
+
+	/**
+	 * @return true if the session can't make any progress until {@link #reconnect()} is called or the login information is changed
+	 */
+	private boolean isParked() {
+		return nextState == null && ((currentState == YacapState.BADLOGIN && !loginCorrect) || (currentState == YacapState.WAIT && !reconnect));
+	}
+
+	/**
+	 * Notifies the observers that the session is over. Called once the exit flag has been set and the last iteration returned.
+	 */
+	void terminate() {
+		log.info("Exiting YacapProcessor (" + name + ")");
 		setCurrentState(YacapState.EXIT);
-		System.exit(0);
+	}
+
+	/**
+	 * Sets the callback used to wake the session up when it has something to do before its next scheduled iteration.
+	 */
+	void setWakeup(Runnable wakeup) {
+		this.wakeup = wakeup;
+	}
+
+	private void wake() {
+		synchronized (this) {
+			notifyAll();
+		}
+		Runnable w = wakeup;
+		if (w != null)
+			w.run();
 	}
 
 	private void clearCookies() {
-		GlobalCookieHandler.getDefault().clearCookies();
+		downloader.getCookieHandler().clearCookies();
+	}
+
+	/**
+	 * Saves the cookie of the portal session, once connected, so that it can be reused on the next run.
+	 */
+	private void saveSession() {
+		downloader.getCookieHandler().setSessionCookie(URI.create(profile.getPopup().getUrl()).getHost(), profile.getSessionCookie());
+		downloader.getCookieHandler().save();
 	}
 
 
@@ -172,111 +307,189 @@ public class YacapPageProcessor extends Observable implements Runnable, Preferen
 	}
 
 	/**
-	 * Logs out then logs back in
+	 * Logs out then logs back in. The request in progress, if any, is aborted.
 	 *
 	 * @see eu.neurovertex.yacapd.YacapPageProcessor#logout()
 	 */
 	public void reconnect() {
 		reconnect = true;
 		loginCorrect = true;
-		if (currentState == YacapState.WAIT || currentState == YacapState.BADLOGIN)
-			synchronized (this) {
-				notifyAll();
-			}
-		else
+		if (currentState != YacapState.WAIT && currentState != YacapState.BADLOGIN) {
 			this.nextState = YacapState.LOGOUT;
+			downloader.cancel();
+		}
+		wake();
 	}
 
 	/**
-	 * Logs out then wait indefinitely for user input.
+	 * Logs out then wait indefinitely for user input. The request in progress, if any, is aborted.
 	 *
 	 * @see YacapPageProcessor#reconnect()
 	 */
 	public void logout() {
 		this.reconnect = true;
 		this.nextState = YacapState.LOGOUT;
+		downloader.cancel();
+		wake();
 	}
 
 	/**
-	 * This method analyses the document downloaded by the HTTPSDownloader and change the current execution state accordingly.
+	 * Makes the session check its connection right away rather than at its next scheduled step, used when the network changed. A connected session refreshes its popup and logs back in if that fails, one retrying a login does so immediately. Sessions waiting for user input are left alone.
+	 */
+	public void checkConnection() {
+		YacapState state = currentState;
+		if (!exit && state != YacapState.WAIT && state != YacapState.BADLOGIN && state != YacapState.EXIT)
+			wake();
+	}
+
+	/**
+	 * This method analyses the document downloaded by the HTTPSDownloader and change the current execution state accordingly, following the rules of the {@link PortalProfile}.
 	 *
 	 * @param doc the {@link Document} returned by the last HTTP request
 	 */
+	@Override
 	public void processDocument(Document doc) {
-		Elements els;
-		Element el;
-		switch (currentState) {
-			case LOGIN:
-				Element form;
-				els = doc.getElementsByTag("form");
-				if (els.size() == 1)
-					form = els.get(0);
-				else
-					form = doc.getElementById("fm1");
-				els = form.getElementsByTag("input");
-				int cnt = 0;
-				for (Element e : els) {
-					if (e.attr("name").equalsIgnoreCase("lt") || e.attr("name").equalsIgnoreCase("execution") || e.attr("name").equalsIgnoreCase("_eventId")) {
-						System.out.println("authURL.put(\"" + e.attr("name") + "\", \"" + e.attr("value") + "\");");
-						authURL.data.put(e.attr("name"), e.attr("value"));
-						cnt++;
-					}
-				}
-				if (cnt == 3)
-					setCurrentState(YacapState.AUTH);
-				else
-					setCurrentState(YacapState.LOGOUT);
-				break;
+		process(profile.extract(doc));
+	}
+
+	/**
+	 * Tells the downloader whether the next page has to be parsed to a {@link Document}. Only the pages of the states whose rules read more than the attributes of the body tag need one, the popup is checked by {@link #processBodyTag(BodyTagMatcher)} while it is streamed.
+	 *
+	 * @return false if the current state only needs the attributes of the body tag
+	 */
+	@Override
+	public boolean needsDocument() {
+		return !profile.isStreamable(currentState);
+	}
+
+	/**
+	 * Equivalent of {@link #processDocument(Document)} for the states that don't need a full document.
+	 *
+	 * @param body the matcher the page was fed to
+	 * @see #needsDocument()
+	 */
+	@Override
+	public void processBodyTag(BodyTagMatcher body) {
+		process(profile.extract(body));
+	}
+
+	private void process(PortalProfile.Page page) {
+		YacapState state = currentState;
+		if (state == YacapState.LOGOUT) {
+			if (reconnect)
+				setCurrentState(YacapState.AUTH);
+			else
+				stop();
+			return;
+		}
+		PortalProfile.Rule rule = profile.match(state, page, prefs.get("username", ""));
+		if (rule == null)
+			return;
+		switch (rule.getOutcome()) {
 			case AUTH:
-				if ((el = doc.getElementById("status")) != null && el.className().equalsIgnoreCase("errors")) {
-					if (el.text().contains("LT-")) {
-						clearCookies();
-						setCurrentState(YacapState.LOGIN);
-					} else {
-						loginCorrect = false;
-						setCurrentState(YacapState.BADLOGIN);
-						System.out.println("Status got : " + el.text());
-					}
-				} else if (doc.title().toLowerCase().contains("yacap")) {
-					System.err.println("Authentication fucking successful");
-					setCurrentState(YacapState.CONNECTED);
-				} else {
-					Elements bs = doc.getElementsByTag("b");
-					for (Element b : bs) {
-						if (b.text().toLowerCase().contains(prefs.get("username", null).toLowerCase())) { // If CaS displays your username it probably about your account already being logged in somewhere else
-							setCurrentState(YacapState.LOGOUT);
-						}
-					}
+				String[] fields = page.getForm();
+				if (fields != null) {
+					if (log.isLoggable(Level.FINE))
+						log.fine("Got the login form fields " + profile.getFormFields());
+					form = fields;
 				}
+				setCurrentState(YacapState.AUTH);
+				break;
+			case LOGIN:
+				clearCookies();
+				setCurrentState(YacapState.LOGIN);
+				break;
+			case BADLOGIN:
+				loginCorrect = false;
+				setCurrentState(YacapState.BADLOGIN);
+				log.info("Login refused for " + name + " : " + (rule.getField() != null ? page.get(rule.getField()) : ""));
 				break;
 			case CONNECTED:
-				if (!"#86A3D4".equalsIgnoreCase(doc.body().attr("bgcolor"))) { // Background colour of the popup while connected
-					setCurrentState(YacapState.LOGIN);
-				}
+				if (state != YacapState.CONNECTED)
+					setCurrentState(YacapState.CONNECTED);
 				break;
 			case LOGOUT:
-				if (reconnect)
-					setCurrentState(YacapState.AUTH);
-				else
-					stop();
+				setCurrentState(YacapState.LOGOUT);
+				break;
+			case REAUTH:
+				reauthenticate();
 				break;
 		}
 	}
 
 	/**
-	 * Sets the exit flag so that the thread exits its loop. Note that it won't exit immediately, especially if the HTTPSDownloader is currently waiting on a request.
+	 * Prepares the next reconnection while there is nothing else to do : the login form is fetched if the {@link LoginTokens} need it, and the TLS session with the authentication host is kept fresh.
+	 *
+	 * @return a future completed with the given delay once that is done
+	 */
+	private CompletableFuture<Long> stillConnected(final long delay) {
+		TlsContext.getDefault().prewarm(profile.getLogin().getUrl());
+		if (tokens.needsRefresh())
+			return tokens.prefetch(downloader, profile.getLogin()).thenApply(new Function<Boolean, Long>() {
+				@Override
+				public Long apply(Boolean found) {
+					return delay;
+				}
+			});
+		return CompletableFuture.completedFuture(delay);
+	}
+
+	/**
+	 * Called when the session is found disconnected. If login tokens were prefetched, the form is skipped and the credentials are posted right away, a login ticket error sending the session back to {@link YacapState#LOGIN}.
+	 */
+	private void reauthenticate() {
+		String[] fields = tokens.take();
+		if (fields != null) {
+			log.info("Disconnected, authenticating with prefetched login tokens");
+			form = fields;
+			setCurrentState(YacapState.AUTH);
+		} else
+			setCurrentState(YacapState.LOGIN);
+	}
+
+	/**
+	 * Sets the exit flag so that the thread exits its loop. The request in progress, if any, is aborted and the step waiting on it returns right away.
 	 */
-	public synchronized void stop() {
+	public void stop() {
 		exit = true;
-		downloader.stop(); // Notify the downloader that it should stop whenever the current request returns regardless of the result.
-		notifyAll(); // in case of WAIT
+		downloader.stop();
+		wake(); // in case of WAIT
 	}
 
-	private void setCurrentState(YacapState state) {
-		if (state != currentState)
-			setChanged();
+	/**
+	 * @return true once {@link #stop()} has been called
+	 */
+	public boolean isStopped() {
+		return exit;
+	}
+
+	/**
+	 * Changes the state of the session and publishes the change. Package-private so that the benchmarks can put a processor in the state they measure.
+	 */
+	void setCurrentState(YacapState state) {
+		YacapState previous = currentState;
 		this.currentState = state;
-		notifyObservers(state);
+		if (state != previous) {
+			recordTransition(previous, state);
+			EventLog.getDefault().state(name, previous, state);
+			EventBus.getDefault().publish(new StateChangeEvent(this, previous, state));
+		}
+	}
+
+	private synchronized void recordTransition(YacapState from, YacapState to) {
+		long now = System.nanoTime();
+		Metrics metrics = Metrics.getDefault();
+		metrics.stateChanged(from, to, now - stateSince);
+		stateSince = now;
+		if ((to == YacapState.LOGIN || to == YacapState.AUTH) && loginSince == 0)
+			loginSince = now;
+		else if (to == YacapState.CONNECTED && loginSince != 0) {
+			metrics.reconnected(now - loginSince);
+			loginSince = 0;
+		} else if (to == YacapState.BADLOGIN || to == YacapState.WAIT)
+			loginSince = 0;
+		else if (to == YacapState.EXIT)
+			metrics.removeSession(name);
 	}
 
 	/**
@@ -289,12 +502,8 @@ public class YacapPageProcessor extends Observable implements Runnable, Preferen
 	@Override
 	public void preferenceChange(PreferenceChangeEvent evt) {
 		if (evt.getKey().equals("username") || evt.getKey().equals("password")) {
-			synchronized (this) {
-				authURL.data.put("username", prefs.get("username", ""));
-				authURL.data.put("password", prefs.get("password", ""));
-				loginCorrect = true;
-				notifyAll();
-			}
+			loginCorrect = true;
+			wake();
 		}
 	}
 
@@ -302,6 +511,40 @@ public class YacapPageProcessor extends Observable implements Runnable, Preferen
 		return downloader;
 	}
 
+	/**
+	 * @return the name of the session, "default" for the single account stored in the package's Preferences node
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Checks the popup without touching the state of the session, used to validate a restored session before it is considered connected.
+	 */
+	private final class PopupCheck implements PageHandler {
+		private volatile boolean connected = false;
+
+		@Override
+		public boolean needsDocument() {
+			return !profile.isStreamable(YacapState.CONNECTED);
+		}
+
+		@Override
+		public void processDocument(Document doc) {
+			check(profile.extract(doc));
+		}
+
+		@Override
+		public void processBodyTag(BodyTagMatcher body) {
+			check(profile.extract(body));
+		}
+
+		private void check(PortalProfile.Page page) {
+			PortalProfile.Rule rule = profile.match(YacapState.CONNECTED, page, prefs.get("username", ""));
+			connected = rule != null && rule.getOutcome() == PortalProfile.Outcome.CONNECTED;
+		}
+	}
+
 	public enum YacapState {
 		UNINITIALIZED,
 		/**
@@ -329,30 +572,22 @@ public class YacapPageProcessor extends Observable implements Runnable, Preferen
 		 */
 		WAIT,
 		/**
-		 * This is a special state that is only set when the thread is about to exit, so that Observers get notified
+		 * This is a special state that is only set when the thread is about to exit, so that subscribers get notified
 		 */
 		EXIT
 	}
 
 	/**
-	 * Reperesents a HTTP request, including the target URL, the parameters (request headers) to set, and the POST data to add.
+	 * Reperesents a HTTP request, including the target URL, the parameters (request headers) to set, and the POST data to add. Requests can't be modified, those of a {@link PortalProfile} being shared by all its sessions.
 	 */
 	protected static class HTTPRequest {
-		private String url;
-		private Map<String, String> parameters = new HashMap<>(), data = new HashMap<>();
-
-		private HTTPRequest(String url) {
-			this(url, new String[0][0], new String[0][0]);
-		}
+		private final String url;
+		private final Map<String, String> parameters, data;
 
-		private HTTPRequest(String url, String[][] parameters, String[][] data) {
+		HTTPRequest(String url, Map<String, String> parameters, Map<String, String> data) {
 			this.url = url;
-			for (String[] str : parameters) {
-				this.parameters.put(str[0], str[1]);
-			}
-			for (String[] str : data) {
-				this.data.put(str[0], str[1]);
-			}
+			this.parameters = Collections.unmodifiableMap(parameters);
+			this.data = Collections.unmodifiableMap(data);
 		}
 
 		public String getUrl() {
@@ -360,11 +595,11 @@ public class YacapPageProcessor extends Observable implements Runnable, Preferen
 		}
 
 		public Map<String, String> getParameters() {
-			return Collections.unmodifiableMap(parameters);
+			return parameters;
 		}
 
 		public Map<String, String> getData() {
-			return Collections.unmodifiableMap(data);
+			return data;
 		}
 	}
 
@@ -1,6 +1,8 @@
 package eu.neurovertex.yacapd.gui;
 
-import eu.neurovertex.yacapd.HTTPSDownloader;
+import eu.neurovertex.yacapd.EventBus;
+import eu.neurovertex.yacapd.RequestEvent;
+import eu.neurovertex.yacapd.StateChangeEvent;
 import eu.neurovertex.yacapd.YacapPageProcessor;
 import eu.neurovertex.yacapd.YacapPageProcessor.YacapState;
 
@@ -10,19 +12,26 @@ import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * System tray icon showing the state of a session. The events of the session are received on the AWT event thread, a slow tray never holds the session back.
+ *
  * @author NeuroVertex
  *         Date: 07/10/13, 13:02
  */
-public class Gui implements ActionListener, Observer {
+public class Gui implements ActionListener {
 	private static final Map<YacapState, Image> stateIcons = new HashMap<>();
 	private static final int iconWidth, iconHeight;
 	private static final Logger log = Logger.getLogger(Gui.class.getName());
+	private static final Executor EVENT_QUEUE = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			EventQueue.invokeLater(command);
+		}
+	};
 
 	static {
 		Color transparency = new Color(0, 0, 0, 0);
@@ -82,15 +91,14 @@ public class Gui implements ActionListener, Observer {
 	}
 
 	private YacapPageProcessor processor;
-	private HTTPSDownloader downloader;
 	private YacapState lastState;
-	private HTTPSDownloader.DownloaderStatus lastNetworkState;
+	private EventBus.Subscription<StateChangeEvent> states;
+	private EventBus.Subscription<RequestEvent> requests;
 	private TrayIcon icon;
 	private MenuItem settingsMI, reconnectMI, logoutMI, exitMI;
 
 	public Gui(YacapPageProcessor processor) {
 		this.processor = processor;
-		this.downloader = processor.getDownloader();
 		icon = new TrayIcon(stateIcons.get(YacapState.UNINITIALIZED));
 		icon.setToolTip("YaCaP daemon");
 
@@ -110,15 +118,28 @@ public class Gui implements ActionListener, Observer {
 			log.log(Level.SEVERE, "Can't add icon to system tray.", e); // TODO add --nogui and/or --notray
 			System.exit(-1);
 		}
-		processor.addObserver(this);
-		downloader.addObserver(this);
+		// Only the latest state matters to the icon, older ones can be skipped if the event thread lags behind
+		states = EventBus.getDefault().subscribe(StateChangeEvent.class, new EventBus.Listener<StateChangeEvent>() {
+			@Override
+			public void onEvent(StateChangeEvent event) {
+				if (event.getSession() == Gui.this.processor)
+					update(event.getState());
+			}
+		}, EVENT_QUEUE, 4, EventBus.Overflow.COALESCE_LATEST);
+		requests = EventBus.getDefault().subscribe(RequestEvent.class, new EventBus.Listener<RequestEvent>() {
+			@Override
+			public void onEvent(RequestEvent event) {
+				if (event.getSession() == Gui.this.processor && log.isLoggable(Level.FINE))
+					log.fine(event.toString());
+			}
+		}, EVENT_QUEUE, 64, EventBus.Overflow.DROP);
 	}
 
 	@Override
 	public void actionPerformed(ActionEvent e) {
-		System.out.println("Action received : " + e.getActionCommand());
+		log.fine("Action received : " + e.getActionCommand());
 		if (e.getActionCommand().equals(settingsMI.getActionCommand())) {
-			System.err.println("Settings not implemented yet."); // TODO implement settings GUI
+			log.warning("Settings not implemented yet."); // TODO implement settings GUI
 		} else if (e.getActionCommand().equals(reconnectMI.getActionCommand())) {
 			processor.reconnect();
 		} else if (e.getActionCommand().equals(logoutMI.getActionCommand())) {
@@ -130,33 +151,30 @@ public class Gui implements ActionListener, Observer {
 		}
 	}
 
-	@Override
-	public void update(Observable o, Object arg) {
-		if (o == processor && arg instanceof YacapState) {
-			if (arg == YacapState.EXIT) {
-				SystemTray.getSystemTray().remove(icon);
-			}
-			lastState = (YacapState) arg;
-			icon.setImage(stateIcons.get(lastState));
-
-			boolean reco = true, logout = true;
-			switch (lastState) {
-				case UNINITIALIZED:
-					logout = reco = false;
-					break;
-				case WAIT:
-					logout = false;
-					break;
-				case LOGOUT:
-				case LOGIN:
-				case AUTH:
-					reco = false;
-					break;
-			}
-			reconnectMI.setEnabled(reco);
-			logoutMI.setEnabled(logout);
-		} else if (o == downloader && arg instanceof HTTPSDownloader.DownloaderStatus) {
-			System.out.println(arg);
+	private void update(YacapState state) {
+		if (state == YacapState.EXIT) {
+			SystemTray.getSystemTray().remove(icon);
+			states.cancel();
+			requests.cancel();
+		}
+		lastState = state;
+		icon.setImage(stateIcons.get(lastState));
+
+		boolean reco = true, logout = true;
+		switch (lastState) {
+			case UNINITIALIZED:
+				logout = reco = false;
+				break;
+			case WAIT:
+				logout = false;
+				break;
+			case LOGOUT:
+			case LOGIN:
+			case AUTH:
+				reco = false;
+				break;
 		}
+		reconnectMI.setEnabled(reco);
+		logoutMI.setEnabled(logout);
 	}
 }
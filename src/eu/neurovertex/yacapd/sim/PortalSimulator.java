@@ -0,0 +1,603 @@
+package eu.neurovertex.yacapd.sim;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local HTTPS stand-in for the CAS of the Universite de Lorraine and the YaCaP portal of the CROUS, reproducing what {@link eu.neurovertex.yacapd.YacapPageProcessor} relies on, so that the daemon can be tested and loaded without the real servers.
+ * <p/>
+ * Both are served by the same server, the CAS under "/cas" and the portal under "/portal" : the daemon is pointed at them with the "casUrl" and "portalUrl" settings, and trusts the simulator's self-signed certificate with "tlsTrustStore", all given by {@link #getDaemonArguments()}.
+ * <ul>
+ * <li>GET /cas/login : the "fm1" form, with a single-use login ticket ("lt"), "execution" and "_eventId". A client sending a valid "CASTGC" ticket-granting cookie is instead logged in again without its credentials, and redirected to the service with a service ticket</li>
+ * <li>POST /cas/login : a "status" error naming the login ticket if it is unknown or already used, another one for wrong credentials, the "already logged in" page if the account has a live portal session that isn't the client's, and otherwise a redirect to the portal with a service ticket</li>
+ * <li>GET /portal/authen-cas : validates the service ticket, sets the "YaCaP_session_ID" cookie and redirects twice to the page confirming the connection, titled "YaCaP"</li>
+ * <li>GET or HEAD /portal/popup : the popup with its "#86A3D4" background while the session is alive, a white one afterwards. Answers 304 to a matching If-None-Match</li>
+ * <li>POST /cas/logout : ends the CAS and portal sessions of the account, invalidates its ticket-granting cookie and redirects to /portal/logout</li>
+ * </ul>
+ * The latency of the answers, the proportion of requests failing with a 503 or a dropped connection, and the lifetime of the portal sessions (from their start, and since the last popup) can be changed while it runs.
+ * Accounts have to be added with {@link #addAccount(String, String)}, other credentials being refused.
+ *
+ * @author NeuroVertex
+ */
+public class PortalSimulator implements HttpHandler {
+	private static final Logger log = Logger.getLogger(PortalSimulator.class.getName());
+	public static final String SESSION_COOKIE = "YaCaP_session_ID", CONNECTED_COLOR = "#86A3D4";
+	private static final String CAS = "/cas", PORTAL = "/portal", PASSWORD = "changeit";
+	private static final String CAS_HEAD = "<!DOCTYPE html>\n<html lang=\"fr\">\n<head>\n<title>Service d'Authentification Centralis&eacute;e de l'Universit&eacute; de Lorraine</title>\n<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\" />\n</head>\n<body id=\"cas\">\n<div id=\"content\">\n";
+
+	private final HttpsServer server;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService delayer;
+	private final Path keystore;
+	private final SecureRandom random = new SecureRandom();
+	private final Map<String, String> accounts = new ConcurrentHashMap<>();
+	private final Map<String, CasSession> casSessions = new ConcurrentHashMap<>(); // By JSESSIONID
+	private final Map<String, String> serviceTickets = new ConcurrentHashMap<>(); // Service ticket to username
+	private final Map<String, String> grantingTickets = new ConcurrentHashMap<>(); // CASTGC to username
+	private final Map<String, PortalSession> portalSessions = new ConcurrentHashMap<>(); // By YaCaP_session_ID
+	private final Map<String, String> activeSessions = new ConcurrentHashMap<>(); // Username to YaCaP_session_ID
+	private final AtomicLong requests = new AtomicLong(), logins = new AtomicLong(), badLogins = new AtomicLong(), ticketErrors = new AtomicLong(),
+			alreadyLoggedIn = new AtomicLong(), singleSignOns = new AtomicLong(), popups = new AtomicLong(), expired = new AtomicLong(), logouts = new AtomicLong(), failures = new AtomicLong(), counter = new AtomicLong();
+	private volatile long minLatency = 0, maxLatency = 0, sessionMaxAge = 0, idleTimeout = 0;
+	private volatile double errorRate = 0, resetRate = 0;
+
+	/**
+	 * Generates a self-signed certificate for localhost with keytool and starts serving on the loopback interface.
+	 *
+	 * @param port port to listen on, 0 for any free one
+	 */
+	public PortalSimulator(int port) throws IOException, GeneralSecurityException, InterruptedException {
+		keystore = Files.createTempDirectory("yacapd-sim").resolve("sim.p12");
+		Process keytool = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool", "-genkeypair", "-alias", "sim",
+				"-keyalg", "EC", "-groupname", "secp256r1", "-validity", "30", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+				"-storetype", "PKCS12", "-keystore", keystore.toString(), "-storepass", PASSWORD, "-keypass", PASSWORD)
+				.redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+		if (keytool.waitFor() != 0)
+			throw new IOException("keytool failed to generate the simulator's certificate");
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		try (InputStream in = Files.newInputStream(keystore)) {
+			ks.load(in, PASSWORD.toCharArray());
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(ks, PASSWORD.toCharArray());
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(kmf.getKeyManagers(), null, null);
+
+		executor = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()), daemon("yacap-sim"));
+		delayer = Executors.newSingleThreadScheduledExecutor(daemon("yacap-sim-latency"));
+		server = HttpsServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+		server.setHttpsConfigurator(new HttpsConfigurator(context));
+		server.createContext("/", this);
+		server.setExecutor(executor);
+		server.start();
+		log.info("Portal simulator listening on port " + getPort());
+	}
+
+	private static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public String getCasUrl() {
+		return "https://localhost:" + getPort() + CAS;
+	}
+
+	public String getPortalUrl() {
+		return "https://localhost:" + getPort() + PORTAL;
+	}
+
+	/**
+	 * @return the PKCS12 trust store holding the simulator's certificate, whose password is {@link #getTrustStorePassword()}
+	 */
+	public Path getTrustStore() {
+		return keystore;
+	}
+
+	public String getTrustStorePassword() {
+		return PASSWORD;
+	}
+
+	/**
+	 * @return the settings pointing the daemon at the simulator, as command-line arguments for {@link eu.neurovertex.yacapd.Config#load(String[])}
+	 */
+	public String[] getDaemonArguments() {
+		return new String[]{"--casUrl=" + getCasUrl(), "--portalUrl=" + getPortalUrl(), "--tlsTrustStore=" + keystore, "--tlsTrustStorePassword=" + PASSWORD};
+	}
+
+	public void addAccount(String username, String password) {
+		accounts.put(username, password);
+	}
+
+	/**
+	 * Sets the time taken to answer each request, drawn uniformly between the bounds. Requests don't hold a thread while they wait.
+	 */
+	public void setLatency(long min, long max) {
+		minLatency = min;
+		maxLatency = Math.max(min, max);
+	}
+
+	/**
+	 * @param errorRate proportion of the requests answered with a 503
+	 * @param resetRate proportion of the requests whose connection is closed without an answer
+	 */
+	public void setErrorRates(double errorRate, double resetRate) {
+		this.errorRate = errorRate;
+		this.resetRate = resetRate;
+	}
+
+	/**
+	 * @param maxAge      time in milliseconds after which a portal session expires, 0 for never
+	 * @param idleTimeout time in milliseconds without downloading the popup after which a portal session expires, 0 for never
+	 */
+	public void setSessionExpiry(long maxAge, long idleTimeout) {
+		this.sessionMaxAge = maxAge;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Ends all the portal sessions at once, as when the portal restarts.
+	 *
+	 * @return the number of sessions ended
+	 */
+	public int expireSessions() {
+		int n = portalSessions.size();
+		portalSessions.clear();
+		activeSessions.clear();
+		expired.addAndGet(n);
+		return n;
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of successful authentications
+	 */
+	public long getLogins() {
+		return logins.get();
+	}
+
+	public long getBadLogins() {
+		return badLogins.get();
+	}
+
+	/**
+	 * @return the number of authentications refused because of an unknown or used login ticket
+	 */
+	public long getTicketErrors() {
+		return ticketErrors.get();
+	}
+
+	public long getAlreadyLoggedIn() {
+		return alreadyLoggedIn.get();
+	}
+
+	/**
+	 * @return the number of clients logged in again with their ticket-granting cookie
+	 */
+	public long getSingleSignOns() {
+		return singleSignOns.get();
+	}
+
+	/**
+	 * @return the number of popups served to live sessions
+	 */
+	public long getPopups() {
+		return popups.get();
+	}
+
+	public long getExpired() {
+		return expired.get();
+	}
+
+	public long getLogouts() {
+		return logouts.get();
+	}
+
+	/**
+	 * @return the number of requests answered with an injected error or dropped
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	public int getActiveSessions() {
+		return portalSessions.size();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+		delayer.shutdownNow();
+		try {
+			Files.deleteIfExists(keystore);
+			Files.deleteIfExists(keystore.getParent());
+		} catch (IOException e) {
+			log.log(Level.FINE, "Couldn't remove the simulator's keystore", e);
+		}
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		Response response;
+		try (InputStream in = exchange.getRequestBody()) {
+			byte[] body = in.readAllBytes();
+			double dice = ThreadLocalRandom.current().nextDouble();
+			if (dice < resetRate) {
+				failures.incrementAndGet();
+				response = null;
+			} else if (dice < resetRate + errorRate) {
+				failures.incrementAndGet();
+				response = new Response(503, "<html><body>Service indisponible</body></html>");
+			} else
+				response = route(exchange, new String(body, StandardCharsets.UTF_8));
+		} catch (RuntimeException e) {
+			log.log(Level.WARNING, "Simulator failed on " + exchange.getRequestURI(), e);
+			response = new Response(500, "<html><body>Erreur interne</body></html>");
+		}
+		long min = minLatency, max = maxLatency;
+		long latency = max > min ? ThreadLocalRandom.current().nextLong(min, max + 1) : min;
+		final Response r = response;
+		if (latency <= 0)
+			send(exchange, r);
+		else
+			delayer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					send(exchange, r);
+				}
+			}, latency, TimeUnit.MILLISECONDS);
+	}
+
+	private void send(HttpExchange exchange, Response response) {
+		try {
+			if (response == null) {
+				exchange.close(); // Without headers sent, this closes the connection
+				return;
+			}
+			Headers headers = exchange.getResponseHeaders();
+			headers.putAll(response.headers);
+			byte[] body = response.body;
+			if (body == null || exchange.getRequestMethod().equals("HEAD") || response.code == 304 || response.code == 204) {
+				exchange.sendResponseHeaders(response.code, -1);
+			} else {
+				headers.set("Content-Type", "text/html; charset=UTF-8");
+				exchange.sendResponseHeaders(response.code, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		} catch (IOException e) {
+			log.log(Level.FINE, "Couldn't answer " + exchange.getRequestURI(), e);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private Response route(HttpExchange exchange, String body) {
+		String path = exchange.getRequestURI().getPath(), method = exchange.getRequestMethod();
+		Map<String, String> query = parse(exchange.getRequestURI().getRawQuery()), cookies = cookies(exchange.getRequestHeaders());
+		switch (path) {
+			case CAS + "/login":
+				return method.equals("POST") ? authenticate(query, parse(body), cookies) : login(query, cookies);
+			case CAS + "/logout":
+				return logout(cookies);
+			case PORTAL + "/authen-cas":
+				return serviceValidate(query);
+			case PORTAL + "/":
+				return Response.redirect(PORTAL + "/connected");
+			case PORTAL + "/connected":
+				return new Response(200, "<html>\n<head>\n<title>YaCaP - Portail captif CROUS Nancy-Metz</title>\n</head>\n<body>\n<h2>Authentification r&eacute;ussie</h2>\n<p>Vous &ecirc;tes maintenant connect&eacute; au r&eacute;seau CrousNet.</p>\n</body>\n</html>");
+			case PORTAL + "/popup":
+				return popup(cookies, exchange.getRequestHeaders().getFirst("If-None-Match"));
+			case PORTAL + "/logout":
+				return new Response(200, "<html>\n<head>\n<title>YaCaP - D&eacute;connexion</title>\n</head>\n<body>\n<p>Vous &ecirc;tes d&eacute;connect&eacute;.</p>\n</body>\n</html>");
+			default:
+				return new Response(404, "<html><body>Introuvable</body></html>");
+		}
+	}
+
+	/**
+	 * A redirect to the service if the client has a valid ticket-granting cookie, as the CAS doesn't ask again for credentials it already checked, the login form otherwise.
+	 */
+	private Response login(Map<String, String> query, Map<String, String> cookies) {
+		String tgt = cookies.get("CASTGC"), username = tgt != null ? grantingTickets.get(tgt) : null, service = query.get("service");
+		if (username == null || service == null)
+			return loginForm(cookies, null);
+		singleSignOns.incrementAndGet();
+		return serviceRedirect(service, username);
+	}
+
+	/**
+	 * The login form, with a new login ticket bound to the client's CAS session.
+	 */
+	private Response loginForm(Map<String, String> cookies, String status) {
+		String id = cookies.get("JSESSIONID");
+		CasSession session = id != null ? casSessions.get(id) : null;
+		Response response = new Response(200, null);
+		if (session == null) {
+			id = token("");
+			session = new CasSession();
+			casSessions.put(id, session);
+			response.cookie("JSESSIONID", id, CAS);
+		}
+		String lt = token("LT-" + counter.incrementAndGet() + "-");
+		session.loginTicket = lt;
+		StringBuilder sb = new StringBuilder(2048).append(CAS_HEAD).append("<div class=\"box\" id=\"login\">\n");
+		if (status != null)
+			sb.append("<div id=\"status\" class=\"errors\">").append(status).append("</div>\n");
+		sb.append("<form id=\"fm1\" action=\"").append(CAS).append("/login\" method=\"post\">\n")
+				.append("<input id=\"username\" name=\"username\" type=\"text\" value=\"\" />\n")
+				.append("<input id=\"password\" name=\"password\" type=\"password\" value=\"\" />\n")
+				.append("<input type=\"hidden\" name=\"lt\" value=\"").append(lt).append("\" />\n")
+				.append("<input type=\"hidden\" name=\"execution\" value=\"e1s1\" />\n")
+				.append("<input type=\"hidden\" name=\"_eventId\" value=\"submit\" />\n")
+				.append("<input name=\"submit\" value=\"SE CONNECTER\" type=\"submit\" />\n")
+				.append("</form>\n</div>\n</div>\n</body>\n</html>");
+		response.body = sb.toString().getBytes(StandardCharsets.UTF_8);
+		return response;
+	}
+
+	private Response authenticate(Map<String, String> query, Map<String, String> form, Map<String, String> cookies) {
+		String id = cookies.get("JSESSIONID"), lt = form.get("lt");
+		CasSession session = id != null ? casSessions.get(id) : null;
+		// The login ticket can only be used once, by the session it was given to
+		if (session == null || lt == null || !lt.equals(session.loginTicket) || !"e1s1".equals(form.get("execution")) || !"submit".equals(form.get("_eventId"))) {
+			ticketErrors.incrementAndGet();
+			if (session != null)
+				session.loginTicket = null;
+			return loginForm(cookies, (lt != null ? lt : "LT-") + " : ticket de connexion invalide ou expir&eacute;.");
+		}
+		session.loginTicket = null;
+		String username = form.get("username"), password = form.get("password");
+		if (username == null || password == null || !password.equals(accounts.get(username))) {
+			badLogins.incrementAndGet();
+			return loginForm(cookies, "Les informations transmises n'ont pas permis de vous authentifier.");
+		}
+		session.username = username;
+		String tgt = token("TGT-" + counter.incrementAndGet() + "-");
+		grantingTickets.put(tgt, username);
+		Response response = new Response(200, null);
+		response.cookie("CASTGC", tgt, CAS);
+		// An account can only have one portal session : if another client has it, CAS only says who is logged in
+		String active = activeSessions.get(username);
+		if (active != null && isAlive(portalSessions.get(active)) && !active.equals(cookies.get(SESSION_COOKIE))) {
+			alreadyLoggedIn.incrementAndGet();
+			response.body = (CAS_HEAD + "<div id=\"msg\" class=\"success\">\n<h2>Connexion r&eacute;ussie</h2>\n<p>Vous, <b>" + username + "</b>, vous &ecirc;tes authentifi&eacute;(e) aupr&egrave;s du Service Central d'Authentification.</p>\n</div>\n</div>\n</body>\n</html>").getBytes(StandardCharsets.UTF_8);
+			return response;
+		}
+		String service = query.get("service");
+		if (service == null)
+			service = "https://localhost:" + getPort() + PORTAL + "/authen-cas";
+		Response redirect = serviceRedirect(service, username);
+		response.code = redirect.code;
+		response.headers.putAll(redirect.headers);
+		return response;
+	}
+
+	/**
+	 * @return a redirect to the service with a new service ticket for the account
+	 */
+	private Response serviceRedirect(String service, String username) {
+		String ticket = token("ST-" + counter.incrementAndGet() + "-");
+		serviceTickets.put(ticket, username);
+		return Response.redirect(service + (service.indexOf('?') >= 0 ? "&" : "?") + "ticket=" + ticket);
+	}
+
+	private Response serviceValidate(Map<String, String> query) {
+		String ticket = query.get("ticket"), username = ticket != null ? serviceTickets.remove(ticket) : null;
+		if (username == null)
+			return new Response(403, "<html><body>Ticket de service invalide</body></html>");
+		String id = token("");
+		String previous = activeSessions.put(username, id);
+		if (previous != null)
+			portalSessions.remove(previous);
+		portalSessions.put(id, new PortalSession(username));
+		logins.incrementAndGet();
+		Response response = Response.redirect(PORTAL + "/?url=" + (query.get("url") != null ? query.get("url") : ""));
+		response.cookie(SESSION_COOKIE, id, "/");
+		return response;
+	}
+
+	private Response popup(Map<String, String> cookies, String ifNoneMatch) {
+		String id = cookies.get(SESSION_COOKIE);
+		PortalSession session = id != null ? portalSessions.get(id) : null;
+		boolean alive = isAlive(session);
+		if (session != null && !alive && portalSessions.remove(id) != null) {
+			activeSessions.remove(session.username, id);
+			expired.incrementAndGet();
+		}
+		String etag = alive ? "\"c-" + id + "\"" : "\"d\"";
+		Response response;
+		if (etag.equals(ifNoneMatch))
+			response = new Response(304, null);
+		else
+			response = new Response(200, "<html>\n<head>\n<title>YaCaP</title>\n<meta http-equiv=\"refresh\" content=\"60\">\n</head>\n<body bgcolor=\"" + (alive ? CONNECTED_COLOR : "#FFFFFF") + "\" text=\"#000000\">\n<center><b>"
+					+ (alive ? "Vous &ecirc;tes connect&eacute;" : "Session expir&eacute;e") + "</b></center>\n</body>\n</html>");
+		response.headers.put("ETag", Collections.singletonList(etag));
+		if (alive) {
+			session.lastSeen = System.currentTimeMillis();
+			popups.incrementAndGet();
+		}
+		return response;
+	}
+
+	private Response logout(Map<String, String> cookies) {
+		String id = cookies.get("JSESSIONID"), tgt = cookies.get("CASTGC");
+		if (tgt != null)
+			grantingTickets.remove(tgt);
+		CasSession session = id != null ? casSessions.remove(id) : null;
+		if (session != null && session.username != null) {
+			String active = activeSessions.remove(session.username);
+			if (active != null)
+				portalSessions.remove(active);
+		}
+		logouts.incrementAndGet();
+		Response response = Response.redirect(PORTAL + "/logout");
+		response.headers.put("Set-Cookie", Arrays.asList("CASTGC=; Max-Age=0; Path=" + CAS, "JSESSIONID=; Max-Age=0; Path=" + CAS));
+		return response;
+	}
+
+	private boolean isAlive(PortalSession session) {
+		if (session == null)
+			return false;
+		long now = System.currentTimeMillis(), maxAge = sessionMaxAge, idle = idleTimeout;
+		return (maxAge <= 0 || now - session.created < maxAge) && (idle <= 0 || now - session.lastSeen < idle);
+	}
+
+	private String token(String prefix) {
+		byte[] bytes = new byte[15];
+		random.nextBytes(bytes);
+		return prefix + Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+
+	private static Map<String, String> parse(String encoded) {
+		Map<String, String> map = new HashMap<>();
+		if (encoded == null || encoded.isEmpty())
+			return map;
+		for (String pair : encoded.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0)
+				map.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8), URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+		}
+		return map;
+	}
+
+	private static Map<String, String> cookies(Headers headers) {
+		Map<String, String> map = new HashMap<>();
+		List<String> values = headers.get("Cookie");
+		if (values != null)
+			for (String value : values)
+				for (String cookie : value.split(";")) {
+					int eq = cookie.indexOf('=');
+					if (eq > 0)
+						map.put(cookie.substring(0, eq).trim(), cookie.substring(eq + 1).trim());
+				}
+		return map;
+	}
+
+	/**
+	 * Starts a simulator until the process is killed or told to quit. Arguments are of the form "--key=value" : port (8443, 0 for any free port), latency ("min-max" in milliseconds), errorRate and resetRate, maxAge and idleTimeout (in milliseconds), and accounts, a number of accounts "user0" to "userN-1" whose passwords are "password0" to "passwordN-1".
+	 * <p/>
+	 * Commands are then read from the standard input, one per line : "expire" ends all the portal sessions, "stats" prints the counters (see {@link #stats()}) and "quit" stops the simulator.
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (!arg.startsWith("--") || eq < 3)
+				throw new IllegalArgumentException("Invalid argument \"" + arg + "\", expected --key=value");
+			options.put(arg.substring(2, eq), arg.substring(eq + 1));
+		}
+		PortalSimulator simulator = new PortalSimulator(Integer.parseInt(options.getOrDefault("port", "8443")));
+		String[] latency = options.getOrDefault("latency", "0").split("-");
+		simulator.setLatency(Long.parseLong(latency[0]), Long.parseLong(latency[latency.length - 1]));
+		simulator.setErrorRates(Double.parseDouble(options.getOrDefault("errorRate", "0")), Double.parseDouble(options.getOrDefault("resetRate", "0")));
+		simulator.setSessionExpiry(Long.parseLong(options.getOrDefault("maxAge", "0")), Long.parseLong(options.getOrDefault("idleTimeout", "0")));
+		int accounts = Integer.parseInt(options.getOrDefault("accounts", "1"));
+		for (int i = 0; i < accounts; i++)
+			simulator.addAccount("user" + i, "password" + i);
+		System.out.println("Start the daemon with : " + String.join(" ", simulator.getDaemonArguments()));
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		String line;
+		while ((line = in.readLine()) != null) {
+			switch (line.trim()) {
+				case "expire":
+					System.out.println("Expired " + simulator.expireSessions() + " session(s)");
+					break;
+				case "stats":
+					System.out.println(simulator.stats());
+					break;
+				case "quit":
+					simulator.stop();
+					return;
+				case "":
+					break;
+				default:
+					System.out.println("Unknown command \"" + line.trim() + "\", expected expire, stats or quit");
+			}
+		}
+		Thread.currentThread().join(); // No more commands, e.g. started in the background
+	}
+
+	/**
+	 * @return the counters, as "name=value" pairs separated by spaces
+	 */
+	public String stats() {
+		return "requests=" + getRequests() + " logins=" + getLogins() + " badLogins=" + getBadLogins() + " ticketErrors=" + getTicketErrors() + " alreadyLoggedIn=" + getAlreadyLoggedIn() + " singleSignOns=" + getSingleSignOns()
+				+ " popups=" + getPopups() + " expired=" + getExpired() + " logouts=" + getLogouts() + " failures=" + getFailures() + " activeSessions=" + getActiveSessions();
+	}
+
+	/**
+	 * State of a client on the CAS : the login ticket it was last given, and the account it logged in with.
+	 */
+	private static final class CasSession {
+		private volatile String loginTicket, username;
+	}
+
+	private static final class PortalSession {
+		private final String username;
+		private final long created = System.currentTimeMillis();
+		private volatile long lastSeen = created;
+
+		private PortalSession(String username) {
+			this.username = username;
+		}
+	}
+
+	private static final class Response {
+		private final Map<String, List<String>> headers = new HashMap<>();
+		private int code;
+		private byte[] body;
+
+		private Response(int code, String body) {
+			this.code = code;
+			this.body = body != null ? body.getBytes(StandardCharsets.UTF_8) : null;
+		}
+
+		private static Response redirect(String location) {
+			Response response = new Response(302, null);
+			response.headers.put("Location", Collections.singletonList(location));
+			return response;
+		}
+
+		private void cookie(String name, String value, String path) {
+			List<String> list = headers.get("Set-Cookie");
+			if (list == null)
+				headers.put("Set-Cookie", list = new ArrayList<>(2));
+			list.add(name + "=" + value + "; Path=" + path + "; Secure; HttpOnly");
+		}
+	}
+}